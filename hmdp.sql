@@ -274,7 +274,9 @@ CREATE TABLE `tb_voucher_order`  (
   `use_time` timestamp NULL DEFAULT NULL COMMENT '核销时间',
   `refund_time` timestamp NULL DEFAULT NULL COMMENT '退款时间',
   `update_time` timestamp NOT NULL DEFAULT CURRENT_TIMESTAMP ON UPDATE CURRENT_TIMESTAMP COMMENT '更新时间',
-  PRIMARY KEY (`id`) USING BTREE
+  `active_voucher_id` bigint(20) UNSIGNED GENERATED ALWAYS AS (CASE WHEN `status` IN (4, 6) THEN NULL ELSE `voucher_id` END) STORED COMMENT '未取消/退款的订单才占用一人一单名额',
+  PRIMARY KEY (`id`) USING BTREE,
+  UNIQUE INDEX `uk_user_active_voucher`(`user_id`, `active_voucher_id`) USING BTREE
 ) ENGINE = InnoDB CHARACTER SET = utf8mb4 COLLATE = utf8mb4_general_ci ROW_FORMAT = Compact;
 
 -- ----------------------------
@@ -0,0 +1,32 @@
+package com.hmdp.controller;
+
+
+import com.hmdp.dto.Result;
+import com.hmdp.utils.CacheClient;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RestController;
+
+import javax.annotation.Resource;
+
+/**
+ * <p>
+ * 缓存监控
+ * </p>
+ */
+@RestController
+@RequestMapping("/cache")
+public class CacheController {
+
+    @Resource
+    private CacheClient cacheClient;
+
+    /**
+     * 本节点当前的热点key：滑动窗口内访问量最大的几个key，已经临时放入本地缓存
+     * @return 热点key -> 窗口内的估计访问次数，按次数从大到小
+     */
+    @GetMapping("hot-keys")
+    public Result hotKeys() {
+        return Result.ok(cacheClient.getHotKeys());
+    }
+}
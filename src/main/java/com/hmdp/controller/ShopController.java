@@ -10,6 +10,8 @@ import com.hmdp.utils.SystemConstants;
 import org.springframework.web.bind.annotation.*;
 
 import javax.annotation.Resource;
+import java.util.List;
+import java.util.stream.Collectors;
 
 /**
  * <p>
@@ -43,10 +45,8 @@ public class ShopController {
      */
     @PostMapping
     public Result saveShop(@RequestBody Shop shop) {
-        // 写入数据库
-        shopService.save(shop);
-        // 返回店铺id
-        return Result.ok(shop.getId());
+        // 写入数据库和布隆过滤器，返回店铺id
+        return shopService.saveShop(shop);
     }
 
     /**
@@ -72,12 +72,13 @@ public class ShopController {
             @RequestParam("typeId") Integer typeId,
             @RequestParam(value = "current", defaultValue = "1") Integer current
     ) {
-        // 根据类型分页查询
+        // 根据类型分页查询，只查id
         Page<Shop> page = shopService.query()
+                .select("id")
                 .eq("type_id", typeId)
                 .page(new Page<>(current, SystemConstants.DEFAULT_PAGE_SIZE));
-        // 返回数据
-        return Result.ok(page.getRecords());
+        // 返回数据，商铺详情从缓存批量读取
+        return Result.ok(queryShops(page));
     }
 
     /**
@@ -91,11 +92,17 @@ public class ShopController {
             @RequestParam(value = "name", required = false) String name,
             @RequestParam(value = "current", defaultValue = "1") Integer current
     ) {
-        // 根据类型分页查询
+        // 根据类型分页查询，只查id
         Page<Shop> page = shopService.query()
+                .select("id")
                 .like(StrUtil.isNotBlank(name), "name", name)
                 .page(new Page<>(current, SystemConstants.MAX_PAGE_SIZE));
-        // 返回数据
-        return Result.ok(page.getRecords());
+        // 返回数据，商铺详情从缓存批量读取
+        return Result.ok(queryShops(page));
+    }
+
+    private List<Shop> queryShops(Page<Shop> page) {
+        List<Long> ids = page.getRecords().stream().map(Shop::getId).collect(Collectors.toList());
+        return shopService.queryByIds(ids);
     }
 }
@@ -46,6 +46,22 @@ public class VoucherController {
         return Result.ok(voucher.getId());
     }
 
+    /**
+     * 补充秒杀券库存
+     *
+     * @param voucherId 优惠券id
+     * @param count     增加的库存数量
+     * @return 无
+     */
+    @PutMapping("seckill/{id}/stock")
+    public Result addSeckillStock(@PathVariable("id") Long voucherId, @RequestParam("count") Integer count) {
+        if (count == null || count <= 0) {
+            return Result.fail("库存数量必须大于0");
+        }
+        voucherService.addSeckillStock(voucherId, count);
+        return Result.ok();
+    }
+
     /**
      * 查询店铺的优惠券列表
      * 
@@ -1,13 +1,22 @@
 package com.hmdp.controller;
 
 import com.hmdp.dto.Result;
+import com.hmdp.dto.VoucherOrderTransition;
 import com.hmdp.service.IVoucherOrderService;
+import com.hmdp.utils.SeckillOrderConsumer;
+import com.hmdp.utils.SeckillOrderDelayQueue;
+import com.hmdp.utils.SeckillOrderTimeoutCanceller;
+import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestBody;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RestController;
 
 import javax.annotation.Resource;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 
 /**
  * <p>
@@ -24,8 +33,92 @@ public class VoucherOrderController {
     @Resource
     private IVoucherOrderService voucherOrderService;
 
+    @Resource
+    private SeckillOrderConsumer seckillOrderConsumer;
+
+    @Resource
+    private SeckillOrderDelayQueue seckillOrderDelayQueue;
+
+    @Resource
+    private SeckillOrderTimeoutCanceller seckillOrderTimeoutCanceller;
+
     @PostMapping("seckill/{id}")
     public Result seckillVoucher(@PathVariable("id") Long voucherId) {
         return voucherOrderService.seckillVoucher(voucherId);
     }
+
+    /**
+     * 查询秒杀订单的处理状态：QUEUED 排队落库中，PERSISTED 已落库，FAILED 处理失败
+     * @param orderId 秒杀接口返回的订单id
+     * @return 订单状态
+     */
+    @GetMapping("seckill/status/{orderId}")
+    public Result queryOrderState(@PathVariable("orderId") Long orderId) {
+        return voucherOrderService.queryOrderState(orderId);
+    }
+
+    /**
+     * 一次抢购多张秒杀券，例如店铺页上的组合促销
+     * @param voucherIds 优惠券id列表
+     * @return 每张券的抢购结果：成功时带订单id，失败时带原因
+     */
+    @PostMapping("seckill")
+    public Result seckillVouchers(@RequestBody List<Long> voucherIds) {
+        return voucherOrderService.seckillVouchers(voucherIds);
+    }
+
+    /**
+     * 批量支付订单：未支付 -> 已支付
+     * @param orderIds 订单id列表
+     * @return 流转成功的订单id
+     */
+    @PostMapping("pay")
+    public Result payOrders(@RequestBody List<Long> orderIds) {
+        return voucherOrderService.transitMyOrders(orderIds, VoucherOrderTransition.PAY);
+    }
+
+    /**
+     * 批量核销订单：已支付 -> 已核销
+     */
+    @PostMapping("use")
+    public Result useOrders(@RequestBody List<Long> orderIds) {
+        return voucherOrderService.transitMyOrders(orderIds, VoucherOrderTransition.USE);
+    }
+
+    /**
+     * 批量取消订单：未支付 -> 已取消，归还库存
+     */
+    @PostMapping("cancel")
+    public Result cancelOrders(@RequestBody List<Long> orderIds) {
+        return voucherOrderService.transitMyOrders(orderIds, VoucherOrderTransition.CANCEL);
+    }
+
+    /**
+     * 批量退款：已支付 -> 已退款，归还库存
+     */
+    @PostMapping("refund")
+    public Result refundOrders(@RequestBody List<Long> orderIds) {
+        return voucherOrderService.transitMyOrders(orderIds, VoucherOrderTransition.REFUND);
+    }
+
+    /**
+     * 秒杀订单消费者的积压和健康情况：各分片stream长度、待确认消息数、消费者空闲时间
+     * @return 监控数据
+     */
+    @GetMapping("seckill/consumer/metrics")
+    public Result consumerMetrics() {
+        return Result.ok(seckillOrderConsumer.metrics());
+    }
+
+    /**
+     * 支付超时延时队列的积压情况：各分片等待支付的订单数、本节点累计取消的订单数
+     * @return 监控数据
+     */
+    @GetMapping("seckill/pay-timeout/metrics")
+    public Result payTimeoutMetrics() {
+        Map<String, Object> metrics = new LinkedHashMap<>();
+        metrics.put("pending", seckillOrderDelayQueue.sizes());
+        metrics.put("cancelled", seckillOrderTimeoutCanceller.getCancelled());
+        return Result.ok(metrics);
+    }
 }
@@ -0,0 +1,38 @@
+package com.hmdp.dto;
+
+/**
+ * 秒杀订单的异步处理状态，redis中只存一个字符的code
+ */
+public enum SeckillOrderState {
+    /**
+     * 已抢到，订单消息在stream中等待落库
+     */
+    QUEUED("Q"),
+    /**
+     * 订单已写入数据库
+     */
+    PERSISTED("P"),
+    /**
+     * 订单多次处理失败，已转入死信队列
+     */
+    FAILED("F");
+
+    private final String code;
+
+    SeckillOrderState(String code) {
+        this.code = code;
+    }
+
+    public String getCode() {
+        return code;
+    }
+
+    public static SeckillOrderState ofCode(String code) {
+        for (SeckillOrderState state : values()) {
+            if (state.code.equals(code)) {
+                return state;
+            }
+        }
+        return null;
+    }
+}
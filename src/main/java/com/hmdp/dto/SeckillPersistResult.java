@@ -0,0 +1,17 @@
+package com.hmdp.dto;
+
+import lombok.Data;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 一批秒杀订单的落库结果
+ */
+@Data
+public class SeckillPersistResult {
+    // 已经在数据库中的订单id：本次插入的，以及之前已经插入过的（消息重复投递）
+    private List<Long> persistedIds = new ArrayList<>();
+    // 同一用户同一张券已经有另一个订单，这些订单不会落库
+    private List<Long> rejectedIds = new ArrayList<>();
+}
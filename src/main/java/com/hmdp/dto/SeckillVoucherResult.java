@@ -0,0 +1,23 @@
+package com.hmdp.dto;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * 批量秒杀中一张券的抢购结果
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class SeckillVoucherResult {
+    private Long voucherId;
+    /**
+     * 抢购成功时的订单id，失败时为null
+     */
+    private Long orderId;
+    /**
+     * 失败原因，成功时为null
+     */
+    private String errorMsg;
+}
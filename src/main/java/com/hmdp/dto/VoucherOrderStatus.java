@@ -0,0 +1,30 @@
+package com.hmdp.dto;
+
+/**
+ * 订单状态，对应 tb_voucher_order.status
+ */
+public enum VoucherOrderStatus {
+    UNPAID(1),
+    PAID(2),
+    USED(3),
+    CANCELLED(4),
+    REFUNDING(5),
+    REFUNDED(6);
+
+    private final int code;
+
+    VoucherOrderStatus(int code) {
+        this.code = code;
+    }
+
+    public int getCode() {
+        return code;
+    }
+
+    /**
+     * 已取消或已退款的订单不再占用库存和一人一单的名额
+     */
+    public static boolean isReleased(Integer code) {
+        return code != null && (code == CANCELLED.code || code == REFUNDED.code);
+    }
+}
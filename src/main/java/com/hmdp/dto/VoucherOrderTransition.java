@@ -0,0 +1,41 @@
+package com.hmdp.dto;
+
+/**
+ * 订单状态流转：支付、核销、取消、退款
+ * 取消和退款会把库存还给数据库和redis，并把用户移出下单集合，用户可以重新抢购
+ */
+public enum VoucherOrderTransition {
+    PAY(VoucherOrderStatus.UNPAID, VoucherOrderStatus.PAID, "pay_time", false),
+    USE(VoucherOrderStatus.PAID, VoucherOrderStatus.USED, "use_time", false),
+    CANCEL(VoucherOrderStatus.UNPAID, VoucherOrderStatus.CANCELLED, null, true),
+    REFUND(VoucherOrderStatus.PAID, VoucherOrderStatus.REFUNDED, "refund_time", true);
+
+    private final VoucherOrderStatus from;
+    private final VoucherOrderStatus to;
+    // 流转时记录时间的字段，没有则为null
+    private final String timeColumn;
+    private final boolean returnsStock;
+
+    VoucherOrderTransition(VoucherOrderStatus from, VoucherOrderStatus to, String timeColumn, boolean returnsStock) {
+        this.from = from;
+        this.to = to;
+        this.timeColumn = timeColumn;
+        this.returnsStock = returnsStock;
+    }
+
+    public VoucherOrderStatus getFrom() {
+        return from;
+    }
+
+    public VoucherOrderStatus getTo() {
+        return to;
+    }
+
+    public String getTimeColumn() {
+        return timeColumn;
+    }
+
+    public boolean isReturnsStock() {
+        return returnsStock;
+    }
+}
@@ -2,6 +2,9 @@ package com.hmdp.mapper;
 
 import com.baomidou.mybatisplus.core.mapper.BaseMapper;
 import com.hmdp.entity.VoucherOrder;
+import org.apache.ibatis.annotations.Param;
+
+import java.util.List;
 
 /**
  * <p>
@@ -13,4 +16,11 @@ import com.hmdp.entity.VoucherOrder;
  */
 public interface VoucherOrderMapper extends BaseMapper<VoucherOrder> {
 
+    /**
+     * 批量插入秒杀订单，一条 INSERT IGNORE ... VALUES (...),(...) 语句写入整批订单
+     * 订单id或(user_id, voucher_id)已存在的行会被跳过，不会报错
+     * @param orders 订单列表，不能为空
+     * @return 实际插入的行数
+     */
+    int insertIgnoreBatch(@Param("orders") List<VoucherOrder> orders);
 }
@@ -4,6 +4,8 @@ import com.baomidou.mybatisplus.extension.service.IService;
 import com.hmdp.dto.Result;
 import com.hmdp.entity.Shop;
 
+import java.util.List;
+
 /**
  * <p>
  *  服务类
@@ -16,6 +18,11 @@ public interface IShopService extends IService<Shop> {
 
     Result queryById(Long id);
 
+    //批量查询商铺，走缓存，按ids的顺序返回，不存在的商铺跳过
+    List<Shop> queryByIds(List<Long> ids);
+
+    Result saveShop(Shop shop);
+
     Result updateShopById(Shop shop);
 
 //    boolean tryLock(String lockKey);
@@ -3,9 +3,12 @@ package com.hmdp.service;
 import com.baomidou.mybatisplus.extension.service.IService;
 import com.hmdp.dto.LoginFormDTO;
 import com.hmdp.dto.Result;
+import com.hmdp.dto.UserDTO;
 import com.hmdp.entity.User;
 
 import javax.servlet.http.HttpSession;
+import java.util.Collection;
+import java.util.Map;
 
 /**
  * <p>
@@ -21,4 +24,7 @@ public interface IUserService extends IService<User> {
     Result sendCode(String phone, HttpSession session);
 
     Result login(LoginFormDTO loginForm, HttpSession session);
+
+    //批量查询用户的公开信息，走缓存，返回 id -> UserDTO，按ids的顺序，不存在的用户不在结果中
+    Map<Long, UserDTO> queryUserDTOs(Collection<Long> ids);
 }
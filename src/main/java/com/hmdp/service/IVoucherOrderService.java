@@ -2,8 +2,13 @@ package com.hmdp.service;
 
 import com.baomidou.mybatisplus.extension.service.IService;
 import com.hmdp.dto.Result;
+import com.hmdp.dto.SeckillPersistResult;
+import com.hmdp.dto.VoucherOrderTransition;
 import com.hmdp.entity.VoucherOrder;
 
+import java.util.Collection;
+import java.util.List;
+
 /**
  * <p>
  * 服务类
@@ -16,5 +21,21 @@ public interface IVoucherOrderService extends IService<VoucherOrder> {
 
     Result seckillVoucher(Long voucherId);
 
+    Result seckillVouchers(List<Long> voucherIds);
+
     Result createSeckillVoucher(Long voucherId);
+
+    Result queryOrderState(Long orderId);
+
+    SeckillPersistResult saveSeckillOrders(List<VoucherOrder> voucherOrders);
+
+    Result transitMyOrders(List<Long> orderIds, VoucherOrderTransition transition);
+
+    List<VoucherOrder> transitOrders(Collection<Long> orderIds, VoucherOrderTransition transition, Long userId);
+
+    void returnSeckillStock(List<VoucherOrder> orders);
+
+    void releaseRejectedOrders(List<VoucherOrder> orders, Collection<Long> rejectedIds);
+
+    List<VoucherOrder> updateOrderStatus(Collection<Long> orderIds, VoucherOrderTransition transition, Long userId);
 }
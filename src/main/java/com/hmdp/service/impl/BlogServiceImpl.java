@@ -1,13 +1,10 @@
 package com.hmdp.service.impl;
 
-import cn.hutool.core.bean.BeanUtil;
-import cn.hutool.core.util.StrUtil;
 import com.baomidou.mybatisplus.extension.plugins.pagination.Page;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
 import com.hmdp.dto.Result;
 import com.hmdp.dto.UserDTO;
 import com.hmdp.entity.Blog;
-import com.hmdp.entity.User;
 import com.hmdp.mapper.BlogMapper;
 import com.hmdp.service.IBlogService;
 import com.hmdp.service.IUserService;
@@ -17,8 +14,10 @@ import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.stereotype.Service;
 
 import javax.annotation.Resource;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.stream.Collectors;
 
@@ -55,12 +54,10 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
          */
         List<Blog> records = page.getRecords();
 
-        // 遍历，为每一个Blog填充用户信息和点赞状态
-        // 这里的两个方法分别填充了blog类中缺失的icon,name以及isLike
-        records.forEach(blog -> {
-            this.queryBlogUser(blog);
-            this.isBlogLiked(blog);
-        });
+        // 为每一个Blog填充用户信息和点赞状态
+        // 这里的两个方法分别填充了blog类中缺失的icon,name以及isLike，用户信息一次批量查询
+        this.queryBlogUsers(records);
+        records.forEach(this::isBlogLiked);
         return Result.ok(records);
     }
 
@@ -111,27 +108,14 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
         // 2.解析出其中的用户id
         // 先把Set<String>转换为List<Long>
         List<Long> ids = top5.stream().map(Long::valueOf).collect(Collectors.toList());
-        // 然后转为带","的String好传入database
-        String idStr = StrUtil.join(",", ids);
 
-        // 3.根据用户id查询用户WHERE id IN (5,1) ORDER BY FIELD(id,5,1)
-        // 这里的5,1只是举例，举例用户id是5，1（有顺序）
-        // 这里必须用last("ORDER BY FIELD...")来保证顺序
+        // 3.根据用户id批量查询用户，先一次MGET查缓存，未命中的再一次查数据库
         /**
-         * SQL 的 IN 查询会自动按主键 ID 升序排序，这会弄乱 Redis 里的时间顺序
-         * last 方法会将字符串原封不动拼接到生成的 SQL 语句最后。
-         * 作用：强制 MySQL 按照 idStr（如 "5,1,3..."）给定的顺序返回结果。
-         * .list()：
-         * 执行者：执行最终查询，返回一个 List<User>。
-         * .stream()将刚刚的List<User>转换为流
-         * .map(...):流里面的每一个元素都是User对象，我们要把User数据脱敏为UserDTO
-         * .collect... 将脱敏出来的数据流再重新装成List
+         * SQL 的 IN 查询会自动按主键 ID 升序排序，这会弄乱 Redis 里的时间顺序，
+         * 以前要用 last("ORDER BY FIELD(id,5,1)") 强制MySQL按给定顺序返回；
+         * queryUserDTOs 返回的Map本身就是按ids的顺序，直接取values即可
          */
-        List<UserDTO> userDTOS = userService.query().in("id", ids)
-                .last("ORDER BY FIELD(id," + idStr + ")").list()
-                .stream()
-                .map(user -> BeanUtil.copyProperties(user, UserDTO.class))
-                .collect(Collectors.toList());
+        List<UserDTO> userDTOS = new ArrayList<>(userService.queryUserDTOs(ids).values());
 
         // 4.返回
         return Result.ok(userDTOS);
@@ -160,18 +144,23 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
             return Result.fail("笔记不存在");
         }
         // 2.查询blog相关的用户
-        queryBlogUser(blog);
+        queryBlogUsers(Collections.singletonList(blog));
         // 3.查询是否点赞（新增）
         isBlogLiked(blog);// 这是下面的成员方法
         return Result.ok(blog);
     }
 
-    // 一个相关的用法，用于查询并填充作者信息
-    private void queryBlogUser(Blog blog) {
-        Long userId = blog.getUserId();
-        User user = userService.getById(userId);
-        blog.setName(user.getNickName());
-        blog.setIcon(user.getIcon());
+    // 一个相关的用法，用于批量查询并填充作者信息，整页博客只查一次缓存
+    private void queryBlogUsers(List<Blog> blogs) {
+        List<Long> userIds = blogs.stream().map(Blog::getUserId).collect(Collectors.toList());
+        Map<Long, UserDTO> users = userService.queryUserDTOs(userIds);
+        for (Blog blog : blogs) {
+            UserDTO user = users.get(blog.getUserId());
+            if (user != null) {
+                blog.setName(user.getNickName());
+                blog.setIcon(user.getIcon());
+            }
+        }
     }
 
     // 辅助方法：判断是否已经点赞，用于返回给前端的显示
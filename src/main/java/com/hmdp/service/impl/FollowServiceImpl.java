@@ -1,6 +1,5 @@
 package com.hmdp.service.impl;
 
-import cn.hutool.core.bean.BeanUtil;
 import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
 import com.hmdp.dto.Result;
@@ -8,7 +7,6 @@ import com.hmdp.dto.UserDTO;
 import com.hmdp.entity.Follow;
 import com.hmdp.mapper.FollowMapper;
 import com.hmdp.service.IFollowService;
-import com.hmdp.entity.User;
 
 import javax.annotation.Resource;
 
@@ -17,6 +15,7 @@ import com.hmdp.utils.UserHolder;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.stereotype.Service;
 
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 import java.util.Set;
@@ -101,13 +100,8 @@ public class FollowServiceImpl extends ServiceImpl<FollowMapper, Follow> impleme
         List<Long> ids=intersect.stream().map(Long::valueOf).collect(Collectors.toList());;
 
         //4.查询用户
-        // 4. 查询用户并转化为 DTO 列表
-        List<UserDTO> users = userService.lambdaQuery()
-                .in(User::getId, ids) // 相当于 WHERE id IN (ids...)
-                .list()               // 结束数据库查询，返回 List<User>
-                .stream()             // 开启 Stream 流
-                .map(user -> BeanUtil.copyProperties(user, UserDTO.class)) // 属性映射
-                .collect(Collectors.toList()); // 收集结果
+        // 4. 批量查询用户的 DTO 列表，一次MGET查缓存，未命中的再一次 WHERE id IN (ids...)
+        List<UserDTO> users = new ArrayList<>(userService.queryUserDTOs(ids).values());
         return Result.ok(users);
     }
 
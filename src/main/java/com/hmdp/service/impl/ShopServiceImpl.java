@@ -1,9 +1,7 @@
 package com.hmdp.service.impl;
 
 import cn.hutool.core.util.BooleanUtil;
-import cn.hutool.core.util.StrUtil;
 import cn.hutool.json.JSONObject;
-import cn.hutool.json.JSONUtil;
 import com.baomidou.mybatisplus.core.toolkit.StringUtils;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
 import com.hmdp.dto.Result;
@@ -12,14 +10,15 @@ import com.hmdp.mapper.ShopMapper;
 import com.hmdp.service.IShopService;
 import com.hmdp.utils.CacheClient;
 import com.hmdp.utils.RedisConstants;
-import com.hmdp.utils.RedisData;
+import com.hmdp.utils.ShopBloomFilter;
 //import jdk.vm.ci.meta.Local;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 
 import javax.annotation.Resource;
-import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
@@ -43,6 +42,9 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
     @Resource
     private CacheClient cacheClient;
 
+    @Resource
+    private ShopBloomFilter shopBloomFilter;
+
     @Override
     public Result queryById(Long id) {
         //使用缓存穿透的工具类
@@ -50,11 +52,12 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
         /**
          this::getById
          **/
-//        Shop shop = cacheClient.queryWithPssThrough(RedisConstants.CACHE_SHOP_KEY, id, Shop.class, id2 -> getById(id2),
+//        Shop shop = cacheClient.queryWithPssThrough(RedisConstants.CACHE_SHOP_KEY, id, Shop.class, shopBloomFilter::mightContain, id2 -> getById(id2),
 //                RedisConstants.CACHE_SHOP_TTL, TimeUnit.MINUTES);
 
         //使用缓存击穿的工具类
-        Shop shop = cacheClient.queryWithLogicExpire(RedisConstants.CACHE_SHOP_KEY, id, Shop.class, this::getById, RedisConstants.CACHE_SHOP_TTL, TimeUnit.MINUTES);
+        Shop shop = cacheClient.queryWithLogicExpire(RedisConstants.CACHE_SHOP_KEY, id, Shop.class,
+                shopBloomFilter::mightContain, this::getById, RedisConstants.CACHE_SHOP_TTL, TimeUnit.MINUTES);
 
         // 最开始的缓存穿透的调用方法
         // Shop shop=queryWithCacheThrough(id);
@@ -68,70 +71,18 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
         return Result.ok(shop);
     }
 
-    public Shop queryWithMutex(Long id) {
-        String key = RedisConstants.CACHE_SHOP_KEY + id;
-        // 1.从redis查询商铺缓存
-        String shopJson = stringRedisTemplate.opsForValue().get(key);
-        // 2.判断缓存是否命中】
-        if (StrUtil.isNotBlank(shopJson)) {
-            // 3.存在直接返回前端
-            Shop shop = JSONUtil.toBean(shopJson, Shop.class);
-            return shop;
-        }
-
-        // 缓存穿透检查
-        if ("".equals(shopJson)) {
-            return null;
-        }
-
-        // 4.实现缓存重建
-        String lockKey = RedisConstants.LOCK_SHOP_KEY + id;
-        Shop shop = null;
-        try {
-            // 4.1 尝试获取互斥锁
-
-            if (!tryLock(lockKey)) {
-                // 4.2 获取失败，休眠
-                Thread.sleep(50L);
-                return queryWithMutex(id);
-            }
-            // 4.3获取成功，再次检查缓存（Double Check）
-            shopJson = stringRedisTemplate.opsForValue().get(key);
-            // 缓存命中正常数据
-            if (StrUtil.isNotBlank(shopJson)) {
-                return JSONUtil.toBean(shopJson, Shop.class);
-            }
-            // 缓存命中空值（防穿透标记），直接返回不查库
-            if ("".equals(shopJson)) {
-                return null;
-            }
-            // 真正未命中，继续往下查库
-
-            // 5.获取失败，转接给数据库看看是否存在数据
-            shop = getById(id);// mybatis的便捷操作，getById()
-
-            //模拟重建延时
-             Thread.sleep(500);
-
-
-            if (shop == null) {
-                // 6.不存在，将这个key和对应的空值存入redis以防缓存穿透
-                stringRedisTemplate.opsForValue().set(key, "", RedisConstants.CACHE_SHOP_TTL, TimeUnit.MINUTES);
-                // 返回错误,终结本次穿透
-                return null;
-            }
-            // 7.存在，将商铺信息写入redis
-            stringRedisTemplate.opsForValue().set(key, JSONUtil.toJsonStr(shop), RedisConstants.CACHE_SHOP_TTL,
-                    TimeUnit.MINUTES);
-        } catch (InterruptedException e) {
-            throw new RuntimeException(e);
-        } finally {
-            // 8.释放互斥锁
-            unLock(lockKey);
-        }
+    @Override
+    public List<Shop> queryByIds(List<Long> ids) {
+        // 和queryById使用同一份逻辑过期缓存：本地缓存和一次MGET，redis中没有的一次listByIds
+        return new ArrayList<>(cacheClient.queryBatchWithLogicExpire(RedisConstants.CACHE_SHOP_KEY, ids, Shop.class,
+                Shop::getId, this::listByIds, RedisConstants.CACHE_SHOP_TTL, TimeUnit.MINUTES).values());
+    }
 
-        return shop;
-        // 9.返回
+    public Shop queryWithMutex(Long id) {
+        // 互斥锁重建交给CacheClient：同一个节点上同一个商铺的并发未命中合并成一次查询，
+        // 只有一个线程抢redis锁、查数据库，其他线程等待它的结果，不再休眠后重试
+        return cacheClient.queryWithMutex(RedisConstants.CACHE_SHOP_KEY, id, Shop.class,
+                shopBloomFilter::mightContain, this::getById, RedisConstants.CACHE_SHOP_TTL, TimeUnit.MINUTES);
     }
 
 //    // 缓存穿透写法
@@ -228,6 +179,16 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
 //        return shop;
 //    }
 
+    @Override
+    public Result saveShop(Shop shop) {
+        // 1.写入数据库
+        save(shop);
+        // 2.写入布隆过滤器，之后才能查到这个商铺
+        shopBloomFilter.add(shop.getId());
+        // 3.返回店铺id
+        return Result.ok(shop.getId());
+    }
+
     @Transactional
     @Override
     public Result updateShopById(Shop shop) {
@@ -242,8 +203,10 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
         // 另外最上面的extends ServiceImpl<ShopMapper, Shop>里面的参数SHop也决定了mybatis plus
         // 的语句要传入shop参数
 
-        // 2.删除缓存
-        stringRedisTemplate.delete(RedisConstants.CACHE_SHOP_KEY + shop.getId());
+        // 2.删除缓存，同时通知所有节点清除本地缓存
+        cacheClient.delete(RedisConstants.CACHE_SHOP_KEY + shop.getId());
+        // 3.写入布隆过滤器，id已经存在时没有影响
+        shopBloomFilter.add(id);
         return Result.ok();
 
     }
@@ -275,11 +238,7 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
         //1.查询商铺信息
         Shop shop=getById(id);
 
-        //2.封装RedisData，也就是包含逻辑过期时间
-        RedisData redisData=new RedisData();
-        redisData.setExpireTime(LocalDateTime.now().plusSeconds(expireSeconds));
-        redisData.setData(shop);
-        //3.写入redis
-        stringRedisTemplate.opsForValue().set(RedisConstants.CACHE_SHOP_KEY+id,JSONUtil.toJsonStr(redisData));
+        //2.带上逻辑过期时间写入redis，编码方式和查询时一致
+        cacheClient.setWithLogicExpire(RedisConstants.CACHE_SHOP_KEY+id,shop,expireSeconds,TimeUnit.SECONDS);
     }
 }
@@ -1,14 +1,12 @@
 package com.hmdp.service.impl;
 
-import cn.hutool.core.util.StrUtil;
-import cn.hutool.json.JSONUtil;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
 import com.hmdp.dto.Result;
 import com.hmdp.entity.ShopType;
 import com.hmdp.mapper.ShopTypeMapper;
 import com.hmdp.service.IShopTypeService;
+import com.hmdp.utils.CacheClient;
 import com.hmdp.utils.RedisConstants;
-import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.stereotype.Service;
 
 import javax.annotation.Resource;
@@ -27,23 +25,22 @@ import java.util.concurrent.TimeUnit;
 public class ShopTypeServiceImpl extends ServiceImpl<ShopTypeMapper, ShopType> implements IShopTypeService {
 
     @Resource
-    private StringRedisTemplate stringRedisTemplate;
+    private CacheClient cacheClient;
 
     @Override
     public List<ShopType> queryTypeList() {
         String key = RedisConstants.CACHE_SHOP_TYPE_KEY;
         // 1.先查询redis看有没有
-        String json = stringRedisTemplate.opsForValue().get(key);
+        List<ShopType> cached = cacheClient.getList(key, ShopType.class);
 
-        if (StrUtil.isNotBlank(json)) {
-            return JSONUtil.toList(json, ShopType.class);
+        if (cached != null) {
+            return cached;
         }
         // 2.redis没有再查询数据库
         List<ShopType> list = list();
 
         // 3.把数据从数据库存入redis
-        stringRedisTemplate.opsForValue().set(key, JSONUtil.toJsonStr(list), RedisConstants.CACHE_SHOP_TYPE_KEY_TTL,
-                TimeUnit.HOURS);
+        cacheClient.set(key, list, RedisConstants.CACHE_SHOP_TYPE_KEY_TTL, TimeUnit.HOURS);
         return list;
     }
 }
@@ -1,15 +1,25 @@
 package com.hmdp.service.impl;
 
-import cn.hutool.core.bean.BeanUtil;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
 import com.hmdp.dto.Result;
+import com.hmdp.dto.SeckillOrderState;
+import com.hmdp.dto.SeckillPersistResult;
+import com.hmdp.dto.SeckillVoucherResult;
+import com.hmdp.dto.VoucherOrderStatus;
+import com.hmdp.dto.VoucherOrderTransition;
 import com.hmdp.entity.SeckillVoucher;
 import com.hmdp.entity.VoucherOrder;
 import com.hmdp.mapper.VoucherOrderMapper;
 import com.hmdp.service.ISeckillVoucherService;
 import com.hmdp.service.IVoucherOrderService;
 import com.hmdp.service.IVoucherService;
-import com.hmdp.utils.RedisWorker;
+import com.hmdp.utils.IdGenerator;
+import com.hmdp.utils.RedisConstants;
+import com.hmdp.utils.SeckillOrderDelayQueue;
+import com.hmdp.utils.SeckillOrderStateStore;
+import com.hmdp.utils.SeckillSoldOutRegistry;
+import com.hmdp.utils.SeckillStockKeys;
+import com.hmdp.utils.SeckillWindowRegistry;
 import com.hmdp.utils.SimpleRedisLock;
 import com.hmdp.utils.UserHolder;
 import lombok.extern.slf4j.Slf4j;
@@ -17,23 +27,33 @@ import org.redisson.Redisson;
 import org.redisson.api.RLock;
 import org.redisson.api.RedissonClient;
 import org.springframework.aop.framework.AopContext;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.core.io.ClassPathResource;
-import org.springframework.data.redis.connection.stream.*;
+import org.springframework.data.redis.connection.RedisPipelineException;
+import org.springframework.data.redis.connection.ReturnType;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.data.redis.core.script.DefaultRedisScript;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 
-import javax.annotation.PostConstruct;
 import javax.annotation.Resource;
-import java.time.Duration;
+import java.nio.charset.StandardCharsets;
 import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.stream.Collectors;
 
 /**
  * <p>
@@ -43,6 +63,7 @@ import java.util.concurrent.Executors;
  * @author 虎哥
  * @since 2021-12-22
  */
+@Slf4j
 @Service
 public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, VoucherOrder>
         implements IVoucherOrderService {
@@ -51,7 +72,7 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
     private ISeckillVoucherService seckillVoucherService;
 
     @Resource
-    private RedisWorker redisWorker;
+    private IdGenerator idGenerator;
 
     @Resource
     private StringRedisTemplate stringRedisTemplate;
@@ -59,15 +80,25 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
     @Resource
     private RedissonClient redissonClient;
 
-    // 下面是为了实现redis消息队列的消费者 定义的常量和线程池
-    // stream队列名称
-    private static final String STREAM_KEY = "stream.orders";
-    // 消费者组名称
-    private static final String GROUP_NAME = "g1";
-    // 消费者名称
-    private static final String CONSUMER_NAME = "c1";
-    // 线程池（单线程，用于异步处理订单）
-    private static final ExecutorService SECKILL_ORDER_EXECUTOR = Executors.newSingleThreadExecutor();
+    @Resource
+    private SeckillSoldOutRegistry seckillSoldOutRegistry;
+
+    @Resource
+    private SeckillWindowRegistry seckillWindowRegistry;
+
+    @Resource
+    private SeckillOrderStateStore seckillOrderStateStore;
+
+    @Resource
+    private SeckillOrderDelayQueue seckillOrderDelayQueue;
+
+    // 订单stream按voucherId分片的数量，抢单成功后按 voucherId % shards 把订单写入 stream.orders:{shard}
+    @Value("${hmdp.seckill.order.shards:4}")
+    private int orderShards;
+
+    // 批量秒杀一次最多抢购的券数
+    @Value("${hmdp.seckill.batch.max-vouchers:20}")
+    private int batchMaxVouchers;
 
     // 静态初始化lua脚本，避免每次都加载
     private static final DefaultRedisScript<Long> SEKILL_SCRIPT;
@@ -77,148 +108,572 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
         SEKILL_SCRIPT.setResultType(Long.class);
     }
 
-    private class VoucherOrderHandler implements Runnable {
-        @Override
-        public void run() {
-            while (true) {
-                try {
-                    // 1.获取消息队列中的订单信息
-                    // MapRecord是Spring data redis中的一个类，用于表示stream中的消息
-                    // XREADGROUP GROUP g1 c1 COUNT 1 BLOCK 2000 STREAMS stream.orders >
-                    // 回顾一下上面的指令，BLOCK 2000指的是如果队列中没有订单信息就阻塞2000ms等待
-                    // spring要生成争取恶的XREADGROUP指令，下面就必须对位传入这三个关键的参数
-                    List<MapRecord<String, Object, Object>> list = stringRedisTemplate.opsForStream().read(
-                            Consumer.from(GROUP_NAME, CONSUMER_NAME)
-                            // 这里StreamReadOptions.empty()是为了创建一个默认的参数
-                            , StreamReadOptions.empty().count(1).block(Duration.ofSeconds(2)),
-                            StreamOffset.create(STREAM_KEY, ReadOffset.lastConsumed()));
-
-                    // 2.判断消息是否获取成功
-                    if (list == null || list.isEmpty()) {
-                        // 没有消息，继续下一次while循环
-                        continue;
-                    }
+    // 分段库存再平衡的脚本：从一个分段取走一半库存，返回取走的数量
+    private static final DefaultRedisScript<Long> REBALANCE_SCRIPT;
+    static {
+        REBALANCE_SCRIPT = new DefaultRedisScript<>();
+        REBALANCE_SCRIPT.setLocation(new ClassPathResource("seckill_rebalance.lua"));
+        REBALANCE_SCRIPT.setResultType(Long.class);
+    }
 
-                    // 3.解析消息中的订单信息
-                    // MapRecord里的第一个成员String实际上是Redis Stream 的名称，这里是stream.order
-                    MapRecord<String, Object, Object> record = list.get(0);
-                    // 取出来的的是userId(map的key),voucherId(map的value)
-                    Map<Object, Object> values = record.getValue();
-                    // values是一个map，但是他们的键值名称分别是userId,voucherId,可以和VoucherOrder中的成员变量userId,voucherId对应
-                    // 故BeanUtil可自动填入
-                    VoucherOrder voucherOrder = BeanUtil.fillBeanWithMap(values, new VoucherOrder(), true);
-
-                    // 4.执行业务：创建订单
-                    handleVoucherOrder(voucherOrder);
-
-                    // 5.ACK确认
-                    // 温习ack就是消费者完成了任务从pendlist中确认删除这条消息记录
-                    /**
-                     * param1:redis Stream的名称
-                     * param2:处理这个消息的消费者组名
-                     * param3:record.getId() 是什么？
-                     * record.getId() 获取的是当前被读取到的那条消息在 Stream 中的唯一标识符（ID）。
-                     * 格式： 这个 ID 是一个特殊的字符串，
-                     * 格式通常是 时间戳毫秒数-序号，例如：1642999999000-0。
-                     */
-                    stringRedisTemplate.opsForStream().acknowledge(STREAM_KEY, GROUP_NAME, record.getId());
-
-                } catch (Exception e) {
-                    log.error("处理订单异常", e);
-                    // 出现异常，处理plending list中的消息
-                    handlePendingList();
-                }
+    // 取消/退款后归还redis库存的脚本，每次调用处理一张券的一个分段，返回归还的库存数
+    private static final DefaultRedisScript<Long> RETURN_SCRIPT;
+    static {
+        RETURN_SCRIPT = new DefaultRedisScript<>();
+        RETURN_SCRIPT.setLocation(new ClassPathResource("seckill_return.lua"));
+        RETURN_SCRIPT.setResultType(Long.class);
+    }
+
+    /**
+     * 将一批订单幂等地写入数据库
+     * XACK失败、消费者重启或者消息被其他消费者认领后，同一条消息会被再次投递，
+     * 先查出已经存在的订单，剩下的用 INSERT IGNORE 批量写入，只为真正插入的订单扣减库存
+     * @param voucherOrders 订单列表
+     * @return 落库结果，重复的订单也算处理成功，由调用方一起ACK
+     */
+    @Override
+    @Transactional
+    public SeckillPersistResult saveSeckillOrders(List<VoucherOrder> voucherOrders) {
+        // 订单插入和库存扣减放在同一个事务中，保证数据库中的库存和订单数一致
+        SeckillPersistResult result = new SeckillPersistResult();
+        // 1.一次查询找出订单id已存在、或者同一用户同一张券已有订单的记录
+        Set<Long> ids = new HashSet<>();
+        Set<Long> userIds = new HashSet<>();
+        Set<Long> voucherIds = new HashSet<>();
+        for (VoucherOrder order : voucherOrders) {
+            ids.add(order.getId());
+            userIds.add(order.getUserId());
+            voucherIds.add(order.getVoucherId());
+        }
+        Set<Long> existingIds = new HashSet<>();
+        Map<String, Long> existingPairs = new HashMap<>();
+        List<VoucherOrder> existing = query().select("id", "user_id", "voucher_id", "status")
+                .in("id", ids)
+                .or(w -> w.in("user_id", userIds).in("voucher_id", voucherIds))
+                .list();
+        for (VoucherOrder order : existing) {
+            existingIds.add(order.getId());
+            // 已取消或已退款的订单不占用一人一单的名额，用户可以重新抢购
+            if (!VoucherOrderStatus.isReleased(order.getStatus())) {
+                existingPairs.put(order.getUserId() + ":" + order.getVoucherId(), order.getId());
+            }
+        }
 
+        // 2.剔除重复的订单，批次内部的重复也一起剔除
+        List<VoucherOrder> toInsert = new ArrayList<>(voucherOrders.size());
+        for (VoucherOrder order : voucherOrders) {
+            if (existingIds.contains(order.getId())) {
+                // 之前已经落库，只是没有ACK成功
+                result.getPersistedIds().add(order.getId());
+                continue;
             }
+            Long ownerId = existingPairs.putIfAbsent(order.getUserId() + ":" + order.getVoucherId(), order.getId());
+            if (ownerId != null) {
+                // 同一用户同一张券已经有另一个订单（例如redis丢失了购买记录），不再创建
+                result.getRejectedIds().add(order.getId());
+                continue;
+            }
+            existingIds.add(order.getId());
+            toInsert.add(order);
+        }
+        if (!result.getRejectedIds().isEmpty()) {
+            log.warn("{}个订单与已有订单重复（同一用户同一张券），不再落库：{}", result.getRejectedIds().size(), result.getRejectedIds());
+        }
+        if (toInsert.isEmpty()) {
+            return result;
+        }
+
+        // 3.一条多值 INSERT IGNORE 写入剩下的订单
+        // 这里直接写数据库，不需要再判断库存和一人一单（Lua 已经做过了）
+        int inserted = getBaseMapper().insertIgnoreBatch(toInsert);
+        if (inserted != toInsert.size()) {
+            // 查询之后又被其他消费者（例如认领了同一条消息的恢复线程）插入了，回滚整批，交给逐条重试重新判断
+            throw new IllegalStateException("并发写入了重复订单，预期插入" + toInsert.size() + "条，实际" + inserted + "条");
         }
 
+        // 4.按券合并扣减数量，只扣减本次真正插入的订单，同一张券只执行一条 UPDATE ... SET stock = stock - n
+        // 按券id从小到大更新，多个事务以相同的顺序锁住库存行，不会互相等待形成死锁
+        Map<Long, Integer> deductions = new TreeMap<>();
+        for (VoucherOrder order : toInsert) {
+            deductions.merge(order.getVoucherId(), 1, Integer::sum);
+            result.getPersistedIds().add(order.getId());
+        }
+        // 库存以redis为准，这里不加 stock > 0 的条件，出现偏差由对账任务发现
+        deductions.forEach((voucherId, count) -> seckillVoucherService.update()
+                .setSql("stock = stock - " + count)
+                .eq("voucher_id", voucherId)
+                .update());
+        return result;
     }
 
-    @PostConstruct
-    private void init() {
-        // 尝试创建消费者组（如果已存在会抛异常，捕获忽略即可）
-        try {
-            stringRedisTemplate.opsForStream().createGroup(STREAM_KEY, GROUP_NAME);
-        } catch (Exception e) {
-            // 组已存在，忽略
+    @Override
+    public Result transitMyOrders(List<Long> orderIds, VoucherOrderTransition transition) {
+        if (orderIds == null || orderIds.isEmpty()) {
+            return Result.fail("订单id不能为空");
         }
-        // 启动消费者线程
-        SECKILL_ORDER_EXECUTOR.submit(new VoucherOrderHandler());
+        // 只能操作自己的订单，状态不符合的订单会被跳过，返回实际流转成功的订单id
+        List<VoucherOrder> orders = transitOrders(orderIds, transition, UserHolder.getUser().getId());
+        return Result.ok(orders.stream().map(VoucherOrder::getId).collect(Collectors.toList()));
     }
 
     /**
-     * 处理认领了但是没ACK的消息
+     * 批量流转订单状态，取消和退款在数据库事务提交后再把库存还给redis
+     * @param orderIds   订单id
+     * @param transition 状态流转
+     * @param userId     不为null时只处理该用户的订单
+     * @return 流转成功的订单
      */
-    private void handlePendingList() {
-        while (true) {
-            try {
-                // 读取 Pending List 中的消息（用 0 而不是 >）
-                List<MapRecord<String, Object, Object>> list = stringRedisTemplate.opsForStream().read(
-                        Consumer.from(GROUP_NAME, CONSUMER_NAME),
-                        StreamReadOptions.empty().count(1),
-                        StreamOffset.create(STREAM_KEY, ReadOffset.from("0")));
-
-                // 如果pending list没有消息了，说明处理完了，退出循环
-                if (list == null || list.isEmpty()) {
-                    break;
-                }
-
-                // 解析并处理,与上面的主逻辑类似，将redis stream中的消息转换为java中的MapRecord
-                // 然后将MapRecord转换为Map(下面的value),然后把value的数据填入一个新的VoucherOrder
-                MapRecord<String, Object, Object> record = list.get(0);
-                Map<Object, Object> values = record.getValue();
-                VoucherOrder voucherOrder = BeanUtil.fillBeanWithMap(values, new VoucherOrder(), true);
-
-                handleVoucherOrder(voucherOrder);
+    @Override
+    public List<VoucherOrder> transitOrders(Collection<Long> orderIds, VoucherOrderTransition transition, Long userId) {
+        // 获取代理对象（事务），事务提交后才归还redis库存，避免回滚后redis多出库存
+        IVoucherOrderService proxy = (IVoucherOrderService) AopContext.currentProxy();
+        List<VoucherOrder> orders = proxy.updateOrderStatus(orderIds, transition, userId);
+        if (orders.isEmpty()) {
+            return orders;
+        }
+        if (transition.isReturnsStock()) {
+            returnSeckillStock(orders);
+        }
+        // 已支付或已取消的订单不再需要超时取消
+        if (transition.getFrom() == VoucherOrderStatus.UNPAID) {
+            seckillOrderDelayQueue.remove(orders);
+        }
+        return orders;
+    }
 
-                // ACK
-                stringRedisTemplate.opsForStream().acknowledge(STREAM_KEY, GROUP_NAME, record.getId());
+    /**
+     * 一个事务内批量流转订单状态：锁住订单读出当前状态，一条UPDATE流转整批，取消/退款时按券合并加回数据库库存
+     */
+    @Override
+    @Transactional
+    public List<VoucherOrder> updateOrderStatus(Collection<Long> orderIds, VoucherOrderTransition transition, Long userId) {
+        int from = transition.getFrom().getCode();
+        int to = transition.getTo().getCode();
+        // 1.锁住这批订单，读出当前状态
+        List<VoucherOrder> orders = query().select("id", "user_id", "voucher_id", "status")
+                .in("id", orderIds)
+                .eq(userId != null, "user_id", userId)
+                .last("FOR UPDATE")
+                .list();
+        // 2.只流转处于起始状态的订单
+        List<VoucherOrder> matched = orders.stream()
+                .filter(order -> order.getStatus() != null && order.getStatus() == from)
+                .collect(Collectors.toList());
+        if (matched.isEmpty()) {
+            return matched;
+        }
+        // 3.一条UPDATE流转整批订单
+        update().set("status", to)
+                .set(transition.getTimeColumn() != null, transition.getTimeColumn(), LocalDateTime.now())
+                .in("id", matched.stream().map(VoucherOrder::getId).collect(Collectors.toList()))
+                .eq("status", from)
+                .update();
+        // 4.取消/退款：按券合并，每张券一条 UPDATE ... SET stock = stock + n，和落库时一样按券id从小到大加锁
+        if (transition.isReturnsStock()) {
+            Map<Long, Integer> returns = new TreeMap<>();
+            for (VoucherOrder order : matched) {
+                returns.merge(order.getVoucherId(), 1, Integer::sum);
+            }
+            returns.forEach((voucherId, count) -> seckillVoucherService.update()
+                    .setSql("stock = stock + " + count)
+                    .eq("voucher_id", voucherId)
+                    .update());
+        }
+        matched.forEach(order -> order.setStatus(to));
+        return matched;
+    }
 
-            } catch (Exception e) {
-                log.error("在处理pleanding list中出现错误", e);
-                try {
-                    Thread.sleep(50);// 休息一下再重试
-                } catch (InterruptedException ex) {
-                    Thread.currentThread().interrupt();
+    /**
+     * 归还redis库存：按券和用户所在的分段分组，每组一条EVALSHA seckill_return.lua，只带这个分段的库存key和下单用户集合key，
+     * 所有分组放在一个管道里；把用户移出下单集合并加回库存，然后通知各节点清除本地售罄标记
+     * 取消/退款的订单在事务提交后调用，没能落库而转入死信队列的订单在标记失败之前调用
+     */
+    @Override
+    public void returnSeckillStock(List<VoucherOrder> orders) {
+        if (orders.isEmpty()) {
+            return;
+        }
+        // 1.按 券id -> 分段号 -> 用户id 分组
+        Map<Long, Map<Integer, List<String>>> usersBySegment = new LinkedHashMap<>();
+        for (VoucherOrder order : orders) {
+            int segments = seckillWindowRegistry.segments(order.getVoucherId());
+            usersBySegment.computeIfAbsent(order.getVoucherId(), k -> new TreeMap<>())
+                    .computeIfAbsent(SeckillStockKeys.homeSegment(order.getUserId(), segments), k -> new ArrayList<>())
+                    .add(order.getUserId().toString());
+        }
+        // 2.每个分段一条调用：KEYS[1] 库存key，KEYS[2] 下单用户集合key，ARGV 用户id...
+        List<Long> voucherOfCall = new ArrayList<>();
+        List<String[]> calls = new ArrayList<>();
+        usersBySegment.forEach((voucherId, bySegment) -> {
+            int segments = seckillWindowRegistry.segments(voucherId);
+            bySegment.forEach((segment, userIds) -> {
+                String[] keysAndArgs = new String[2 + userIds.size()];
+                keysAndArgs[0] = SeckillStockKeys.stockKey(voucherId, segment, segments);
+                keysAndArgs[1] = SeckillStockKeys.orderSetKey(voucherId, segment, segments);
+                for (int i = 0; i < userIds.size(); i++) {
+                    keysAndArgs[2 + i] = userIds.get(i);
                 }
+                calls.add(keysAndArgs);
+                voucherOfCall.add(voucherId);
+            });
+        });
+        List<Long> returned;
+        try {
+            returned = executePipelined(RETURN_SCRIPT, 2, calls);
+        } catch (Exception e) {
+            // 数据库已经提交，redis中没有还上的库存由对账任务发现
+            log.error("归还秒杀券{}的redis库存失败", usersBySegment.keySet(), e);
+            return;
+        }
+        // 3.确实还了库存的券广播清除售罄标记
+        Set<Long> replenished = new LinkedHashSet<>();
+        for (int i = 0; i < calls.size(); i++) {
+            if (returned.get(i) != null && returned.get(i) > 0) {
+                replenished.add(voucherOfCall.get(i));
             }
         }
+        replenished.forEach(seckillSoldOutRegistry::publishReplenished);
     }
 
-    // 将订单写入数据库
-    private void handleVoucherOrder(VoucherOrder voucherOrder) {
-        // 这里直接写数据库，不需要再判断库存和一人一单（Lua 已经做过了）
-        save(voucherOrder);
+    /**
+     * 落库时因为同一用户同一张券已有另一个订单而拒绝的订单：lua已经为它扣了一个redis库存，把这个库存还到用户所在的分段，
+     * 并移出支付超时队列；用户确实持有另一个订单，所以不移出下单用户集合
+     * 先把状态改为失败再还库存，消息重复投递时已经是失败状态的订单不会重复归还
+     */
+    @Override
+    public void releaseRejectedOrders(List<VoucherOrder> orders, Collection<Long> rejectedIds) {
+        if (rejectedIds.isEmpty()) {
+            return;
+        }
+        // 1.剔除之前已经处理过的订单
+        Set<Long> ids = new HashSet<>(rejectedIds);
+        List<VoucherOrder> rejected = new ArrayList<>(ids.size());
+        for (VoucherOrder order : orders) {
+            if (ids.remove(order.getId()) && seckillOrderStateStore.get(order.getId()) != SeckillOrderState.FAILED) {
+                rejected.add(order);
+            }
+        }
+        if (rejected.isEmpty()) {
+            return;
+        }
+        // 2.标记失败，移出支付超时队列
+        seckillOrderStateStore.update(rejected, SeckillOrderState.FAILED);
+        seckillOrderDelayQueue.remove(rejected);
+        // 3.每个订单还一个库存，分段key可能在不同的slot上，用管道逐个INCRBY
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection conn = (StringRedisConnection) connection;
+            for (VoucherOrder order : rejected) {
+                int segments = seckillWindowRegistry.segments(order.getVoucherId());
+                conn.incrBy(SeckillStockKeys.stockKey(order.getVoucherId(),
+                        SeckillStockKeys.homeSegment(order.getUserId(), segments), segments), 1);
+            }
+            return null;
+        });
+        rejected.stream().map(VoucherOrder::getVoucherId).distinct().forEach(seckillSoldOutRegistry::publishReplenished);
     }
 
     @Override
     public Result seckillVoucher(Long voucherId) {
+        // 0.先在本地判断是否在售卖时间段内、是否已经售罄，不满足的直接返回，不再申请订单id和执行lua脚本
+        long now = System.currentTimeMillis();
+        int window = seckillWindowRegistry.check(voucherId, now);
+        if (window != SeckillWindowRegistry.IN_WINDOW) {
+            return Result.fail(window == SeckillWindowRegistry.NOT_STARTED ? "活动尚未开始" : "活动已结束");
+        }
+        if (seckillSoldOutRegistry.isSoldOut(voucherId)) {
+            return Result.fail("库存不足,下单失败");
+        }
+        long soldOutEpoch = seckillSoldOutRegistry.epoch();
         // 获取用户id
         Long userId = UserHolder.getUser().getId();
-        Long orderId = redisWorker.nextId("order");
-        // 1.执行lua脚本，也就是判断当前用户能否买票，
-        // 并且lua脚本调用的redis的xadd方法在redis中创建了stream
-        // 把符合条件的扔到stream上
-        //
-        Long result = stringRedisTemplate.execute(
-                SEKILL_SCRIPT,
-                Collections.emptyList(),
-                voucherId.toString(), userId.toString(),
-                orderId.toString());
+        Long orderId = idGenerator.nextId("order");
+        // 1.执行lua脚本，也就是判断当前用户能否买票：售卖时间段、库存、一人一单，通过后扣减库存并记录下单用户
+        // 分段模式下用户固定在自己的分段里判断一人一单，这个分段空了就从其他分段挪一部分库存过来再试
+        int segments = seckillWindowRegistry.segments(voucherId);
+        int home = SeckillStockKeys.homeSegment(userId, segments);
+        List<String> keys = Arrays.asList(seckillKeys(voucherId, home, segments));
+        int res = stringRedisTemplate.execute(SEKILL_SCRIPT, keys, userId.toString(), String.valueOf(now)).intValue();
+        // 所有分段都没有库存了，才能标记售罄
+        boolean drained = segments <= 1;
+        for (int i = 1; res == 1 && !drained && i < segments; i++) {
+            if (rebalance(voucherId, home, segments)) {
+                res = stringRedisTemplate.execute(SEKILL_SCRIPT, keys, userId.toString(), String.valueOf(now)).intValue();
+            } else {
+                drained = true;
+            }
+        }
 
         // 2.判断结果是否为0
-        int res = result.intValue();
         // 2.1 不为0，没有购买资格
         if (res != 0) {
-            return Result.fail(res == 1 ? "库存不足,下单失败" : "一人可购一单");
+            if (res == 1 && drained) {
+                // 库存不足，本地标记售罄，后续请求不再访问redis
+                seckillSoldOutRegistry.markSoldOut(voucherId, soldOutEpoch);
+            }
+            return Result.fail(seckillErrorMsg(res));
         }
 
-        // TODO 加入到阻塞队列
+        // 2.2 为0，把订单消息、排队状态和支付超时写入redis，由消费者异步落库
+        VoucherOrder order = new VoucherOrder().setId(orderId).setUserId(userId).setVoucherId(voucherId);
+        if (!enqueueOrders(Collections.singletonList(order), now)) {
+            return Result.fail("下单失败，请重试");
+        }
 
         // 3. 返回订单id
         return Result.ok(orderId);
     }
 
+    /**
+     * 一次抢购多张秒杀券：一次申请全部订单id，每张券各执行一次seckill.lua，所有调用放在一个管道里发送
+     * 每张券的库存和一人一单各自原子地判断，券与券之间不是原子的：可能只抢到其中一部分，按券分别返回结果
+     * 分段的券在用户所在分段库存不足时先挪库存，再发起下一轮管道重试，最多重试 分段数-1 轮
+     * 抢到的券最后用一个管道发送订单消息，发送失败时这些券都还回库存并返回失败
+     * @param voucherIds 优惠券id列表
+     * @return 每张券的抢购结果，顺序和请求一致，重复的券只抢一次
+     */
+    @Override
+    public Result seckillVouchers(List<Long> voucherIds) {
+        if (voucherIds == null || voucherIds.isEmpty()) {
+            return Result.fail("优惠券id不能为空");
+        }
+        List<Long> distinct = new ArrayList<>(new LinkedHashSet<>(voucherIds));
+        if (distinct.size() > batchMaxVouchers) {
+            return Result.fail("一次最多抢购" + batchMaxVouchers + "张券");
+        }
+        // 0.先在本地过滤不在售卖时间段内和已经售罄的券
+        long now = System.currentTimeMillis();
+        long soldOutEpoch = seckillSoldOutRegistry.epoch();
+        Map<Long, SeckillVoucherResult> results = new LinkedHashMap<>();
+        List<Long> candidates = new ArrayList<>(distinct.size());
+        for (Long voucherId : distinct) {
+            int window = seckillWindowRegistry.check(voucherId, now);
+            if (window != SeckillWindowRegistry.IN_WINDOW) {
+                results.put(voucherId, new SeckillVoucherResult(voucherId, null, seckillErrorMsg(window)));
+            } else if (seckillSoldOutRegistry.isSoldOut(voucherId)) {
+                results.put(voucherId, new SeckillVoucherResult(voucherId, null, seckillErrorMsg(1)));
+            } else {
+                results.put(voucherId, null);
+                candidates.add(voucherId);
+            }
+        }
+        if (candidates.isEmpty()) {
+            return Result.ok(new ArrayList<>(results.values()));
+        }
+        // 1.一次申请所有订单id
+        Long userId = UserHolder.getUser().getId();
+        long[] orderIds = idGenerator.nextIds("order", candidates.size());
+        // 2.每张券执行一次seckill.lua，所有券的调用放在一个管道里，只有一次往返；
+        // 分段的券在用户所在的分段库存不足时，从其他分段挪一部分库存过来，下一轮再试
+        int[] codes = new int[candidates.size()];
+        int[] segments = new int[candidates.size()];
+        int[] homes = new int[candidates.size()];
+        boolean[] drained = new boolean[candidates.size()];
+        List<Integer> pending = new ArrayList<>(candidates.size());
+        for (int i = 0; i < candidates.size(); i++) {
+            segments[i] = seckillWindowRegistry.segments(candidates.get(i));
+            homes[i] = SeckillStockKeys.homeSegment(userId, segments[i]);
+            drained[i] = segments[i] <= 1;
+            pending.add(i);
+        }
+        for (int round = 0; !pending.isEmpty(); round++) {
+            List<String[]> calls = new ArrayList<>(pending.size());
+            for (int i : pending) {
+                String[] keys = seckillKeys(candidates.get(i), homes[i], segments[i]);
+                calls.add(new String[]{keys[0], keys[1], keys[2], userId.toString(), String.valueOf(now)});
+            }
+            List<Long> returned = executePipelined(SEKILL_SCRIPT, 3, calls);
+            List<Integer> next = new ArrayList<>();
+            for (int j = 0; j < pending.size(); j++) {
+                int i = pending.get(j);
+                codes[i] = returned.get(j).intValue();
+                if (codes[i] != 1 || drained[i] || round + 1 >= segments[i]) {
+                    continue;
+                }
+                if (rebalance(candidates.get(i), homes[i], segments[i])) {
+                    next.add(i);
+                } else {
+                    drained[i] = true;
+                }
+            }
+            pending = next;
+        }
+        // 3.抢到的券一起发送订单消息
+        List<VoucherOrder> orders = new ArrayList<>();
+        for (int i = 0; i < candidates.size(); i++) {
+            if (codes[i] == 0) {
+                orders.add(new VoucherOrder().setId(orderIds[i]).setUserId(userId).setVoucherId(candidates.get(i)));
+            }
+        }
+        boolean enqueued = orders.isEmpty() || enqueueOrders(orders, now);
+        // 4.按券整理结果
+        for (int i = 0; i < candidates.size(); i++) {
+            Long voucherId = candidates.get(i);
+            int res = codes[i];
+            if (res == 0) {
+                results.put(voucherId, enqueued ? new SeckillVoucherResult(voucherId, orderIds[i], null)
+                        : new SeckillVoucherResult(voucherId, null, "下单失败，请重试"));
+                continue;
+            }
+            if (res == 1 && drained[i]) {
+                seckillSoldOutRegistry.markSoldOut(voucherId, soldOutEpoch);
+            }
+            results.put(voucherId, new SeckillVoucherResult(voucherId, null, seckillErrorMsg(res)));
+        }
+        return Result.ok(new ArrayList<>(results.values()));
+    }
+
+    /**
+     * @return seckill.lua的KEYS：分段的库存key、下单用户集合key、售卖时间段hash，三个key在同一个slot
+     */
+    private static String[] seckillKeys(Long voucherId, int segment, int segments) {
+        return new String[]{
+                SeckillStockKeys.stockKey(voucherId, segment, segments),
+                SeckillStockKeys.orderSetKey(voucherId, segment, segments),
+                SeckillStockKeys.windowKey(voucherId, segment, segments)};
+    }
+
+    /**
+     * 用户所在的分段没有库存了：依次从其他分段取走一半库存加到这个分段上
+     * 取走和加上是两个slot上的两条命令，中间进程崩溃会少掉这部分库存，由对账任务发现
+     * @return 挪到了库存返回true，所有分段都没有库存时返回false
+     */
+    private boolean rebalance(Long voucherId, int home, int segments) {
+        for (int i = 1; i < segments; i++) {
+            Long taken = stringRedisTemplate.execute(REBALANCE_SCRIPT,
+                    Collections.singletonList(SeckillStockKeys.stockKey(voucherId, (home + i) % segments, segments)));
+            if (taken != null && taken > 0) {
+                stringRedisTemplate.opsForValue().increment(SeckillStockKeys.stockKey(voucherId, home, segments), taken);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 抢单成功后用一个管道写入：排队中的订单状态、支付超时延时队列，最后是订单消息
+     * 这几个key和库存分段不在同一个slot，所以不在seckill.lua中写；
+     * 写入失败时订单可能没有发出去，把库存和一人一单的名额还回去，订单标记失败并移出延时队列。
+     * 极少数情况下消息其实已经写入(只是没有收到回复)，订单仍会落库，多还的库存由对账任务发现
+     * @return 是否写入成功
+     */
+    private boolean enqueueOrders(List<VoucherOrder> orders, long now) {
+        long payTimeout = seckillOrderDelayQueue.getPayTimeoutMillis();
+        try {
+            stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                StringRedisConnection conn = (StringRedisConnection) connection;
+                for (VoucherOrder order : orders) {
+                    String orderId = order.getId().toString();
+                    int shard = (int) (order.getVoucherId() % orderShards);
+                    // 1.订单状态为排队中，状态后面跟着下单用户，只有下单用户能查询
+                    String stateKey = SeckillOrderStateStore.bucketKey(order.getId());
+                    conn.hSet(stateKey, orderId, SeckillOrderState.QUEUED.getCode() + order.getUserId());
+                    conn.expire(stateKey, seckillOrderStateStore.getStateTtlSeconds());
+                    // 2.加入支付超时延时队列, ZADD seckill:order:delay:{shard} 截止时间 订单id
+                    if (payTimeout > 0) {
+                        conn.zAdd(SeckillOrderDelayQueue.key(shard), now + payTimeout, orderId);
+                    }
+                    // 3.发送消息到分片队列中, XADD stream.orders:{shard} * k1 v1 k2 v2
+                    Map<String, String> message = new HashMap<>();
+                    message.put("userId", order.getUserId().toString());
+                    message.put("voucherId", order.getVoucherId().toString());
+                    message.put("id", orderId);
+                    conn.xAdd(RedisConstants.SECKILL_ORDER_STREAM_KEY + shard, message);
+                }
+                return null;
+            });
+            return true;
+        } catch (Exception e) {
+            log.error("发送秒杀订单消息失败，归还库存：{}", orders.stream().map(VoucherOrder::getId).collect(Collectors.toList()), e);
+        }
+        returnSeckillStock(orders);
+        try {
+            seckillOrderStateStore.update(orders, SeckillOrderState.FAILED);
+            seckillOrderDelayQueue.remove(orders);
+        } catch (Exception e) {
+            log.error("标记秒杀订单失败时出错", e);
+        }
+        return false;
+    }
+
+    /**
+     * 用管道一次发送多条 EVALSHA，每条调用只带同一个slot中的key
+     * redis丢了脚本(例如重启)时整个管道的EVALSHA都返回NOSCRIPT、都没有执行，SCRIPT LOAD之后重发一次
+     * @param script  返回整数的脚本
+     * @param numKeys 每条调用中key的个数
+     * @param calls   每条调用的 KEYS..., ARGV...
+     * @return 每条调用的结果，顺序和calls一致
+     */
+    private List<Long> executePipelined(DefaultRedisScript<Long> script, int numKeys, List<String[]> calls) {
+        List<Object> results;
+        try {
+            results = evalPipelined(script, numKeys, calls);
+        } catch (RedisPipelineException e) {
+            if (!isNoScript(e)) {
+                throw e;
+            }
+            byte[] body = script.getScriptAsString().getBytes(StandardCharsets.UTF_8);
+            stringRedisTemplate.execute((RedisCallback<String>) connection -> connection.scriptingCommands().scriptLoad(body));
+            results = evalPipelined(script, numKeys, calls);
+        }
+        List<Long> codes = new ArrayList<>(results.size());
+        results.forEach(result -> codes.add((Long) result));
+        return codes;
+    }
+
+    private List<Object> evalPipelined(DefaultRedisScript<Long> script, int numKeys, List<String[]> calls) {
+        return stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection conn = (StringRedisConnection) connection;
+            for (String[] keysAndArgs : calls) {
+                conn.evalSha(script.getSha1(), ReturnType.INTEGER, numKeys, keysAndArgs);
+            }
+            return null;
+        });
+    }
+
+    private static boolean isNoScript(Throwable e) {
+        for (Throwable t = e; t != null; t = t.getCause()) {
+            if (t.getMessage() != null && t.getMessage().contains("NOSCRIPT")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @param res 秒杀脚本的返回值
+     * @return 返回给用户的失败原因
+     */
+    private static String seckillErrorMsg(int res) {
+        switch (res) {
+            case 1:
+                return "库存不足,下单失败";
+            case SeckillWindowRegistry.NOT_STARTED:
+                return "活动尚未开始";
+            case SeckillWindowRegistry.ENDED:
+                return "活动已结束";
+            default:
+                return "一人可购一单";
+        }
+    }
+
+    @Override
+    public Result queryOrderState(Long orderId) {
+        // 只能查询自己的订单，别人的订单和不存在的订单返回同样的结果
+        Long userId = UserHolder.getUser().getId();
+        // 1.先查redis中的状态记录，记录中带着下单用户
+        SeckillOrderState state = seckillOrderStateStore.get(orderId, userId);
+        if (state != null) {
+            return Result.ok(state);
+        }
+        // 2.查不到，并且订单还在状态记录的保留时间内，说明订单不存在或者不是自己的，不用查数据库
+        if (!seckillOrderStateStore.mayBeExpired(orderId)) {
+            return Result.fail("订单不存在");
+        }
+        // 3.状态记录已经过期的老订单，查数据库
+        boolean owned = query().eq("id", orderId).eq("user_id", userId).count() > 0;
+        return owned ? Result.ok(SeckillOrderState.PERSISTED) : Result.fail("订单不存在");
+    }
+
     /*
      * @Override
      * 
@@ -290,7 +745,7 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
     public Result createSeckillVoucher(Long voucherId) {
         // 6.1订单id
         VoucherOrder voucherOrder = new VoucherOrder();
-        long id = redisWorker.nextId("order");// 获取唯一的订单id
+        long id = idGenerator.nextId("order");// 获取唯一的订单id
         voucherOrder.setId(id);
         // 6.2用户id
         Long userId = UserHolder.getUser().getId();
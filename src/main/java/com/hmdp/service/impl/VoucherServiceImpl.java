@@ -7,10 +7,15 @@ import com.hmdp.entity.Voucher;
 import com.hmdp.mapper.VoucherMapper;
 import com.hmdp.service.ISeckillVoucherService;
 import com.hmdp.service.IVoucherService;
-import com.hmdp.utils.RedisConstants;
+import com.hmdp.utils.SeckillSoldOutRegistry;
+import com.hmdp.utils.SeckillStockKeys;
+import com.hmdp.utils.SeckillWindowRegistry;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
 
 import javax.annotation.Resource;
 import java.util.List;
@@ -32,6 +37,16 @@ public class VoucherServiceImpl extends ServiceImpl<VoucherMapper, Voucher> impl
     @Resource
     private StringRedisTemplate stringRedisTemplate;
 
+    @Resource
+    private SeckillSoldOutRegistry seckillSoldOutRegistry;
+
+    @Resource
+    private SeckillWindowRegistry seckillWindowRegistry;
+
+    // 新建秒杀券时库存拆分的段数，1表示不分段；热门券拆成多段可以分散到集群的不同slot上
+    @Value("${hmdp.seckill.stock.segments:1}")
+    private int stockSegments;
+
     @Override
     public Result queryVoucherOfShop(Long shopId) {
         // 查询优惠券信息
@@ -54,9 +69,58 @@ public class VoucherServiceImpl extends ServiceImpl<VoucherMapper, Voucher> impl
         seckillVoucher.setEndTime(voucher.getEndTime());
         seckillVoucherService.save(seckillVoucher);
 
-        //3.redis优化，添加秒杀库存到redis中
-        //这里SEKILL_STOCK_KEY是前缀，voucher.getId()是优惠券的id，是数据库中自动维护的自增id
-        stringRedisTemplate.opsForValue().set(RedisConstants.SEKILL_STOCK_KEY+voucher.getId(),voucher.getStock().toString());
+        //3.redis优化，事务提交后再添加秒杀库存和售卖时间段到redis中，避免回滚后redis中留下数据库里没有的券
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+            @Override
+            public void afterCommit() {
+                initRedisStock(voucher);
+            }
+        });
+    }
+
+    private void initRedisStock(Voucher voucher) {
+        //1.添加秒杀库存到redis中，voucher.getId()是优惠券的id，是数据库中自动维护的自增id
+        //分段模式下库存拆到多个子key上，分段数记录在元数据hash中，下单时由java选出用户所在分段的key
+        //各分段key在集群的不同slot上，所以逐个SET而不是MSET
+        SeckillStockKeys.splitStock(voucher.getId(), voucher.getStock(), stockSegments)
+                .forEach((key, stock) -> stringRedisTemplate.opsForValue().set(key, stock.toString()));
+        stringRedisTemplate.opsForHash().put(SeckillStockKeys.metaKey(voucher.getId()),
+                SeckillStockKeys.SEGMENTS_FIELD, String.valueOf(stockSegments));
+        //2.售卖时间段写入元数据和每个分段，由seckill.lua和本地副本拒绝时间段外的请求
+        seckillWindowRegistry.publish(voucher.getId(), stockSegments, voucher.getBeginTime(), voucher.getEndTime());
+    }
+
+    @Override
+    @Transactional
+    public void addSeckillStock(Long voucherId, Integer count) {
+        // 1. 数据库库存增加
+        boolean success = seckillVoucherService.update()
+                .setSql("stock = stock + " + count)
+                .eq("voucher_id", voucherId)
+                .update();
+        if (!success) {
+            throw new IllegalArgumentException("秒杀券不存在: " + voucherId);
+        }
+        // 2. 事务提交后再加redis库存并广播，避免回滚后redis多出数据库中没有的库存
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+            @Override
+            public void afterCommit() {
+                addRedisStock(voucherId, count);
+            }
+        });
+    }
 
+    private void addRedisStock(Long voucherId, Integer count) {
+        // 1. redis库存增加，分段模式下平均加到各个分段上
+        Object segments = stringRedisTemplate.opsForHash().get(SeckillStockKeys.metaKey(voucherId),
+                SeckillStockKeys.SEGMENTS_FIELD);
+        int n = segments == null ? 1 : Integer.parseInt(segments.toString());
+        SeckillStockKeys.splitStock(voucherId, count, n).forEach((key, stock) -> {
+            if (stock > 0) {
+                stringRedisTemplate.opsForValue().increment(key, stock);
+            }
+        });
+        // 2. 广播清除所有节点的本地售罄标记
+        seckillSoldOutRegistry.publishReplenished(voucherId);
     }
 }
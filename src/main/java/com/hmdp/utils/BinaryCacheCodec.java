@@ -0,0 +1,482 @@
+package com.hmdp.utils;
+
+import cn.hutool.json.JSONUtil;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Primary;
+import org.springframework.stereotype.Component;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 紧凑的二进制编码，按类的字段顺序写值，不写字段名
+ * 格式：magic(1) kind(1) [逻辑过期时间(8，只有带过期时间的值有)] schema哈希(4) 正文
+ * 正文：null位图 + 每个非null字段的值，整数用zigzag变长编码，时间用epoch秒 + 纳秒
+ * 逻辑过期时间在固定位置，判断是否过期只读8个字节，不用解码对象
+ * schema哈希由字段名和类型计算，类的字段变化后旧的缓存解码时抛出异常，由CacheClient当作未命中重建
+ * 不是普通Java Bean的值(字符串、数字、Map等)和redis中原有的JSON数据都交给JSON编码处理，两种格式可以共存
+ */
+@Primary
+@Component
+@ConditionalOnProperty(name = "hmdp.cache.codec", havingValue = "binary")
+public class BinaryCacheCodec implements CacheCodec {
+
+    private static final byte MAGIC = (byte) 0xCB;
+    private static final byte KIND_OBJECT = 1;
+    private static final byte KIND_LIST = 2;
+    private static final byte KIND_EXPIRE = 3;
+    // 逻辑过期时间在头部的位置
+    private static final int EXPIRE_OFFSET = 2;
+
+    private final JsonCacheCodec json = new JsonCacheCodec();
+
+    private final Map<Class<?>, Schema> schemas = new ConcurrentHashMap<>();
+
+    @Override
+    public byte[] encode(Object value) {
+        if (value instanceof Collection) {
+            Collection<?> elements = (Collection<?>) value;
+            Schema schema = elementSchema(elements);
+            if (schema == null) {
+                return json.encode(value);
+            }
+            Output out = new Output(64 * Math.max(1, elements.size()));
+            out.writeByte(MAGIC);
+            out.writeByte(KIND_LIST);
+            out.writeInt(schema.hash);
+            out.writeVarLong(elements.size());
+            for (Object element : elements) {
+                schema.write(element, out);
+            }
+            return out.toByteArray();
+        }
+        Schema schema = value == null ? null : schema(value.getClass());
+        if (schema == null) {
+            return json.encode(value);
+        }
+        Output out = new Output(128);
+        out.writeByte(MAGIC);
+        out.writeByte(KIND_OBJECT);
+        out.writeInt(schema.hash);
+        schema.write(value, out);
+        return out.toByteArray();
+    }
+
+    @Override
+    public <T> T decode(byte[] data, Class<T> type) {
+        if (data[0] != MAGIC) {
+            return json.decode(data, type);
+        }
+        Input in = new Input(data, 1);
+        checkKind(in.readByte(), KIND_OBJECT);
+        return readObject(in, type);
+    }
+
+    @Override
+    public <T> List<T> decodeList(byte[] data, Class<T> elementType) {
+        if (data[0] != MAGIC) {
+            return json.decodeList(data, elementType);
+        }
+        Input in = new Input(data, 1);
+        checkKind(in.readByte(), KIND_LIST);
+        Schema schema = requireSchema(elementType, in.readInt());
+        int size = (int) in.readVarLong();
+        List<T> list = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            list.add(elementType.cast(schema.read(in)));
+        }
+        return list;
+    }
+
+    @Override
+    public byte[] encodeWithExpire(Object value, long expireAtMillis) {
+        Schema schema = value == null ? null : schema(value.getClass());
+        if (schema == null) {
+            return json.encodeWithExpire(value, expireAtMillis);
+        }
+        Output out = new Output(128);
+        out.writeByte(MAGIC);
+        out.writeByte(KIND_EXPIRE);
+        out.writeLong(expireAtMillis);
+        out.writeInt(schema.hash);
+        schema.write(value, out);
+        return out.toByteArray();
+    }
+
+    @Override
+    public long expireAt(byte[] data) {
+        if (data[0] != MAGIC) {
+            return json.expireAt(data);
+        }
+        checkKind(data[1], KIND_EXPIRE);
+        return new Input(data, EXPIRE_OFFSET).readLong();
+    }
+
+    @Override
+    public <T> T decodeWithExpire(byte[] data, Class<T> type) {
+        if (data[0] != MAGIC) {
+            return json.decodeWithExpire(data, type);
+        }
+        checkKind(data[1], KIND_EXPIRE);
+        return readObject(new Input(data, EXPIRE_OFFSET + 8), type);
+    }
+
+    private <T> T readObject(Input in, Class<T> type) {
+        Schema schema = requireSchema(type, in.readInt());
+        return type.cast(schema.read(in));
+    }
+
+    private static void checkKind(byte kind, byte expected) {
+        if (kind != expected) {
+            throw new IllegalStateException("缓存数据类型不匹配: " + kind + "，期望" + expected);
+        }
+    }
+
+    private Schema requireSchema(Class<?> type, int hash) {
+        Schema schema = schema(type);
+        if (schema == null || schema.hash != hash) {
+            throw new IllegalStateException("缓存数据的字段和" + type.getName() + "不一致");
+        }
+        return schema;
+    }
+
+    /**
+     * 集合中所有元素都是同一个Bean类型时返回它的schema，否则返回null
+     */
+    private Schema elementSchema(Collection<?> elements) {
+        Class<?> type = null;
+        for (Object element : elements) {
+            if (element == null || (type != null && element.getClass() != type)) {
+                return null;
+            }
+            type = element.getClass();
+        }
+        return type == null ? null : schema(type);
+    }
+
+    /**
+     * @return 类的schema，不是普通Java Bean(没有无参构造方法、或者是JDK的类)时返回null
+     */
+    private Schema schema(Class<?> type) {
+        Schema schema = schemas.get(type);
+        if (schema == null) {
+            schema = Schema.of(type);
+            schemas.put(type, schema);
+        }
+        return schema.fields == null ? null : schema;
+    }
+
+    private enum FieldKind {
+        LONG, INT, SHORT, BYTE, BOOLEAN, DOUBLE, FLOAT, STRING, LOCAL_DATE_TIME, LOCAL_DATE, OTHER;
+
+        static FieldKind of(Class<?> type) {
+            if (type == Long.class || type == long.class) {
+                return LONG;
+            } else if (type == Integer.class || type == int.class) {
+                return INT;
+            } else if (type == Short.class || type == short.class) {
+                return SHORT;
+            } else if (type == Byte.class || type == byte.class) {
+                return BYTE;
+            } else if (type == Boolean.class || type == boolean.class) {
+                return BOOLEAN;
+            } else if (type == Double.class || type == double.class) {
+                return DOUBLE;
+            } else if (type == Float.class || type == float.class) {
+                return FLOAT;
+            } else if (type == String.class) {
+                return STRING;
+            } else if (type == LocalDateTime.class) {
+                return LOCAL_DATE_TIME;
+            } else if (type == LocalDate.class) {
+                return LOCAL_DATE;
+            }
+            // 其他类型的字段用JSON字符串保存
+            return OTHER;
+        }
+    }
+
+    /**
+     * 一个类的字段列表，按声明顺序(包括父类)，跳过static和transient字段
+     */
+    private static class Schema {
+        private final Constructor<?> constructor;
+        private final Field[] fields;
+        private final FieldKind[] kinds;
+        private final int hash;
+
+        private Schema(Constructor<?> constructor, Field[] fields, FieldKind[] kinds, int hash) {
+            this.constructor = constructor;
+            this.fields = fields;
+            this.kinds = kinds;
+            this.hash = hash;
+        }
+
+        static Schema of(Class<?> type) {
+            if (type.isPrimitive() || type.isArray() || type.isEnum() || type.isInterface()
+                    || type.getName().startsWith("java.")) {
+                return new Schema(null, null, null, 0);
+            }
+            Constructor<?> constructor;
+            try {
+                constructor = type.getDeclaredConstructor();
+                constructor.setAccessible(true);
+            } catch (NoSuchMethodException e) {
+                return new Schema(null, null, null, 0);
+            }
+            List<Field> fields = new ArrayList<>();
+            List<Class<?>> hierarchy = new ArrayList<>();
+            for (Class<?> c = type; c != null && c != Object.class; c = c.getSuperclass()) {
+                hierarchy.add(c);
+            }
+            Collections.reverse(hierarchy);
+            StringBuilder signature = new StringBuilder(type.getName());
+            for (Class<?> c : hierarchy) {
+                for (Field field : c.getDeclaredFields()) {
+                    int modifiers = field.getModifiers();
+                    if (Modifier.isStatic(modifiers) || Modifier.isTransient(modifiers) || field.isSynthetic()) {
+                        continue;
+                    }
+                    field.setAccessible(true);
+                    fields.add(field);
+                    signature.append(';').append(field.getName()).append(':').append(field.getType().getName());
+                }
+            }
+            FieldKind[] kinds = new FieldKind[fields.size()];
+            for (int i = 0; i < kinds.length; i++) {
+                kinds[i] = FieldKind.of(fields.get(i).getType());
+            }
+            return new Schema(constructor, fields.toArray(new Field[0]), kinds, signature.toString().hashCode());
+        }
+
+        void write(Object value, Output out) {
+            try {
+                Object[] values = new Object[fields.length];
+                byte[] nulls = new byte[(fields.length + 7) >>> 3];
+                for (int i = 0; i < fields.length; i++) {
+                    values[i] = fields[i].get(value);
+                    if (values[i] == null) {
+                        nulls[i >>> 3] |= (byte) (1 << (i & 7));
+                    }
+                }
+                out.writeBytes(nulls);
+                for (int i = 0; i < fields.length; i++) {
+                    if (values[i] != null) {
+                        writeValue(kinds[i], values[i], out);
+                    }
+                }
+            } catch (IllegalAccessException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        Object read(Input in) {
+            try {
+                Object value = constructor.newInstance();
+                byte[] nulls = in.readBytes((fields.length + 7) >>> 3);
+                for (int i = 0; i < fields.length; i++) {
+                    if ((nulls[i >>> 3] & (1 << (i & 7))) == 0) {
+                        fields[i].set(value, readValue(kinds[i], fields[i].getType(), in));
+                    }
+                }
+                return value;
+            } catch (ReflectiveOperationException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        private static void writeValue(FieldKind kind, Object value, Output out) {
+            switch (kind) {
+                case LONG:
+                case INT:
+                case SHORT:
+                case BYTE:
+                    out.writeVarLong(zigzag(((Number) value).longValue()));
+                    break;
+                case BOOLEAN:
+                    out.writeByte((byte) ((Boolean) value ? 1 : 0));
+                    break;
+                case DOUBLE:
+                    out.writeLong(Double.doubleToRawLongBits((Double) value));
+                    break;
+                case FLOAT:
+                    out.writeInt(Float.floatToRawIntBits((Float) value));
+                    break;
+                case STRING:
+                    out.writeString((String) value);
+                    break;
+                case LOCAL_DATE_TIME:
+                    LocalDateTime time = (LocalDateTime) value;
+                    out.writeVarLong(zigzag(time.toEpochSecond(ZoneOffset.UTC)));
+                    out.writeVarLong(time.getNano());
+                    break;
+                case LOCAL_DATE:
+                    out.writeVarLong(zigzag(((LocalDate) value).toEpochDay()));
+                    break;
+                default:
+                    out.writeString(JSONUtil.toJsonStr(value));
+            }
+        }
+
+        private static Object readValue(FieldKind kind, Class<?> type, Input in) {
+            switch (kind) {
+                case LONG:
+                    return unzigzag(in.readVarLong());
+                case INT:
+                    return (int) unzigzag(in.readVarLong());
+                case SHORT:
+                    return (short) unzigzag(in.readVarLong());
+                case BYTE:
+                    return (byte) unzigzag(in.readVarLong());
+                case BOOLEAN:
+                    return in.readByte() != 0;
+                case DOUBLE:
+                    return Double.longBitsToDouble(in.readLong());
+                case FLOAT:
+                    return Float.intBitsToFloat(in.readInt());
+                case STRING:
+                    return in.readString();
+                case LOCAL_DATE_TIME:
+                    long seconds = unzigzag(in.readVarLong());
+                    return LocalDateTime.ofEpochSecond(seconds, (int) in.readVarLong(), ZoneOffset.UTC);
+                case LOCAL_DATE:
+                    return LocalDate.ofEpochDay(unzigzag(in.readVarLong()));
+                default:
+                    return JSONUtil.toBean(in.readString(), type);
+            }
+        }
+
+        private static long zigzag(long value) {
+            return (value << 1) ^ (value >> 63);
+        }
+
+        private static long unzigzag(long value) {
+            return (value >>> 1) ^ -(value & 1);
+        }
+    }
+
+    private static class Output {
+        private byte[] buffer;
+        private int position;
+
+        Output(int capacity) {
+            buffer = new byte[capacity];
+        }
+
+        private void ensure(int length) {
+            if (position + length > buffer.length) {
+                buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, position + length));
+            }
+        }
+
+        void writeByte(byte value) {
+            ensure(1);
+            buffer[position++] = value;
+        }
+
+        void writeBytes(byte[] value) {
+            ensure(value.length);
+            System.arraycopy(value, 0, buffer, position, value.length);
+            position += value.length;
+        }
+
+        void writeInt(int value) {
+            ensure(4);
+            for (int shift = 24; shift >= 0; shift -= 8) {
+                buffer[position++] = (byte) (value >>> shift);
+            }
+        }
+
+        void writeLong(long value) {
+            ensure(8);
+            for (int shift = 56; shift >= 0; shift -= 8) {
+                buffer[position++] = (byte) (value >>> shift);
+            }
+        }
+
+        void writeVarLong(long value) {
+            ensure(10);
+            while ((value & ~0x7FL) != 0) {
+                buffer[position++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            buffer[position++] = (byte) value;
+        }
+
+        void writeString(String value) {
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            writeVarLong(bytes.length);
+            writeBytes(bytes);
+        }
+
+        byte[] toByteArray() {
+            return Arrays.copyOf(buffer, position);
+        }
+    }
+
+    private static class Input {
+        private final byte[] buffer;
+        private int position;
+
+        Input(byte[] buffer, int position) {
+            this.buffer = buffer;
+            this.position = position;
+        }
+
+        byte readByte() {
+            return buffer[position++];
+        }
+
+        byte[] readBytes(int length) {
+            byte[] bytes = Arrays.copyOfRange(buffer, position, position + length);
+            position += length;
+            return bytes;
+        }
+
+        int readInt() {
+            int value = 0;
+            for (int i = 0; i < 4; i++) {
+                value = (value << 8) | (buffer[position++] & 0xFF);
+            }
+            return value;
+        }
+
+        long readLong() {
+            long value = 0;
+            for (int i = 0; i < 8; i++) {
+                value = (value << 8) | (buffer[position++] & 0xFF);
+            }
+            return value;
+        }
+
+        long readVarLong() {
+            long value = 0;
+            for (int shift = 0; ; shift += 7) {
+                byte b = buffer[position++];
+                value |= (long) (b & 0x7F) << shift;
+                if (b >= 0) {
+                    return value;
+                }
+            }
+        }
+
+        String readString() {
+            int length = (int) readVarLong();
+            String value = new String(buffer, position, length, StandardCharsets.UTF_8);
+            position += length;
+            return value;
+        }
+    }
+}
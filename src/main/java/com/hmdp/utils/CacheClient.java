@@ -1,18 +1,40 @@
 package com.hmdp.utils;
 
+import cn.hutool.cache.CacheUtil;
+import cn.hutool.cache.impl.LRUCache;
 import cn.hutool.core.util.BooleanUtil;
-import cn.hutool.core.util.StrUtil;
-import cn.hutool.json.JSONObject;
-import cn.hutool.json.JSONUtil;
-import com.hmdp.entity.Shop;
-import com.hmdp.service.impl.ShopServiceImpl;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.RedisStringCommands;
+import org.springframework.data.redis.core.RedisCallback;
 import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.types.Expiration;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
 import org.springframework.stereotype.Component;
 
-import java.time.LocalDateTime;
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.Function;
+import java.util.function.Predicate;
 
 import static com.hmdp.service.impl.ShopServiceImpl.CACHE_REBUILD_EXECUTOR;
 
@@ -22,12 +44,121 @@ public class CacheClient {
     // 因为这个stringRedisTemplate没有交给@Resource也就是spring的对象池，所以要手动写出类构造函数
     private final StringRedisTemplate stringRedisTemplate;
 
-    public CacheClient(StringRedisTemplate stringRedisTemplate) {
+    // 值的编码方式，由hmdp.cache.codec选择，所有节点要使用同一种
+    private final CacheCodec codec;
+
+    @Resource
+    private RedisMessageListenerContainer redisMessageListenerContainer;
+
+    // 本地缓存(L1)是否开启，关闭时每次都查redis
+    @Value("${hmdp.cache.local.enabled:true}")
+    private boolean localEnabled;
+
+    // 本地缓存最多保存的key数量，超过时淘汰最久没有访问的
+    @Value("${hmdp.cache.local.capacity:10000}")
+    private int localCapacity;
+
+    // 本地缓存的最长保留时间(ms)，兜底错过失效广播的情况
+    @Value("${hmdp.cache.local.ttl-ms:60000}")
+    private long localTtlMillis;
+
+    // 本地缓存：key(前缀+id) -> 反序列化好的对象和它的逻辑过期时间，命中时不用访问redis、也不用解析json
+    // 读取时一律用 get(key, false)：默认的get会在命中时刷新存活时间，一直被访问的key就永远不会过期
+    private LRUCache<String, LocalEntry> localCache;
+
+    // 每收到一次失效消息加一，用来丢弃在失效之前读到、在失效之后才写入本地缓存的旧值
+    private final AtomicLong invalidateEpoch = new AtomicLong();
+
+    // 互斥锁重建时最长等待时间(ms)，包括等待本节点的重建结果和等待其他节点释放锁
+    @Value("${hmdp.cache.rebuild-wait-ms:3000}")
+    private long rebuildWaitMillis;
+
+    // 正在进行中的查询：key -> 结果，同一个节点上同一个key的并发请求共享一次redis查询和重建
+    private final ConcurrentHashMap<String, CompletableFuture<Object>> inFlight = new ConcurrentHashMap<>();
+
+    // 热点key探测是否开启：本节点访问量突增的key临时放入本地缓存，不再每次访问redis
+    @Value("${hmdp.cache.hot-key.enabled:true}")
+    private boolean hotKeyEnabled;
+
+    // 滑动窗口长度(ms)和分成的时间片数，热点在窗口内的访问量降下来之后冷却
+    @Value("${hmdp.cache.hot-key.window-ms:10000}")
+    private long hotKeyWindowMillis;
+
+    @Value("${hmdp.cache.hot-key.slots:5}")
+    private int hotKeySlots;
+
+    // 窗口内本节点访问多少次算热点
+    @Value("${hmdp.cache.hot-key.threshold:1000}")
+    private long hotKeyThreshold;
+
+    // 最多同时有多少个热点key
+    @Value("${hmdp.cache.hot-key.top-k:20}")
+    private int hotKeyTopK;
+
+    // 每多少次访问采样一次，1表示全部记录
+    @Value("${hmdp.cache.hot-key.sample-rate:1}")
+    private int hotKeySampleRate;
+
+    // count-min sketch每行的列数
+    @Value("${hmdp.cache.hot-key.sketch-width:2048}")
+    private int hotKeySketchWidth;
+
+    // 热点key在本地缓存中的保留时间(ms)，到期后重新读一次redis，删除缓存时通过pub/sub立即清除
+    @Value("${hmdp.cache.hot-key.ttl-ms:2000}")
+    private long hotKeyTtlMillis;
+
+    private HotKeyDetector hotKeyDetector;
+
+    // 逻辑过期时间的随机抖动比例，0.1表示在 ±10% 内随机，避免同一批写入的key同时过期
+    @Value("${hmdp.cache.logic-expire.jitter:0.1}")
+    private double expireJitter;
+
+    // 提前刷新(XFetch)的系数beta，越大越早刷新，0表示只在过期后重建
+    @Value("${hmdp.cache.logic-expire.early-refresh-beta:1.0}")
+    private double earlyRefreshBeta;
+
+    // 每种key(前缀)重建一次的耗时(ns)，指数加权平均，用于计算提前刷新的概率
+    private final ConcurrentHashMap<String, Long> rebuildCostNanos = new ConcurrentHashMap<>();
+
+    public CacheClient(StringRedisTemplate stringRedisTemplate, CacheCodec codec) {
         this.stringRedisTemplate = stringRedisTemplate;
+        this.codec = codec;
+    }
+
+    @PostConstruct
+    private void init() {
+        localCache = CacheUtil.newLRUCache(localCapacity, localTtlMillis);
+        if (hotKeyEnabled) {
+            hotKeyDetector = new HotKeyDetector(hotKeySketchWidth, hotKeyWindowMillis, hotKeySlots,
+                    hotKeySampleRate, hotKeyThreshold, hotKeyTopK);
+        }
+        // 订阅失效广播，任意节点删除缓存后所有节点(包括自己)清除本地缓存
+        redisMessageListenerContainer.addMessageListener((message, pattern) -> {
+            invalidateEpoch.incrementAndGet();
+            localCache.remove(new String(message.getBody(), StandardCharsets.UTF_8));
+        }, new ChannelTopic(RedisConstants.CACHE_INVALIDATE_CHANNEL));
+    }
+
+    /**
+     * 删除缓存：删除redis中的key，并广播给所有节点清除本地缓存
+     * @param key 前缀加id
+     */
+    public void delete(String key) {
+        stringRedisTemplate.delete(key);
+        invalidateEpoch.incrementAndGet();
+        localCache.remove(key);
+        stringRedisTemplate.convertAndSend(RedisConstants.CACHE_INVALIDATE_CHANNEL, key);
     }
 
     /**
-     * 这是一个通用的将object转为JSONString传入redis的工具类
+     * @return 本节点当前的热点key -> 滑动窗口内的估计访问次数，按次数从大到小；没有开启探测时为空
+     */
+    public Map<String, Long> getHotKeys() {
+        return hotKeyDetector == null ? Collections.emptyMap() : hotKeyDetector.getHotKeys();
+    }
+
+    /**
+     * 这是一个通用的将object编码后传入redis的工具类，value也可以是一个集合
      * 
      * @param key
      * @param value
@@ -35,11 +166,11 @@ public class CacheClient {
      * @param unit
      */
     public void set(String key, Object value, Long time, TimeUnit unit) {
-        stringRedisTemplate.opsForValue().set(key, JSONUtil.toJsonStr(value), time, unit);
+        setBytes(key, codec.encode(value), Expiration.from(time, unit));
     }
 
     /**
-     * 这是一个带有逻辑过期时间LogicExipireTime的，将Object转为JSONString传入redis的工具类
+     * 这是一个带有逻辑过期时间LogicExipireTime的，将Object编码后传入redis的工具类
      * 
      * @param key   前缀加id
      * @param value data的值
@@ -47,10 +178,36 @@ public class CacheClient {
      * @param unit  单位
      */
     public void setWithLogicExpire(String key, Object value, Long time, TimeUnit unit) {
-        RedisData redisData = new RedisData();
-        redisData.setData(value);
-        redisData.setExpireTime(LocalDateTime.now().plusSeconds(unit.toSeconds(time)));
-        stringRedisTemplate.opsForValue().set(key, JSONUtil.toJsonStr(redisData));
+        setBytes(key, codec.encodeWithExpire(value, logicExpireAt(time, unit)), Expiration.persistent());
+    }
+
+    /**
+     * 读取set写入的集合
+     * @return 缓存不存在或者无法解码时返回null
+     */
+    @SuppressWarnings("unchecked")
+    public <R> List<R> getList(String key, Class<R> type) {
+        // 热点key先查本地副本
+        boolean hot = recordAccess(key);
+        LocalEntry pinned = hot ? getPinned(key) : null;
+        if (pinned != null && pinned.value != null) {
+            return (List<R>) pinned.value;
+        }
+        long epoch = invalidateEpoch.get();
+        byte[] data = getBytes(key);
+        if (data == null || data.length == 0) {
+            return null;
+        }
+        try {
+            List<R> list = codec.decodeList(data, type);
+            if (hot) {
+                pin(key, list, epoch);
+            }
+            return list;
+        } catch (RuntimeException e) {
+            log.warn("缓存{}无法解码，按未命中处理", key, e);
+            return null;
+        }
     }
 
     /**
@@ -68,17 +225,48 @@ public class CacheClient {
      */
     public <R, ID> R queryWithPssThrough(String keyPrefix, ID id, Class<R> type, Function<ID, R> dbFallBack,
             Long time, TimeUnit unit) {
+        return queryWithPssThrough(keyPrefix, id, type, null, dbFallBack, time, unit);
+    }
+
+    /**
+     * 带布隆过滤器的缓存穿透处理：过滤器判断id一定不存在时直接返回，不查redis、不查数据库、也不写空值
+     * @param mightExist 布隆过滤器，为null时不过滤
+     */
+    public <R, ID> R queryWithPssThrough(String keyPrefix, ID id, Class<R> type, Predicate<ID> mightExist,
+            Function<ID, R> dbFallBack, Long time, TimeUnit unit) {
+        if (mightExist != null && !mightExist.test(id)) {
+            return null;
+        }
         String key = keyPrefix + id;
+        // 0.热点key先查本地副本，包括数据库中不存在的空值
+        boolean hot = recordAccess(key);
+        LocalEntry pinned = hot ? getPinned(key) : null;
+        if (pinned != null) {
+            return type.cast(pinned.value);
+        }
+        long epoch = invalidateEpoch.get();
+        R r = loadWithPassThrough(key, id, type, dbFallBack, time, unit);
+        if (hot) {
+            pin(key, r, epoch);
+        }
+        return r;
+    }
+
+    private <R, ID> R loadWithPassThrough(String key, ID id, Class<R> type, Function<ID, R> dbFallBack,
+            Long time, TimeUnit unit) {
         // 1.从redis查询商铺缓存
-        String shopJson = stringRedisTemplate.opsForValue().get(key);
+        byte[] data = getBytes(key);
         // 2.判断缓存是否命中】
-        if (StrUtil.isNotBlank(shopJson)) {
-            // 3.存在直接返回R 类对象给上层
-            return JSONUtil.toBean(shopJson, type);
+        if (data != null && data.length > 0) {
+            // 3.存在直接返回R 类对象给上层，无法解码(例如类的字段变了)时当作未命中，查库重建
+            R cached = decodeOrNull(key, data, type);
+            if (cached != null) {
+                return cached;
+            }
         }
 
         // 新增缓存穿透检查
-        if ("".equals(shopJson)) {
+        if (data != null && data.length == 0) {
             return null;
         }
 
@@ -99,60 +287,567 @@ public class CacheClient {
         return r;
     }
 
+    /**
+     * 互斥锁解决缓存击穿，同一个节点上的并发请求合并成一次(single-flight)：
+     * 第一个请求作为leader查redis、抢分布式锁、查数据库，其他请求等待leader的结果，不再各自轮询redis
+     * 返回的对象被同一批请求共享，调用方不能修改它
+     * @param mightExist 布隆过滤器，为null时不过滤
+     */
+    public <R, ID> R queryWithMutex(String keyPrefix, ID id, Class<R> type, Predicate<ID> mightExist,
+            Function<ID, R> dbFallBack, Long time, TimeUnit unit) {
+        if (mightExist != null && !mightExist.test(id)) {
+            return null;
+        }
+        String key = keyPrefix + id;
+        // 0.热点key先查本地副本，包括数据库中不存在的空值
+        boolean hot = recordAccess(key);
+        LocalEntry pinned = hot ? getPinned(key) : null;
+        if (pinned != null) {
+            return type.cast(pinned.value);
+        }
+        // 1.已经有同一个key的查询在进行中，等待它的结果
+        CompletableFuture<Object> flight = new CompletableFuture<>();
+        CompletableFuture<Object> leader = inFlight.putIfAbsent(key, flight);
+        if (leader != null) {
+            return type.cast(await(key, leader));
+        }
+        // 2.自己是leader，查询完成后通知所有等待的请求
+        long epoch = invalidateEpoch.get();
+        try {
+            R r = loadWithMutex(key, id, type, dbFallBack, time, unit);
+            if (hot) {
+                pin(key, r, epoch);
+            }
+            flight.complete(r);
+            return r;
+        } catch (RuntimeException e) {
+            flight.completeExceptionally(e);
+            throw e;
+        } finally {
+            inFlight.remove(key, flight);
+        }
+    }
+
+    private <R, ID> R loadWithMutex(String key, ID id, Class<R> type, Function<ID, R> dbFallBack,
+            Long time, TimeUnit unit) {
+        String lockKey = RedisConstants.LOCK_SHOP_KEY + id;
+        long deadline = System.currentTimeMillis() + rebuildWaitMillis;
+        while (true) {
+            // 1.从redis查询缓存
+            byte[] data = getBytes(key);
+            // 缓存命中空值（防穿透标记），直接返回不查库
+            if (data != null && data.length == 0) {
+                return null;
+            }
+            R cached = decodeOrNull(key, data, type);
+            if (cached != null) {
+                return cached;
+            }
+            // 2.未命中，抢分布式锁，所有节点只有一个线程查数据库
+            if (tryLock(lockKey)) {
+                try {
+                    // 2.1获取成功，再次检查缓存（Double Check）
+                    data = getBytes(key);
+                    if (data != null && data.length == 0) {
+                        return null;
+                    }
+                    cached = decodeOrNull(key, data, type);
+                    if (cached != null) {
+                        return cached;
+                    }
+                    // 2.2查数据库，不存在时写入空值防止穿透
+                    R r = dbFallBack.apply(id);
+                    if (r == null) {
+                        stringRedisTemplate.opsForValue().set(key, "", RedisConstants.CACHE_NULL_TTL, TimeUnit.MINUTES);
+                        return null;
+                    }
+                    this.set(key, r, time, unit);
+                    return r;
+                } finally {
+                    unLock(lockKey);
+                }
+            }
+            // 3.其他节点正在重建，本节点只有leader一个线程在这里等待
+            if (System.currentTimeMillis() > deadline) {
+                throw new IllegalStateException("等待缓存重建超时: " + key);
+            }
+            try {
+                Thread.sleep(50L);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("等待缓存重建被中断: " + key, e);
+            }
+        }
+    }
+
+    private Object await(String key, CompletableFuture<Object> leader) {
+        try {
+            return leader.get(rebuildWaitMillis, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("等待缓存重建被中断: " + key, e);
+        } catch (ExecutionException e) {
+            // leader查询失败，把同一个异常抛给所有等待的请求
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IllegalStateException(e.getCause());
+        } catch (TimeoutException e) {
+            throw new IllegalStateException("等待缓存重建超时: " + key, e);
+        }
+    }
+
     // 逻辑过期解决缓存击穿
     public <R, ID> R queryWithLogicExpire(String keyPrefix, ID id, Class<R> type,
             Function<ID, R> dbFallBack, Long time, TimeUnit unit) {
+        return queryWithLogicExpire(keyPrefix, id, type, null, dbFallBack, time, unit);
+    }
+
+    /**
+     * 带布隆过滤器的逻辑过期查询：过滤器判断id一定不存在时直接返回，不查本地缓存和redis
+     * @param mightExist 布隆过滤器，为null时不过滤
+     */
+    public <R, ID> R queryWithLogicExpire(String keyPrefix, ID id, Class<R> type, Predicate<ID> mightExist,
+            Function<ID, R> dbFallBack, Long time, TimeUnit unit) {
+        if (mightExist != null && !mightExist.test(id)) {
+            return null;
+        }
         String key = keyPrefix + id;
+        // 0.先查本地缓存，逻辑上没有过期就直接返回，不访问redis；本地缓存关闭时热点key也会放入本地缓存
+        // 返回的对象被所有请求共享，调用方不能修改它
+        boolean hot = recordAccess(key);
+        if (localEnabled || hot) {
+            LocalEntry entry = localCache.get(key, false);
+            if (entry != null && entry.expireAt > System.currentTimeMillis()) {
+                // 没有过期，但越接近过期越可能提前在后台重建
+                if (shouldRefreshEarly(keyPrefix, entry.expireAt)) {
+                    rebuildAsync(keyPrefix, key, id, type, entry.expireAt, dbFallBack, time, unit);
+                }
+                return type.cast(entry.value);
+            }
+        }
+        long epoch = invalidateEpoch.get();
         // 1.从redis查询商铺缓存
-        String json = stringRedisTemplate.opsForValue().get(key);
+        byte[] data = getBytes(key);
         // 2.判断缓存是否命中
-        if (StrUtil.isBlank(json)) {
+        if (data == null || data.length == 0) {
             // 3.未命中则直接返回空值
             return null;
         }
-        // 4.命中，需要判断逻辑过期时间,则需要先把json反序列化为RedisData
-        RedisData redisData = JSONUtil.toBean(json, RedisData.class);
-        R r = JSONUtil.toBean((JSONObject) redisData.getData(), type);
-        LocalDateTime expireTime = redisData.getExpireTime();
+        // 4.命中，需要判断逻辑过期时间，二进制编码的过期时间在固定位置，不用解码整个对象
+        long expireAt;
+        R r;
+        try {
+            expireAt = codec.expireAt(data);
+            r = codec.decodeWithExpire(data, type);
+        } catch (RuntimeException e) {
+            // 无法解码(例如类的字段变了)，同步查库重建，后续请求读到的就是新格式
+            log.warn("缓存{}无法解码，重新从数据库加载", key, e);
+            r = dbFallBack.apply(id);
+            this.setWithLogicExpire(key, r, time, unit);
+            return r;
+        }
         // 5.判断是否过期
-        if (expireTime.isAfter(LocalDateTime.now())) {
-            // 未过期，直接返回商铺信息,并释放锁
+        if (expireAt > System.currentTimeMillis()) {
+            // 未过期，放入本地缓存，直接返回商铺信息；越接近过期越可能提前在后台重建
+            putLocal(key, r, expireAt, epoch, hot);
+            if (shouldRefreshEarly(keyPrefix, expireAt)) {
+                rebuildAsync(keyPrefix, key, id, type, expireAt, dbFallBack, time, unit);
+            }
             return r;
         }
         // 6.过期，需要缓存重建
-        // 6.1尝试获取互斥锁
+        R newer = rebuildAsync(keyPrefix, key, id, type, expireAt, dbFallBack, time, unit);
+        // 未能成功获取锁，返回旧的商铺信息,但是因为无论失败成功都要返回店铺信息，所以留到成功之后写返回语句
+        // 7.返回
+        return newer != null ? newer : r;
+    }
+
+    /**
+     * 抢到互斥锁的话派出另一个线程从数据库重建缓存
+     * @param seenExpireAt 读到的逻辑过期时间
+     * @return 拿到锁之后发现其他线程已经重建好时返回新的值，否则返回null
+     */
+    private <R, ID> R rebuildAsync(String keyPrefix, String key, ID id, Class<R> type, long seenExpireAt,
+            Function<ID, R> dbFallBack, Long time, TimeUnit unit) {
+        // 1.尝试获取互斥锁
         String lockKey = RedisConstants.LOCK_SHOP_KEY + id;
-        boolean isLock = tryLock(lockKey);
-        if (isLock) {
-            // 6.2 成功获取锁,double check的目的是防止在获取到锁的前一瞬间redis已更新，逻辑过期时间也被更新，大于当前时间
-            String json2 = stringRedisTemplate.opsForValue().get(key);
-            if (StrUtil.isNotBlank(json2)) {
-                RedisData redisData1 = JSONUtil.toBean(json2, RedisData.class);
-                if (redisData1.getExpireTime().isAfter(LocalDateTime.now())) {
-                    // 如果取到的RedisData的逻辑过期时间大于当前，说明在刚刚拿到锁的一瞬间已经更新
+        if (!tryLock(lockKey)) {
+            return null;
+        }
+        // 2.成功获取锁,double check的目的是防止在获取到锁的前一瞬间redis已更新，逻辑过期时间比读到的新并且没有过期
+        byte[] data2 = getBytes(key);
+        if (data2 != null && data2.length > 0) {
+            try {
+                if (codec.expireAt(data2) > Math.max(seenExpireAt, System.currentTimeMillis())) {
+                    // 说明在刚刚拿到锁的一瞬间已经更新，本地缓存中的旧值也不要了
                     unLock(lockKey);
-                    return JSONUtil.toBean((JSONObject) redisData1.getData(), type);
+                    if (localCache != null) {
+                        localCache.remove(key);
+                    }
+                    return codec.decodeWithExpire(data2, type);
                 }
+            } catch (RuntimeException e) {
+                // 无法解码，交给下面的重建覆盖
+                log.warn("缓存{}无法解码，等待重建", key, e);
             }
+        }
+        // 3.派出另一个线程进行从数据库向redis缓存的刷新工作
+        CACHE_REBUILD_EXECUTOR.submit(() -> {
+            try {
+                // 查询数据库，记录耗时
+                long begin = System.nanoTime();
+                R r1 = dbFallBack.apply(id);
+                recordRebuildCost(keyPrefix, System.nanoTime() - begin);
+                // 建立redish缓存
+                this.setWithLogicExpire(key, r1, time, unit);
+                if (localCache != null) {
+                    localCache.remove(key);
+                }
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            } finally {
+                // 释放锁
+                unLock(lockKey);
+            }
+        });
+        return null;
+    }
 
-            // 派出另一个线程进行从数据库向redis缓存的刷新工作
-            CACHE_REBUILD_EXECUTOR.submit(() -> {
-                try {
-                    // 查询数据库
-                    R r1 = dbFallBack.apply(id);
-                    // 建立redish缓存
-                    this.setWithLogicExpire(key, r1, time, unit);
-                } catch (Exception e) {
-                    throw new RuntimeException(e);
-                } finally {
-                    // 释放锁
-                    unLock(lockKey);
+    /**
+     * 提前刷新(XFetch)：now - delta * beta * ln(rand) >= expireAt 时提前重建，rand在(0,1]内均匀分布
+     * delta是这种key重建一次的耗时，越接近过期、重建越慢，提前刷新的概率越大，过期前的重建分散开，不会集中到过期那一刻
+     * 还没有测量过重建耗时的key只在过期后重建
+     */
+    private boolean shouldRefreshEarly(String keyPrefix, long expireAt) {
+        Long cost = rebuildCostNanos.get(keyPrefix);
+        if (earlyRefreshBeta <= 0 || cost == null) {
+            return false;
+        }
+        double deltaMillis = cost / 1_000_000.0;
+        double rand = 1.0 - ThreadLocalRandom.current().nextDouble();
+        return System.currentTimeMillis() - deltaMillis * earlyRefreshBeta * Math.log(rand) >= expireAt;
+    }
+
+    private void recordRebuildCost(String keyPrefix, long nanos) {
+        // 指数加权平均，新的测量占1/8
+        rebuildCostNanos.merge(keyPrefix, nanos, (old, cost) -> old + (cost - old) / 8);
+    }
+
+    /**
+     * @return 当前时间加上time之后的逻辑过期时间(epoch毫秒)，在 ±expireJitter 的比例内随机抖动
+     */
+    private long logicExpireAt(Long time, TimeUnit unit) {
+        long millis = unit.toMillis(time);
+        if (expireJitter > 0) {
+            millis += (long) (millis * expireJitter * (2 * ThreadLocalRandom.current().nextDouble() - 1));
+        }
+        return System.currentTimeMillis() + millis;
+    }
+
+    /**
+     * 批量查询，处理缓存穿透：一次MGET查出所有缓存，未命中的id一次交给dbFallBack查数据库，
+     * 查到的对象和不存在的id的空值标记用一次管道写回redis
+     * 返回的对象在本次查询内新建，调用方可以修改
+     * @param idOf       从数据库查到的对象中取出id
+     * @param dbFallBack 按一批id查询数据库，例如listByIds，不存在的id不返回
+     * @return id -> 对象，按ids的顺序，不存在的id不在结果中
+     */
+    public <R, ID> Map<ID, R> queryBatch(String keyPrefix, Collection<ID> ids, Class<R> type, Function<R, ID> idOf,
+            Function<Collection<ID>, List<R>> dbFallBack, Long time, TimeUnit unit) {
+        List<ID> idList = new ArrayList<>(new LinkedHashSet<>(ids));
+        Map<ID, R> found = new HashMap<>();
+        // 0.记录访问，只用于热点探测：这些key反正要和其他key一起MGET，放入本地缓存省不了一次访问
+        idList.forEach(id -> recordAccess(keyPrefix + id));
+        // 1.一次MGET查出所有缓存
+        List<byte[]> values = multiGetBytes(keyPrefix, idList);
+        List<ID> misses = new ArrayList<>();
+        for (int i = 0; i < idList.size(); i++) {
+            ID id = idList.get(i);
+            byte[] data = values.get(i);
+            // 2.命中空值（防穿透标记），不存在也不查库
+            if (data != null && data.length == 0) {
+                continue;
+            }
+            R r = decodeOrNull(keyPrefix + id, data, type);
+            if (r != null) {
+                found.put(id, r);
+            } else {
+                misses.add(id);
+            }
+        }
+        if (misses.isEmpty()) {
+            return inOrder(idList, found);
+        }
+        // 3.未命中的id一次查数据库
+        Map<String, byte[]> writes = new LinkedHashMap<>();
+        for (R r : dbFallBack.apply(misses)) {
+            ID id = idOf.apply(r);
+            found.put(id, r);
+            writes.put(keyPrefix + id, codec.encode(r));
+        }
+        // 4.数据库中也不存在的写入空值防止穿透
+        for (ID id : misses) {
+            if (!found.containsKey(id)) {
+                writes.put(keyPrefix + id, new byte[0]);
+            }
+        }
+        // 5.一次管道写回redis
+        setBytesPipelined(writes, Expiration.from(time, unit));
+        return inOrder(idList, found);
+    }
+
+    /**
+     * 批量查询逻辑过期的缓存：先查本地缓存，其余的一次MGET
+     * 逻辑过期的和需要提前刷新的返回旧值，抢到锁的交给线程池一次查库重建；redis中没有的(没有预热或者无法解码)同步一次查库写入，
+     * 数据库中也不存在的写入空值，和queryWithLogicExpire一样按不存在处理
+     * 返回的对象可能被所有请求共享，调用方不能修改它
+     * @param idOf       从数据库查到的对象中取出id
+     * @param dbFallBack 按一批id查询数据库，例如listByIds，不存在的id不返回
+     * @return id -> 对象，按ids的顺序，不存在的id不在结果中
+     */
+    public <R, ID> Map<ID, R> queryBatchWithLogicExpire(String keyPrefix, Collection<ID> ids, Class<R> type,
+            Function<R, ID> idOf, Function<Collection<ID>, List<R>> dbFallBack, Long time, TimeUnit unit) {
+        List<ID> idList = new ArrayList<>(new LinkedHashSet<>(ids));
+        Map<ID, R> found = new HashMap<>();
+        long now = System.currentTimeMillis();
+        // 0.先查本地缓存
+        List<ID> remoteIds = new ArrayList<>();
+        List<ID> stale = new ArrayList<>();
+        // 本地缓存关闭时，热点key读到redis后也要放入本地缓存
+        Set<ID> hotIds = new HashSet<>();
+        for (ID id : idList) {
+            boolean hot = recordAccess(keyPrefix + id);
+            if (hot) {
+                hotIds.add(id);
+            }
+            LocalEntry entry = localEnabled || hot ? localCache.get(keyPrefix + id, false) : null;
+            if (entry != null && entry.expireAt > now) {
+                found.put(id, type.cast(entry.value));
+                if (shouldRefreshEarly(keyPrefix, entry.expireAt)) {
+                    stale.add(id);
                 }
-            });
+            } else {
+                remoteIds.add(id);
+            }
         }
-        // 未能成功获取锁，返回旧的商铺信息,但是因为无论失败成功都要返回店铺信息，所以留到成功之后写返回语句
-        // 7.返回
-        return r;
+        long epoch = invalidateEpoch.get();
+        // 1.其余的一次MGET
+        List<byte[]> values = multiGetBytes(keyPrefix, remoteIds);
+        List<ID> misses = new ArrayList<>();
+        for (int i = 0; i < remoteIds.size(); i++) {
+            ID id = remoteIds.get(i);
+            String key = keyPrefix + id;
+            byte[] data = values.get(i);
+            if (data == null) {
+                misses.add(id);
+                continue;
+            }
+            if (data.length == 0) {
+                continue;
+            }
+            try {
+                long expireAt = codec.expireAt(data);
+                R r = codec.decodeWithExpire(data, type);
+                found.put(id, r);
+                // 2.未过期的放入本地缓存，过期的和需要提前刷新的先返回旧值
+                if (expireAt > now) {
+                    putLocal(key, r, expireAt, epoch, hotIds.contains(id));
+                }
+                if (expireAt <= now || shouldRefreshEarly(keyPrefix, expireAt)) {
+                    stale.add(id);
+                }
+            } catch (RuntimeException e) {
+                log.warn("缓存{}无法解码，重新从数据库加载", key, e);
+                misses.add(id);
+            }
+        }
+        // 3.redis中没有的同步一次查库，写入逻辑过期缓存，数据库中也不存在的写入空值防止穿透
+        if (!misses.isEmpty()) {
+            List<R> loaded = dbFallBack.apply(misses);
+            loaded.forEach(r -> found.put(idOf.apply(r), r));
+            Map<String, byte[]> writes = logicExpireValues(keyPrefix, loaded, idOf, time, unit);
+            for (ID id : misses) {
+                if (!found.containsKey(id)) {
+                    writes.put(keyPrefix + id, new byte[0]);
+                }
+            }
+            setBytesPipelined(writes, Expiration.persistent());
+        }
+        // 4.逻辑过期的一次管道抢锁，抢到的交给线程池一次查库重建
+        if (!stale.isEmpty()) {
+            rebuildBatchAsync(keyPrefix, stale, idOf, dbFallBack, time, unit);
+        }
+        return inOrder(idList, found);
+    }
+
+    private <R, ID> void rebuildBatchAsync(String keyPrefix, List<ID> stale, Function<R, ID> idOf,
+            Function<Collection<ID>, List<R>> dbFallBack, Long time, TimeUnit unit) {
+        List<Object> results = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (ID id : stale) {
+                connection.set((RedisConstants.LOCK_SHOP_KEY + id).getBytes(StandardCharsets.UTF_8),
+                        "1".getBytes(StandardCharsets.UTF_8),
+                        Expiration.from(RedisConstants.LOCK_SHOP_TTL, TimeUnit.MINUTES),
+                        RedisStringCommands.SetOption.ifAbsent());
+            }
+            return null;
+        });
+        List<ID> locked = new ArrayList<>();
+        for (int i = 0; i < stale.size(); i++) {
+            if (Boolean.TRUE.equals(results.get(i))) {
+                locked.add(stale.get(i));
+            }
+        }
+        if (locked.isEmpty()) {
+            return;
+        }
+        CACHE_REBUILD_EXECUTOR.submit(() -> {
+            try {
+                long begin = System.nanoTime();
+                List<R> loaded = dbFallBack.apply(locked);
+                // 按每个key平均的耗时记录
+                recordRebuildCost(keyPrefix, (System.nanoTime() - begin) / locked.size());
+                setBytesPipelined(logicExpireValues(keyPrefix, loaded, idOf, time, unit), Expiration.persistent());
+                if (localCache != null) {
+                    locked.forEach(id -> localCache.remove(keyPrefix + id));
+                }
+            } catch (Exception e) {
+                log.error("批量重建缓存失败，前缀{}，{}个key", keyPrefix, locked.size(), e);
+            } finally {
+                // 释放锁
+                List<String> lockKeys = new ArrayList<>();
+                locked.forEach(id -> lockKeys.add(RedisConstants.LOCK_SHOP_KEY + id));
+                stringRedisTemplate.delete(lockKeys);
+            }
+        });
+    }
+
+    private <R, ID> Map<String, byte[]> logicExpireValues(String keyPrefix, List<R> values, Function<R, ID> idOf,
+            Long time, TimeUnit unit) {
+        Map<String, byte[]> writes = new LinkedHashMap<>();
+        for (R r : values) {
+            // 每个key单独抖动，同一批写入的key不会同时过期
+            writes.put(keyPrefix + idOf.apply(r), codec.encodeWithExpire(r, logicExpireAt(time, unit)));
+        }
+        return writes;
+    }
+
+    private static <R, ID> Map<ID, R> inOrder(List<ID> idList, Map<ID, R> found) {
+        Map<ID, R> result = new LinkedHashMap<>();
+        for (ID id : idList) {
+            R r = found.get(id);
+            if (r != null) {
+                result.put(id, r);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * 放入本地缓存，最多保留到逻辑过期时间
+     * @param epoch 读redis之前的失效版本号，期间收到过失效消息时读到的可能是旧值，不放入
+     * @param hot   是否是热点key，本地缓存关闭时热点key也放入，最多保留hotKeyTtlMillis
+     */
+    private void putLocal(String key, Object value, long expireAt, long epoch, boolean hot) {
+        if (!localEnabled && !hot) {
+            return;
+        }
+        long maxTtl = localEnabled ? localTtlMillis : hotKeyTtlMillis;
+        long ttl = Math.min(maxTtl, expireAt - System.currentTimeMillis());
+        if (ttl > 0 && invalidateEpoch.get() == epoch) {
+            localCache.put(key, new LocalEntry(value, expireAt), ttl);
+        }
+    }
+
+    private static class LocalEntry {
+        private final Object value;
+        // 逻辑过期时间(epoch毫秒)
+        private final long expireAt;
+
+        private LocalEntry(Object value, long expireAt) {
+            this.value = value;
+            this.expireAt = expireAt;
+        }
+    }
+
+    /**
+     * 记录一次访问，用于热点key探测
+     * @return 这个key当前是否是热点
+     */
+    private boolean recordAccess(String key) {
+        return hotKeyDetector != null && hotKeyDetector.record(key);
+    }
+
+    /**
+     * @return 热点key在本地缓存中的副本，没有或者已经过期时返回null；副本的值可以是null，表示数据库中不存在
+     */
+    private LocalEntry getPinned(String key) {
+        LocalEntry entry = localCache.get(key, false);
+        return entry != null && entry.expireAt > System.currentTimeMillis() ? entry : null;
+    }
+
+    /**
+     * 把热点key的值放入本地缓存，保留hotKeyTtlMillis，冷却之后不再续期，到期自然淘汰
+     * @param epoch 读redis之前的失效版本号，期间收到过失效消息时不放入
+     */
+    private void pin(String key, Object value, long epoch) {
+        if (invalidateEpoch.get() == epoch) {
+            localCache.put(key, new LocalEntry(value, System.currentTimeMillis() + hotKeyTtlMillis), hotKeyTtlMillis);
+        }
+    }
+
+    /**
+     * 解码set写入的值
+     * @return data为null或者无法解码时返回null，调用方当作未命中
+     */
+    private <R> R decodeOrNull(String key, byte[] data, Class<R> type) {
+        if (data == null) {
+            return null;
+        }
+        try {
+            return codec.decode(data, type);
+        } catch (RuntimeException e) {
+            log.warn("缓存{}无法解码，按未命中处理", key, e);
+            return null;
+        }
+    }
+
+    // 读写原始字节，二进制编码的值不一定是合法的UTF-8字符串
+    private byte[] getBytes(String key) {
+        byte[] rawKey = key.getBytes(StandardCharsets.UTF_8);
+        return stringRedisTemplate.execute((RedisCallback<byte[]>) connection -> connection.get(rawKey));
+    }
+
+    private List<byte[]> multiGetBytes(String keyPrefix, List<?> ids) {
+        if (ids.isEmpty()) {
+            return new ArrayList<>();
+        }
+        byte[][] rawKeys = new byte[ids.size()][];
+        for (int i = 0; i < rawKeys.length; i++) {
+            rawKeys[i] = (keyPrefix + ids.get(i)).getBytes(StandardCharsets.UTF_8);
+        }
+        return stringRedisTemplate.execute((RedisCallback<List<byte[]>>) connection -> connection.mGet(rawKeys));
+    }
+
+    /**
+     * 用一次管道写入多个key，空值标记使用CACHE_NULL_TTL
+     */
+    private void setBytesPipelined(Map<String, byte[]> values, Expiration expiration) {
+        if (values.isEmpty()) {
+            return;
+        }
+        Expiration nullExpiration = Expiration.from(RedisConstants.CACHE_NULL_TTL, TimeUnit.MINUTES);
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            values.forEach((key, value) -> connection.set(key.getBytes(StandardCharsets.UTF_8), value,
+                    value.length == 0 ? nullExpiration : expiration, RedisStringCommands.SetOption.upsert()));
+            return null;
+        });
+    }
+
+    private void setBytes(String key, byte[] value, Expiration expiration) {
+        byte[] rawKey = key.getBytes(StandardCharsets.UTF_8);
+        stringRedisTemplate.execute((RedisCallback<Boolean>) connection ->
+                connection.set(rawKey, value, expiration, RedisStringCommands.SetOption.upsert()));
     }
 
     // 建立互斥锁
@@ -0,0 +1,36 @@
+package com.hmdp.utils;
+
+import java.util.List;
+
+/**
+ * CacheClient写入redis的值的编码方式
+ * 普通值直接编码；逻辑过期的值带一个过期时间，判断是否过期时不需要解码整个对象(由实现决定能否做到)
+ * 空数组保留给缓存穿透的空值标记，编码结果不能为空
+ */
+public interface CacheCodec {
+
+    /**
+     * 编码一个对象或者一个集合
+     */
+    byte[] encode(Object value);
+
+    <T> T decode(byte[] data, Class<T> type);
+
+    <T> List<T> decodeList(byte[] data, Class<T> elementType);
+
+    /**
+     * 编码一个带逻辑过期时间的对象
+     * @param expireAtMillis 逻辑过期时间(epoch毫秒)
+     */
+    byte[] encodeWithExpire(Object value, long expireAtMillis);
+
+    /**
+     * @return encodeWithExpire写入的逻辑过期时间(epoch毫秒)
+     */
+    long expireAt(byte[] data);
+
+    /**
+     * @return encodeWithExpire写入的对象
+     */
+    <T> T decodeWithExpire(byte[] data, Class<T> type);
+}
@@ -0,0 +1,204 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.lang.hash.MurmurHash;
+
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 热点key探测，只统计本节点的访问
+ * 访问次数记在滑动窗口的count-min sketch中：窗口分成若干时间片，每个时间片一个sketch，进入新的时间片时清空最旧的那个，
+ * 估计值是所有时间片之和，只会多估不会少估；估计值达到阈值的key进入候选，
+ * 每个时间片结束时用小顶堆从候选中选出访问最多的topK个作为热点，降到阈值一半以下的冷却移出
+ * 达到阈值时热点没满的话立即加入，不等时间片结束
+ */
+public class HotKeyDetector {
+
+    // sketch的行数，每行的列由一次128位哈希双重哈希得到
+    private static final int DEPTH = 4;
+
+    private final int width;
+
+    private final int slots;
+
+    private final long slotMillis;
+
+    private final int sampleRate;
+
+    private final long threshold;
+
+    private final int topK;
+
+    // 候选key的数量上限，防止大量刚好达到阈值的key占用内存
+    private final int maxCandidates;
+
+    // 每个时间片一个sketch，第row行第i列在 row * width + i
+    private final AtomicIntegerArray[] sketches;
+
+    // 当前时间片的编号：当前时间 / slotMillis，对应的sketch是 编号 % slots
+    private final AtomicLong currentSlot;
+
+    private final Map<String, Boolean> candidates = new ConcurrentHashMap<>();
+
+    // 热点key -> 窗口内的估计访问次数，按次数从大到小，整体替换
+    private volatile Map<String, Long> hotKeys = Collections.emptyMap();
+
+    /**
+     * @param width        sketch每行的列数，向上取整为2的幂
+     * @param windowMillis 滑动窗口的长度
+     * @param slots        窗口分成的时间片数
+     * @param sampleRate   每sampleRate次访问记录一次，计数乘回sampleRate
+     * @param threshold    窗口内的访问次数达到多少算热点
+     * @param topK         最多同时有多少个热点key
+     */
+    public HotKeyDetector(int width, long windowMillis, int slots, int sampleRate, long threshold, int topK) {
+        this.width = width <= 16 ? 16 : Integer.highestOneBit(width - 1) << 1;
+        this.slots = Math.max(1, slots);
+        this.slotMillis = Math.max(1, windowMillis / this.slots);
+        this.sampleRate = Math.max(1, sampleRate);
+        this.threshold = Math.max(1, threshold);
+        this.topK = Math.max(1, topK);
+        this.maxCandidates = this.topK * 8;
+        this.sketches = new AtomicIntegerArray[this.slots];
+        for (int i = 0; i < this.slots; i++) {
+            sketches[i] = new AtomicIntegerArray(DEPTH * this.width);
+        }
+        this.currentSlot = new AtomicLong(System.currentTimeMillis() / slotMillis);
+    }
+
+    /**
+     * 记录一次访问
+     * @return 这个key当前是否是热点
+     */
+    public boolean record(String key) {
+        advance(System.currentTimeMillis());
+        if (sampleRate == 1 || ThreadLocalRandom.current().nextInt(sampleRate) == 0) {
+            AtomicIntegerArray sketch = sketches[(int) (currentSlot.get() % slots)];
+            long[] hash = hash(key);
+            for (int row = 0; row < DEPTH; row++) {
+                sketch.incrementAndGet(index(hash, row));
+            }
+            Map<String, Long> hot = hotKeys;
+            if (!hot.containsKey(key)) {
+                long estimate = estimate(hash);
+                if (estimate >= threshold && (candidates.size() < maxCandidates || candidates.containsKey(key))) {
+                    candidates.put(key, Boolean.TRUE);
+                    if (hot.size() < topK) {
+                        promote(key, estimate);
+                    }
+                }
+            }
+        }
+        return hotKeys.containsKey(key);
+    }
+
+    public boolean isHot(String key) {
+        return hotKeys.containsKey(key);
+    }
+
+    /**
+     * @return 热点key -> 窗口内的估计访问次数，按次数从大到小
+     */
+    public Map<String, Long> getHotKeys() {
+        advance(System.currentTimeMillis());
+        return hotKeys;
+    }
+
+    /**
+     * @return key在窗口内的估计访问次数
+     */
+    public long estimate(String key) {
+        return estimate(hash(key));
+    }
+
+    private long estimate(long[] hash) {
+        long min = Long.MAX_VALUE;
+        for (int row = 0; row < DEPTH; row++) {
+            int index = index(hash, row);
+            long count = 0;
+            for (AtomicIntegerArray sketch : sketches) {
+                count += sketch.get(index);
+            }
+            min = Math.min(min, count);
+        }
+        return min * sampleRate;
+    }
+
+    /**
+     * 进入新的时间片：清空将要使用的sketch(也就是最旧的那个)，重新选出热点
+     */
+    private void advance(long now) {
+        long slot = now / slotMillis;
+        long current = currentSlot.get();
+        if (slot <= current || !currentSlot.compareAndSet(current, slot)) {
+            return;
+        }
+        // 中间跳过的时间片也要清空，最多清空全部
+        for (long s = Math.max(current + 1, slot - slots + 1); s <= slot; s++) {
+            AtomicIntegerArray sketch = sketches[(int) (s % slots)];
+            for (int i = 0; i < sketch.length(); i++) {
+                sketch.set(i, 0);
+            }
+        }
+        reselect();
+    }
+
+    private synchronized void reselect() {
+        Map<String, Long> hot = hotKeys;
+        // 小顶堆保留估计值最大的topK个
+        PriorityQueue<Map.Entry<String, Long>> heap = new PriorityQueue<>(topK + 1, Map.Entry.comparingByValue());
+        for (String key : candidates.keySet()) {
+            long estimate = estimate(hash(key));
+            if (estimate < threshold / 2) {
+                // 冷却
+                candidates.remove(key);
+                continue;
+            }
+            if (estimate < threshold && !hot.containsKey(key)) {
+                continue;
+            }
+            heap.offer(new AbstractMap.SimpleImmutableEntry<>(key, estimate));
+            if (heap.size() > topK) {
+                heap.poll();
+            }
+        }
+        List<Map.Entry<String, Long>> selected = new ArrayList<>(heap);
+        selected.sort(Map.Entry.<String, Long>comparingByValue().reversed());
+        Map<String, Long> next = new LinkedHashMap<>();
+        selected.forEach(entry -> next.put(entry.getKey(), entry.getValue()));
+        hotKeys = Collections.unmodifiableMap(next);
+    }
+
+    private synchronized void promote(String key, long estimate) {
+        Map<String, Long> hot = hotKeys;
+        if (hot.containsKey(key) || hot.size() >= topK) {
+            return;
+        }
+        Map<String, Long> next = new LinkedHashMap<>(hot);
+        next.put(key, estimate);
+        hotKeys = Collections.unmodifiableMap(next);
+    }
+
+    private static long[] hash(String key) {
+        return MurmurHash.hash128(key.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * 双重哈希：murmur3 128位哈希得到h1、h2，第row行的列是 h1 + row * h2，
+     * 和RedisBloomFilter一样；两个key即使String.hashCode相同，在各行的列也互不相关
+     */
+    private int index(long[] hash, int row) {
+        long combined = hash[0] + row * hash[1];
+        return row * width + (int) (combined & (width - 1));
+    }
+}
@@ -0,0 +1,24 @@
+package com.hmdp.utils;
+
+public interface IdGenerator {
+    /**
+     * 生成全局唯一id，高32位是时间戳(秒)，低32位是序列号
+     * @param prefix 业务前缀，例如 order
+     * @return 全局唯一id
+     */
+    long nextId(String prefix);
+
+    /**
+     * 一次生成一批全局唯一id
+     * @param prefix 业务前缀，例如 order
+     * @param count  id数量
+     * @return 全局唯一id
+     */
+    default long[] nextIds(String prefix, int count) {
+        long[] ids = new long[count];
+        for (int i = 0; i < count; i++) {
+            ids[i] = nextId(prefix);
+        }
+        return ids;
+    }
+}
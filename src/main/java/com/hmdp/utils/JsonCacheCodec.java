@@ -0,0 +1,55 @@
+package com.hmdp.utils;
+
+import cn.hutool.json.JSONObject;
+import cn.hutool.json.JSONUtil;
+import org.springframework.stereotype.Component;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.List;
+
+/**
+ * JSON编码，和原来直接写JSONUtil.toJsonStr的格式一致，逻辑过期的值是RedisData的JSON
+ * 判断逻辑过期时间也需要解析整个JSON
+ */
+@Component
+public class JsonCacheCodec implements CacheCodec {
+
+    @Override
+    public byte[] encode(Object value) {
+        return JSONUtil.toJsonStr(value).getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public <T> T decode(byte[] data, Class<T> type) {
+        return JSONUtil.toBean(new String(data, StandardCharsets.UTF_8), type);
+    }
+
+    @Override
+    public <T> List<T> decodeList(byte[] data, Class<T> elementType) {
+        return JSONUtil.toList(new String(data, StandardCharsets.UTF_8), elementType);
+    }
+
+    @Override
+    public byte[] encodeWithExpire(Object value, long expireAtMillis) {
+        RedisData redisData = new RedisData();
+        redisData.setData(value);
+        redisData.setExpireTime(LocalDateTime.ofInstant(Instant.ofEpochMilli(expireAtMillis), ZoneId.systemDefault()));
+        return encode(redisData);
+    }
+
+    @Override
+    public long expireAt(byte[] data) {
+        LocalDateTime expireTime = decode(data, RedisData.class).getExpireTime();
+        return expireTime.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+    }
+
+    @Override
+    public <T> T decodeWithExpire(byte[] data, Class<T> type) {
+        // 先解析RedisData，再把里面的data转成目标类型
+        RedisData redisData = decode(data, RedisData.class);
+        return JSONUtil.toBean((JSONObject) redisData.getData(), type);
+    }
+}
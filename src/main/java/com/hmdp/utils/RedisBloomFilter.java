@@ -0,0 +1,202 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.lang.hash.MurmurHash;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 布隆过滤器：redis的bitmap是所有节点共享的权威数据，每个节点在本地保存一份镜像，
+ * 查询只读本地镜像，不访问redis；写入同时SETBIT到redis和本地
+ * 位数和哈希函数个数按预期元素数和误判率计算，并拼在key里，修改配置后自动使用新的bitmap
+ */
+public class RedisBloomFilter {
+
+    private final StringRedisTemplate stringRedisTemplate;
+
+    private final String key;
+
+    // bitmap的位数，是64的整数倍
+    private final long bits;
+
+    // 哈希函数个数
+    private final int hashes;
+
+    // 本地镜像，第i位在 words[i / 64] 的第 i % 64 位
+    private volatile AtomicLongArray local;
+
+    /**
+     * @param keyPrefix          redis key前缀，实际key会拼上位数和哈希函数个数
+     * @param expectedInsertions 预期元素数
+     * @param fpp                期望的误判率，例如0.001
+     */
+    public RedisBloomFilter(StringRedisTemplate stringRedisTemplate, String keyPrefix, long expectedInsertions, double fpp) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        // m = -n * ln(p) / (ln2)^2，k = m / n * ln2
+        long m = (long) Math.ceil(-expectedInsertions * Math.log(fpp) / (Math.log(2) * Math.log(2)));
+        this.bits = Math.max(64, (m + 63) / 64 * 64);
+        this.hashes = Math.max(1, (int) Math.round((double) bits / expectedInsertions * Math.log(2)));
+        this.key = keyPrefix + bits + ":" + hashes;
+        this.local = newBits();
+    }
+
+    public String getKey() {
+        return key;
+    }
+
+    public long getBits() {
+        return bits;
+    }
+
+    public int getHashes() {
+        return hashes;
+    }
+
+    /**
+     * @return 可能存在时返回true；返回false时一定不存在
+     */
+    public boolean mightContain(String value) {
+        AtomicLongArray words = local;
+        for (long offset : offsets(value)) {
+            if ((words.get((int) (offset >>> 6)) & (1L << (offset & 63))) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 写入一个元素：用一次管道SETBIT到redis，再写入本地镜像
+     */
+    public void put(String value) {
+        long[] offsets = offsets(value);
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection conn = (StringRedisConnection) connection;
+            for (long offset : offsets) {
+                conn.setBit(key, offset, true);
+            }
+            return null;
+        });
+        set(local, offsets);
+    }
+
+    /**
+     * 只写入本地镜像，收到其他节点的写入广播时使用
+     */
+    public void putLocal(String value) {
+        set(local, offsets(value));
+    }
+
+    /**
+     * 用一批元素构建一个新的位数组，不影响当前的过滤器
+     */
+    public AtomicLongArray build(Collection<String> values, AtomicLongArray into) {
+        for (String value : values) {
+            set(into, offsets(value));
+        }
+        return into;
+    }
+
+    public AtomicLongArray newBits() {
+        return new AtomicLongArray((int) (bits >>> 6));
+    }
+
+    /**
+     * 把新构建的位数组写入redis：先写临时key再RENAME，其他节点不会读到写了一半的bitmap
+     */
+    public void upload(AtomicLongArray words) {
+        byte[] bytes = toRedisBytes(words);
+        String tmpKey = key + ":tmp";
+        stringRedisTemplate.execute((RedisCallback<Object>) connection -> {
+            connection.set(tmpKey.getBytes(StandardCharsets.UTF_8), bytes);
+            connection.rename(tmpKey.getBytes(StandardCharsets.UTF_8), key.getBytes(StandardCharsets.UTF_8));
+            return null;
+        });
+    }
+
+    /**
+     * 从redis读取整个bitmap
+     * @return redis中没有这个bitmap时返回null
+     */
+    public AtomicLongArray download() {
+        byte[] bytes = stringRedisTemplate.execute(
+                (RedisCallback<byte[]>) connection -> connection.get(key.getBytes(StandardCharsets.UTF_8)));
+        return bytes == null ? null : fromRedisBytes(bytes);
+    }
+
+    /**
+     * 用新的位数组替换本地镜像
+     */
+    public void replace(AtomicLongArray words) {
+        local = words;
+    }
+
+    /**
+     * 把位数组合并进本地镜像，定时同步时使用，不会丢掉同步期间本地新写入的位
+     */
+    public void merge(AtomicLongArray words) {
+        AtomicLongArray current = local;
+        for (int i = 0; i < current.length(); i++) {
+            long bitsToSet = words.get(i);
+            if (bitsToSet != 0 && (current.get(i) & bitsToSet) != bitsToSet) {
+                current.accumulateAndGet(i, bitsToSet, (a, b) -> a | b);
+            }
+        }
+    }
+
+    /**
+     * 双重哈希：一次murmur3 128位哈希得到h1、h2，第i个位置是 h1 + i * h2
+     */
+    private long[] offsets(String value) {
+        long[] hash = MurmurHash.hash128(value.getBytes(StandardCharsets.UTF_8));
+        long[] offsets = new long[hashes];
+        long combined = hash[0];
+        for (int i = 0; i < hashes; i++) {
+            offsets[i] = (combined & Long.MAX_VALUE) % bits;
+            combined += hash[1];
+        }
+        return offsets;
+    }
+
+    private static void set(AtomicLongArray words, long[] offsets) {
+        for (long offset : offsets) {
+            int index = (int) (offset >>> 6);
+            long mask = 1L << (offset & 63);
+            if ((words.get(index) & mask) == 0) {
+                words.accumulateAndGet(index, mask, (a, b) -> a | b);
+            }
+        }
+    }
+
+    /**
+     * redis的bitmap中第i位是第 i / 8 个字节从高到低的第 i % 8 位，本地是从低到高，转换时每个字节做一次位反转
+     */
+    private byte[] toRedisBytes(AtomicLongArray words) {
+        byte[] bytes = new byte[(int) (bits >>> 3)];
+        for (int i = 0; i < bytes.length; i++) {
+            int b = (int) (words.get(i >>> 3) >>> ((i & 7) << 3)) & 0xFF;
+            bytes[i] = (byte) (Integer.reverse(b) >>> 24);
+        }
+        return bytes;
+    }
+
+    private AtomicLongArray fromRedisBytes(byte[] bytes) {
+        // redis中的bitmap只会长到最高的那个1所在的字节，后面缺的都是0
+        AtomicLongArray words = newBits();
+        int length = (int) Math.min(bytes.length, bits >>> 3);
+        long word = 0;
+        for (int i = 0; i < length; i++) {
+            long b = Integer.reverse(bytes[i] & 0xFF) >>> 24;
+            word |= b << ((i & 7) << 3);
+            if ((i & 7) == 7 || i == length - 1) {
+                words.set(i >>> 3, word);
+                word = 0;
+            }
+        }
+        return words;
+    }
+}
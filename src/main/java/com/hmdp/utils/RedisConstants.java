@@ -11,12 +11,43 @@ public class RedisConstants {
     public static final Long CACHE_SHOP_TYPE_KEY_TTL =24L;
     public static final Long CACHE_SHOP_TTL = 30L;
     public static final String CACHE_SHOP_KEY = "cache:shop:";
+    //用户的公开信息(UserDTO)，博客作者、点赞列表、共同关注等页面批量查询
+    public static final String CACHE_USER_KEY = "cache:user:";
+    public static final Long CACHE_USER_TTL = 30L;
+
+    //删除缓存后广播给所有节点清除本地缓存的pub/sub频道，消息内容是缓存key
+    public static final String CACHE_INVALIDATE_CHANNEL = "cache:invalidate";
 
     public static final String LOCK_SHOP_KEY = "lock:shop:";
     public static final Long LOCK_SHOP_TTL = 10L;
 
-    //用于优化中，存储订单到redis中
+    //所有商铺id的布隆过滤器bitmap，后面拼接位数和哈希函数个数
+    public static final String SHOP_BLOOM_KEY = "bloom:shop:";
+    //新增商铺或重建布隆过滤器后通知其他节点的pub/sub频道
+    public static final String SHOP_BLOOM_CHANNEL = "bloom:shop:changed";
+    //重建商铺布隆过滤器的锁，只有一个节点重建
+    public static final String LOCK_SHOP_BLOOM_KEY = "lock:bloom:shop";
+
+    //用于优化中，存储订单到redis中；没有hash tag的旧库存key，预热时迁移到分段key
     public static final String SEKILL_STOCK_KEY = "sekill:stock";
+    //秒杀券的下单用户集合，没有hash tag的旧key，预热时迁移到分段key
+    public static final String SEKILL_ORDER_KEY = "sekill:order";
+    //秒杀券库存分段的key前缀，后面拼接hash tag {voucherId:分段号}，同一分段的库存、下单用户集合和售卖时间段在同一个slot
+    public static final String SEKILL_SEGMENT_KEY = "sekill:";
+    //秒杀券的元数据hash，例如库存分段数segments
+    public static final String SEKILL_META_KEY = "sekill:meta";
+    //秒杀订单stream的前缀，后面拼接分片号，抢单成功后按 voucherId % 分片数 路由
+    public static final String SECKILL_ORDER_STREAM_KEY = "stream.orders:";
+    //多次投递仍处理失败的订单消息转入的死信stream
+    public static final String SECKILL_ORDER_DLQ_KEY = "stream.orders.dlq";
+    //订单消息最近一次的失败原因，hash结构，field是 stream/消息id
+    public static final String SECKILL_ORDER_FAILURE_KEY = "stream.orders.failures";
+    //秒杀券补充库存后广播清除本地售罄标记的pub/sub频道，消息内容是voucherId
+    public static final String SECKILL_SOLD_OUT_CHANNEL = "seckill:sold-out:clear";
+    //秒杀订单状态，按订单id中的时间戳分桶的hash
+    public static final String SECKILL_ORDER_STATE_KEY = "seckill:order:state:";
+    //未支付订单的延时队列，zset，score是支付截止时间(ms)，后面拼接和订单stream相同的分片号
+    public static final String SECKILL_ORDER_DELAY_KEY = "seckill:order:delay:";
 
     public static final String SECKILL_STOCK_KEY = "seckill:stock:";
     public static final String BLOG_LIKED_KEY = "blog:liked:";
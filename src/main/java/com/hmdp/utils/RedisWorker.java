@@ -1,22 +1,69 @@
 package com.hmdp.utils;
 
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
 import org.springframework.stereotype.Component;
 
 import javax.annotation.Resource;
+import java.time.LocalDate;
 import java.time.LocalDateTime;
 import java.time.ZoneOffset;
 import java.time.format.DateTimeFormatter;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
 
 @Component
-public class RedisWorker {
+public class RedisWorker implements IdGenerator {
 
     @Resource
     private StringRedisTemplate stringRedisTemplate;
 
-    private static final long BEGIN_TIMESTAMP=1640995200L;//2022年一月一日
-    private static final long COUNT_BITS=32;
+    static final long BEGIN_TIMESTAMP=1640995200L;//2022年一月一日
+    static final long COUNT_BITS=32;
 
+    //注意月份是MM，mm是分钟
+    private static final DateTimeFormatter DATE_FORMATTER = DateTimeFormatter.ofPattern("yyyy:MM:dd");
+
+    //旧版本误用的key格式(mm是分钟)，滚动升级期间兼容用
+    private static final DateTimeFormatter LEGACY_DATE_FORMATTER = DateTimeFormatter.ofPattern("yyyy:mm:dd");
+
+    //滚动升级期间新旧节点同时发号：旧节点INCR按分钟的旧key，新节点用按天的新key，两个计数器互不知道，同一秒内会发出相同的id
+    //开启后新节点每次发号同时推进两个key：取两者的最大值加上数量写回两个key，旧节点之后的INCR一定比新节点发过的大
+    //号段会跨分钟使用，和旧key对不上，所以兼容期间不使用号段模式；所有节点升级完成后关闭
+    @Value("${hmdp.id.legacy-key-compat:false}")
+    private boolean legacyKeyCompat;
+
+    private static final DefaultRedisScript<Long> COMPAT_INCR_SCRIPT = new DefaultRedisScript<>(
+            "local v = math.max(tonumber(redis.call('get', KEYS[1]) or '0'), tonumber(redis.call('get', KEYS[2]) or '0')) + tonumber(ARGV[1]) " +
+                    "redis.call('set', KEYS[1], v) redis.call('set', KEYS[2], v) return v",
+            Long.class);
+
+    //号段模式每次从redis预留的序列号数量，0表示不使用号段模式，每个id都INCR一次
+    @Value("${hmdp.id.lease-step:0}")
+    private int leaseStep;
+
+    //当前号段剩余不到这个比例时异步预取下一个号段
+    private static final double PREFETCH_RATIO = 0.2;
+
+    //缓存当天的日期字符串，避免每次生成id都格式化
+    private volatile CachedDate cachedDate = new CachedDate(LocalDate.MIN, "");
+
+    //业务前缀 -> 号段
+    private final Map<String, IdLease> leases = new ConcurrentHashMap<>();
+
+    private final ExecutorService prefetchExecutor = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "id-lease-prefetch");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    @Override
     public long nextId(String prefix) {
         //1.生成时间戳
         LocalDateTime now = LocalDateTime.now();
@@ -25,11 +72,170 @@ public class RedisWorker {
 
         //2.生成序列号
         //2.1获取当前日期
-        String date = now.format(DateTimeFormatter.ofPattern("yyyy:mm:dd"));
+        String date = date(now.toLocalDate());
 
         //2.2获取自增id
-        long count = stringRedisTemplate.opsForValue().increment("icr:"+prefix+":"+date);
+        String key = "icr:" + prefix + ":" + date;
+        long count;
+        if (legacyKeyCompat) {
+            count = reserve(key, prefix, now, 1);
+        } else if (leaseStep > 0) {
+            count = leases.computeIfAbsent(prefix, p -> new IdLease()).next(key);
+        } else {
+            count = stringRedisTemplate.opsForValue().increment(key);
+        }
 
         return timeStamp<<COUNT_BITS | count;//当前的时间戳<<32+redis中setnx的自增id
     }
+
+    /**
+     * 号段模式下逐个从本地号段发号；不使用号段时一次INCRBY预留整批序列号，只访问一次redis
+     */
+    @Override
+    public long[] nextIds(String prefix, int count) {
+        if ((leaseStep > 0 && !legacyKeyCompat) || count <= 1) {
+            return IdGenerator.super.nextIds(prefix, count);
+        }
+        LocalDateTime now = LocalDateTime.now();
+        long timeStamp = now.toEpochSecond(ZoneOffset.UTC) - BEGIN_TIMESTAMP;
+        String key = "icr:" + prefix + ":" + date(now.toLocalDate());
+        long end = reserve(key, prefix, now, count);
+        long[] ids = new long[count];
+        for (int i = 0; i < count; i++) {
+            ids[i] = timeStamp << COUNT_BITS | (end - count + 1 + i);
+        }
+        return ids;
+    }
+
+    /**
+     * INCRBY预留count个序列号，兼容模式下同时推进旧版本按分钟的key
+     * @return 预留的最后一个序列号
+     */
+    private long reserve(String key, String prefix, LocalDateTime now, long count) {
+        Long end = legacyKeyCompat
+                ? stringRedisTemplate.execute(COMPAT_INCR_SCRIPT,
+                        Arrays.asList(key, "icr:" + prefix + ":" + now.format(LEGACY_DATE_FORMATTER)), String.valueOf(count))
+                : stringRedisTemplate.opsForValue().increment(key, count);
+        if (end == null) {
+            throw new IllegalStateException("预留id失败: " + key);
+        }
+        return end;
+    }
+
+    /**
+     * 从id中取出生成时的时间戳
+     * @param id nextId生成的id
+     * @return 生成时间(epoch秒，和nextId一样按本地时间计算)
+     */
+    public static long epochSecondOf(long id) {
+        return (id >>> COUNT_BITS) + BEGIN_TIMESTAMP;
+    }
+
+    /**
+     * @return 当前时间(epoch秒)，和epochSecondOf的口径一致
+     */
+    public static long currentEpochSecond() {
+        return LocalDateTime.now().toEpochSecond(ZoneOffset.UTC);
+    }
+
+    private String date(LocalDate today) {
+        CachedDate cached = cachedDate;
+        if (!cached.day.equals(today)) {
+            cached = new CachedDate(today, today.format(DATE_FORMATTER));
+            cachedDate = cached;
+        }
+        return cached.text;
+    }
+
+    private static class CachedDate {
+        private final LocalDate day;
+        private final String text;
+
+        private CachedDate(LocalDate day, String text) {
+            this.day = day;
+            this.text = text;
+        }
+    }
+
+    /**
+     * 一段用INCRBY从redis预留的连续序列号 [start, end]
+     */
+    private static class IdSegment {
+        private final String key;
+        private final AtomicLong cursor;
+        private final long end;
+        //发到这个序列号时开始预取下一个号段
+        private final long prefetchAt;
+
+        private IdSegment(String key, long start, long end, long prefetchAt) {
+            this.key = key;
+            this.cursor = new AtomicLong(start);
+            this.end = end;
+            this.prefetchAt = prefetchAt;
+        }
+    }
+
+    /**
+     * 一个业务前缀的号段：当前号段内用CAS无锁发号，用完时切换到预取好的下一个号段
+     * INCRBY的返回值单调递增，所以同一个节点上的序列号单调递增，不同节点的号段互不重叠
+     */
+    private class IdLease {
+
+        private volatile IdSegment current;
+
+        private CompletableFuture<IdSegment> next;
+
+        long next(String key) {
+            while (true) {
+                IdSegment segment = current;
+                if (segment != null && segment.key.equals(key)) {
+                    long count = segment.cursor.getAndIncrement();
+                    if (count <= segment.end) {
+                        if (count == segment.prefetchAt) {
+                            prefetch(key);
+                        }
+                        return count;
+                    }
+                }
+                // 当前号段用完了，或者日期变了要换新的key
+                synchronized (this) {
+                    if (current == segment) {
+                        current = takeNext(key);
+                    }
+                }
+            }
+        }
+
+        private synchronized void prefetch(String key) {
+            if (next == null) {
+                next = CompletableFuture.supplyAsync(() -> fetch(key), prefetchExecutor);
+            }
+        }
+
+        // 调用方持有锁
+        private IdSegment takeNext(String key) {
+            CompletableFuture<IdSegment> prefetched = next;
+            next = null;
+            if (prefetched != null) {
+                try {
+                    IdSegment segment = prefetched.join();
+                    if (segment.key.equals(key)) {
+                        return segment;
+                    }
+                } catch (Exception e) {
+                    // 预取失败，下面同步再取一次
+                }
+            }
+            return fetch(key);
+        }
+
+        private IdSegment fetch(String key) {
+            Long end = stringRedisTemplate.opsForValue().increment(key, leaseStep);
+            if (end == null) {
+                throw new IllegalStateException("预留id号段失败: " + key);
+            }
+            long start = end - leaseStep + 1;
+            return new IdSegment(key, start, end, end - (long) (leaseStep * PREFETCH_RATIO));
+        }
     }
+}
@@ -0,0 +1,579 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.bean.BeanUtil;
+import cn.hutool.core.exceptions.ExceptionUtil;
+import cn.hutool.core.net.NetUtil;
+import cn.hutool.core.thread.ThreadUtil;
+import cn.hutool.core.util.NumberUtil;
+import cn.hutool.core.util.StrUtil;
+import com.hmdp.dto.SeckillOrderState;
+import com.hmdp.dto.SeckillPersistResult;
+import com.hmdp.entity.VoucherOrder;
+import com.hmdp.service.IVoucherOrderService;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.SmartLifecycle;
+import org.springframework.data.domain.Range;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.connection.stream.Consumer;
+import org.springframework.data.redis.connection.stream.MapRecord;
+import org.springframework.data.redis.connection.stream.PendingMessage;
+import org.springframework.data.redis.connection.stream.PendingMessages;
+import org.springframework.data.redis.connection.stream.PendingMessagesSummary;
+import org.springframework.data.redis.connection.stream.ReadOffset;
+import org.springframework.data.redis.connection.stream.RecordId;
+import org.springframework.data.redis.connection.stream.StreamInfo;
+import org.springframework.data.redis.connection.stream.StreamOffset;
+import org.springframework.data.redis.connection.stream.StreamReadOptions;
+import org.springframework.data.redis.connection.stream.StreamRecords;
+import org.springframework.data.redis.connection.stream.StringRecord;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.io.IOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 秒杀订单stream的消费者，由spring容器管理启停
+ * 读线程从分片stream中攒批，放进有界队列；写线程从队列中取出批次写库并ACK。
+ * 队列满时读线程阻塞，不再从redis读取，消息留在stream中，这就是背压；
+ * 关闭时先停止读取，写线程在截止时间内把队列中已读出的批次写完，没写完的留在pending list中，由恢复线程或重启后认领
+ */
+@Slf4j
+@Component
+public class SeckillOrderConsumer implements SmartLifecycle {
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private IVoucherOrderService voucherOrderService;
+
+    @Resource
+    private SeckillOrderStateStore seckillOrderStateStore;
+
+    @Resource
+    private SeckillOrderSpool seckillOrderSpool;
+
+    // 订单stream按voucherId分片的数量，抢单成功后按 voucherId % shards 把订单写入 stream.orders:{shard}
+    @Value("${hmdp.seckill.order.shards:4}")
+    private int orderShards;
+
+    // 每个应用实例的读线程数，分片按轮询分配给读线程，超过分片数的部分没有意义
+    @Value("${hmdp.seckill.order.consumers:4}")
+    private int orderConsumers;
+
+    // 每个应用实例的写库线程数，按数据库能承受的并发写入量配置
+    @Value("${hmdp.seckill.order.writers:4}")
+    private int orderWriters;
+
+    // 读线程和写线程之间的队列能容纳的批次数
+    @Value("${hmdp.seckill.order.queue-capacity:16}")
+    private int queueCapacity;
+
+    // 消费者组名称
+    @Value("${hmdp.seckill.order.group:g1}")
+    private String groupName;
+
+    // 消费者名称，同一个组内每个实例必须唯一，不配置时使用 主机名:端口
+    @Value("${hmdp.seckill.order.consumer-name:}")
+    private String consumerName;
+
+    @Value("${server.port:8080}")
+    private int serverPort;
+
+    // 每次XREADGROUP最多读取的消息数，也是一次批量写库的订单数上限
+    @Value("${hmdp.seckill.order.batch-size:100}")
+    private int orderBatchSize;
+
+    // 拿到第一条消息后继续攒批的最长时间(ms)，到时间即使没凑满也立即写库
+    @Value("${hmdp.seckill.order.linger-ms:200}")
+    private long orderLingerMillis;
+
+    // 没有消息时XREADGROUP阻塞等待的时间(ms)，也是关闭时等待读线程退出的最长时间
+    @Value("${hmdp.seckill.order.block-ms:1000}")
+    private long blockMillis;
+
+    // 关闭时等待写线程写完队列中批次的最长时间(ms)
+    @Value("${hmdp.seckill.order.shutdown-timeout-ms:10000}")
+    private long shutdownTimeoutMillis;
+
+    // 消息空闲(未ACK)超过这个时间(ms)才会被恢复线程认领，包括其他实例名下的消息
+    @Value("${hmdp.seckill.order.recovery.idle-ms:30000}")
+    private long recoveryIdleMillis;
+
+    // 恢复线程扫描pending list的间隔(ms)
+    @Value("${hmdp.seckill.order.recovery.interval-ms:5000}")
+    private long recoveryIntervalMillis;
+
+    // 一条消息最多投递的次数，超过后转入死信stream
+    @Value("${hmdp.seckill.order.recovery.max-deliveries:3}")
+    private long maxDeliveries;
+
+    private volatile boolean running;
+
+    // 读线程是否继续读取；写线程在读线程全部退出且队列为空后才退出
+    private volatile boolean reading;
+
+    private BlockingQueue<List<MapRecord<String, Object, Object>>> batchQueue;
+
+    private ExecutorService readerExecutor;
+
+    private ExecutorService writerExecutor;
+
+    private ScheduledExecutorService recoveryExecutor;
+
+    // 统计数据，供监控接口查看
+    private final AtomicLong persistedCount = new AtomicLong();
+    private final AtomicLong spooledCount = new AtomicLong();
+    private final AtomicLong rejectedCount = new AtomicLong();
+    private final AtomicLong failedCount = new AtomicLong();
+    private final AtomicLong deadLetterCount = new AtomicLong();
+
+    @Override
+    public synchronized void start() {
+        if (running) {
+            return;
+        }
+        if (StrUtil.isBlank(consumerName)) {
+            consumerName = NetUtil.getLocalHostName() + ":" + serverPort;
+        }
+        // 尝试为每个分片创建消费者组（如果已存在会抛异常，捕获忽略即可）
+        for (int shard = 0; shard < orderShards; shard++) {
+            try {
+                stringRedisTemplate.opsForStream().createGroup(RedisConstants.SECKILL_ORDER_STREAM_KEY + shard, groupName);
+            } catch (Exception e) {
+                // 组已存在，忽略
+            }
+        }
+        batchQueue = new ArrayBlockingQueue<>(Math.max(1, queueCapacity));
+        running = true;
+        reading = true;
+
+        // 1.启动写线程
+        int writers = Math.max(1, orderWriters);
+        writerExecutor = Executors.newFixedThreadPool(writers, namedThreadFactory("seckill-order-writer-"));
+        for (int i = 0; i < writers; i++) {
+            writerExecutor.submit(this::writeLoop);
+        }
+        // 2.启动读线程，把分片轮询分配给读线程，线程i负责 shard % readers == i 的分片
+        int readers = Math.max(1, Math.min(orderConsumers, orderShards));
+        readerExecutor = Executors.newFixedThreadPool(readers, namedThreadFactory("seckill-order-reader-"));
+        for (int i = 0; i < readers; i++) {
+            List<String> streamKeys = new ArrayList<>();
+            for (int shard = i; shard < orderShards; shard += readers) {
+                streamKeys.add(RedisConstants.SECKILL_ORDER_STREAM_KEY + shard);
+            }
+            readerExecutor.submit(() -> readLoop(streamKeys));
+        }
+        // 3.启动pending list恢复线程，定期认领空闲过久的消息
+        recoveryExecutor = Executors.newSingleThreadScheduledExecutor(namedThreadFactory("seckill-order-recovery-"));
+        recoveryExecutor.scheduleWithFixedDelay(this::recoverPendingOrders,
+                recoveryIntervalMillis, recoveryIntervalMillis, TimeUnit.MILLISECONDS);
+        log.info("秒杀订单消费者启动，consumer={}，分片数={}，读线程数={}，写线程数={}",
+                consumerName, orderShards, readers, writers);
+    }
+
+    @Override
+    public synchronized void stop() {
+        if (!running) {
+            return;
+        }
+        long deadline = System.currentTimeMillis() + shutdownTimeoutMillis;
+        // 1.停止认领pending消息，停止从stream读取
+        recoveryExecutor.shutdownNow();
+        reading = false;
+        readerExecutor.shutdown();
+        // 读线程最多阻塞在一次XREADGROUP上，block-ms加上攒批时间内一定会退出
+        awaitTermination(readerExecutor, deadline);
+        // 2.读线程退出后，写线程把队列中剩下的批次写完再退出
+        running = false;
+        writerExecutor.shutdown();
+        if (!awaitTermination(writerExecutor, deadline)) {
+            // 到了截止时间还没写完，剩下的消息没有ACK，留在pending list中，重启后或者由其他实例认领
+            log.warn("秒杀订单消费者关闭超时，队列中还有{}批订单未写库，留在pending list中", batchQueue.size());
+            writerExecutor.shutdownNow();
+        }
+        readerExecutor.shutdownNow();
+        log.info("秒杀订单消费者已关闭，consumer={}", consumerName);
+    }
+
+    @Override
+    public boolean isRunning() {
+        return running;
+    }
+
+    private boolean awaitTermination(ExecutorService executor, long deadline) {
+        try {
+            return executor.awaitTermination(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    private static ThreadFactory namedThreadFactory(String prefix) {
+        AtomicInteger index = new AtomicInteger();
+        return r -> new Thread(r, prefix + index.incrementAndGet());
+    }
+
+    /**
+     * 读线程：从负责的分片中攒批，放进队列，队列满时阻塞等待写线程
+     */
+    private void readLoop(List<String> streamKeys) {
+        while (reading && !Thread.currentThread().isInterrupted()) {
+            try {
+                // 1.批量获取消息队列中的订单信息
+                // XREADGROUP GROUP g1 host:port COUNT n BLOCK 1000 STREAMS stream.orders:0 stream.orders:4 > >
+                // 拿到第一条消息后，在linger时间内继续攒批，直到凑满batchSize或者到达截止时间
+                List<MapRecord<String, Object, Object>> list = readBatch(streamKeys);
+
+                // 2.判断消息是否获取成功
+                if (list.isEmpty()) {
+                    // 没有消息，继续下一次while循环
+                    continue;
+                }
+
+                // 3.交给写线程，队列满了就一直等，期间不再读取新消息
+                // 已经读出的消息一定要放进队列，关闭时由写线程写完
+                batchQueue.put(list);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (Exception e) {
+                if (!reading) {
+                    // 正在关闭，阻塞读取被中断
+                    return;
+                }
+                log.error("读取订单消息异常", e);
+                // 读取stream出错（例如redis连接异常），稍等再重试，避免空转刷日志
+                ThreadUtil.sleep(500);
+            }
+        }
+    }
+
+    /**
+     * 写线程：从队列中取出批次写库并ACK，关闭时把队列中的批次写完才退出
+     */
+    private void writeLoop() {
+        while (running || !batchQueue.isEmpty()) {
+            try {
+                List<MapRecord<String, Object, Object>> batch = batchQueue.poll(500, TimeUnit.MILLISECONDS);
+                if (batch != null) {
+                    // 批量写库并一次性ACK，失败的消息留在pending list中，由恢复线程按空闲时间认领重试
+                    handleRecordsSafely(batch);
+                }
+            } catch (InterruptedException e) {
+                // 关闭超时被强制中断
+                Thread.currentThread().interrupt();
+                return;
+            } catch (Exception e) {
+                log.error("处理订单异常", e);
+            }
+        }
+    }
+
+    /**
+     * 从stream中攒一批新消息
+     * 第一次读取最多阻塞blockMillis等待消息，拿到消息后开始计时，在orderLingerMillis内继续读取，
+     * 直到凑满orderBatchSize条或者到达截止时间
+     * @param streamKeys 要读取的分片stream
+     * @return 读取到的消息，没有消息时返回空列表
+     */
+    private List<MapRecord<String, Object, Object>> readBatch(List<String> streamKeys) {
+        List<MapRecord<String, Object, Object>> batch = new ArrayList<>(orderBatchSize);
+        List<MapRecord<String, Object, Object>> list = stringRedisTemplate.opsForStream().read(
+                Consumer.from(groupName, consumerName),
+                StreamReadOptions.empty().count(orderBatchSize).block(Duration.ofMillis(blockMillis)),
+                streamOffsets(streamKeys, ReadOffset.lastConsumed()));
+        if (list == null || list.isEmpty()) {
+            return batch;
+        }
+        batch.addAll(list);
+
+        long deadline = System.currentTimeMillis() + orderLingerMillis;
+        while (batch.size() < orderBatchSize) {
+            long remaining = deadline - System.currentTimeMillis();
+            // 注意BLOCK 0在redis中表示永久阻塞，所以剩余时间不足1ms就直接结束攒批
+            if (remaining < 1) {
+                break;
+            }
+            list = stringRedisTemplate.opsForStream().read(
+                    Consumer.from(groupName, consumerName),
+                    StreamReadOptions.empty().count(orderBatchSize - batch.size()).block(Duration.ofMillis(remaining)),
+                    streamOffsets(streamKeys, ReadOffset.lastConsumed()));
+            if (list == null || list.isEmpty()) {
+                break;
+            }
+            batch.addAll(list);
+        }
+        return batch;
+    }
+
+    @SuppressWarnings("unchecked")
+    private StreamOffset<String>[] streamOffsets(List<String> streamKeys, ReadOffset offset) {
+        StreamOffset<String>[] offsets = new StreamOffset[streamKeys.size()];
+        for (int i = 0; i < offsets.length; i++) {
+            offsets[i] = StreamOffset.create(streamKeys.get(i), offset);
+        }
+        return offsets;
+    }
+
+    /**
+     * 把一批stream消息解析成订单，批量写库，然后每个分片用一条XACK确认整批消息
+     * @param records 从stream中读取到的消息，可能来自多个分片
+     */
+    private void handleRecords(List<? extends MapRecord<String, ?, ?>> records) {
+        List<VoucherOrder> orders = new ArrayList<>(records.size());
+        // 按分片stream分组消息id，XACK只能针对单个stream
+        Map<String, List<RecordId>> idsByStream = new HashMap<>();
+        for (MapRecord<String, ?, ?> record : records) {
+            // values是一个map，但是他们的键值名称分别是userId,voucherId,id,可以和VoucherOrder中的成员变量对应
+            // 故BeanUtil可自动填入
+            Map<?, ?> values = record.getValue();
+            orders.add(BeanUtil.fillBeanWithMap(values, new VoucherOrder(), true));
+            // record.getStream() 是消息所在的分片stream名称，例如 stream.orders:3
+            // record.getId() 是消息在 Stream 中的唯一标识符，格式通常是 时间戳毫秒数-序号，例如：1642999999000-0
+            idsByStream.computeIfAbsent(record.getStream(), k -> new ArrayList<>()).add(record.getId());
+        }
+
+        if (seckillOrderSpool.isEnabled()) {
+            // 开启了本地日志：订单追加到日志并刷盘后就ACK，由日志的写库线程写入数据库并更新订单状态
+            try {
+                seckillOrderSpool.append(orders);
+            } catch (IOException e) {
+                throw new IllegalStateException("订单写入本地日志失败", e);
+            }
+            acknowledge(idsByStream);
+            spooledCount.addAndGet(orders.size());
+            return;
+        }
+
+        // 执行业务：批量创建订单，重复投递的消息不会重复写库
+        SeckillPersistResult result = voucherOrderService.saveSeckillOrders(orders);
+
+        // 重复的消息也一起确认，不再进入重试
+        acknowledge(idsByStream);
+
+        // 批量更新订单状态，供客户端轮询
+        seckillOrderStateStore.update(orders, result.getPersistedIds(), SeckillOrderState.PERSISTED);
+        // 重复的订单标记失败，并把lua为它扣的库存还回去
+        voucherOrderService.releaseRejectedOrders(orders, result.getRejectedIds());
+        persistedCount.addAndGet(result.getPersistedIds().size());
+        rejectedCount.addAndGet(result.getRejectedIds().size());
+    }
+
+    /**
+     * ACK确认，XACK stream.orders:3 g1 id1 id2 ...，每个分片一条命令确认整批
+     */
+    private void acknowledge(Map<String, List<RecordId>> idsByStream) {
+        for (Map.Entry<String, List<RecordId>> entry : idsByStream.entrySet()) {
+            stringRedisTemplate.opsForStream().acknowledge(entry.getKey(), groupName,
+                    entry.getValue().toArray(new RecordId[0]));
+        }
+    }
+
+    /**
+     * 批量处理一批消息，整批写库失败时逐条重试，把坏消息隔离出来
+     * 重试仍然失败的消息不ACK，记录失败原因后留在pending list中，等待恢复线程认领或转入死信队列
+     * @param records 从stream中读取或认领到的消息
+     */
+    private void handleRecordsSafely(List<? extends MapRecord<String, ?, ?>> records) {
+        try {
+            handleRecords(records);
+            return;
+        } catch (Exception e) {
+            if (records.size() == 1) {
+                recordFailure(records.get(0), e);
+                return;
+            }
+            log.warn("批量写入{}条订单失败，改为逐条重试", records.size(), e);
+        }
+        for (MapRecord<String, ?, ?> record : records) {
+            try {
+                handleRecords(Collections.singletonList(record));
+            } catch (Exception e) {
+                recordFailure(record, e);
+            }
+        }
+    }
+
+    /**
+     * 记录一条消息最近一次的失败原因，转入死信队列时一并写入，方便排查
+     */
+    private void recordFailure(MapRecord<String, ?, ?> record, Exception e) {
+        failedCount.incrementAndGet();
+        log.error("订单消息处理失败，stream={}，id={}", record.getStream(), record.getId(), e);
+        try {
+            stringRedisTemplate.opsForHash().put(RedisConstants.SECKILL_ORDER_FAILURE_KEY,
+                    record.getStream() + "/" + record.getId(),
+                    StrUtil.maxLength(ExceptionUtil.getRootCauseMessage(e), 500));
+        } catch (Exception ex) {
+            log.warn("记录订单失败原因出错", ex);
+        }
+    }
+
+    /**
+     * 恢复线程：扫描所有分片的pending list，不区分消费者
+     * 这样已经宕机的实例名下没ACK的消息也能被其他实例接手
+     */
+    private void recoverPendingOrders() {
+        for (int shard = 0; shard < orderShards && reading; shard++) {
+            String streamKey = RedisConstants.SECKILL_ORDER_STREAM_KEY + shard;
+            try {
+                recoverPendingOrders(streamKey);
+            } catch (Exception e) {
+                log.error("恢复pending list出错，stream={}", streamKey, e);
+            }
+        }
+    }
+
+    /**
+     * 认领一个分片中空闲超过阈值的消息：投递次数没到上限的重新处理，到上限的转入死信队列
+     * @param streamKey 分片stream
+     */
+    private void recoverPendingOrders(String streamKey) {
+        // 1.XPENDING stream.orders:0 g1 - + count，按id从旧到新查看待确认的消息
+        PendingMessages pending = stringRedisTemplate.opsForStream()
+                .pending(streamKey, groupName, Range.unbounded(), orderBatchSize);
+        if (pending == null || pending.isEmpty()) {
+            return;
+        }
+        // 2.挑出空闲时间超过阈值的消息，并记下认领前的投递次数
+        Map<RecordId, Long> deliveries = new HashMap<>();
+        for (PendingMessage message : pending) {
+            if (message.getElapsedTimeSinceLastDelivery().toMillis() >= recoveryIdleMillis) {
+                deliveries.put(message.getId(), message.getTotalDeliveryCount());
+            }
+        }
+        if (deliveries.isEmpty()) {
+            return;
+        }
+        // 3.XCLAIM到当前消费者名下，min-idle-time保证多个实例同时扫描时每条消息只有一个实例能认领成功
+        List<StringRecord> claimed = stringRedisTemplate.execute((RedisCallback<List<StringRecord>>) connection ->
+                ((StringRedisConnection) connection).xClaim(streamKey, groupName, consumerName,
+                        Duration.ofMillis(recoveryIdleMillis), deliveries.keySet().toArray(new RecordId[0])));
+        if (claimed == null || claimed.isEmpty()) {
+            return;
+        }
+        // 4.投递次数到达上限的是坏消息，转入死信队列；其余的重新批量处理
+        List<StringRecord> retry = new ArrayList<>();
+        List<StringRecord> dead = new ArrayList<>();
+        for (StringRecord record : claimed) {
+            Long count = deliveries.get(record.getId());
+            if (count != null && count >= maxDeliveries) {
+                dead.add(record);
+            } else {
+                retry.add(record);
+            }
+        }
+        log.info("认领pending消息，stream={}，重试{}条，转入死信{}条", streamKey, retry.size(), dead.size());
+        if (!retry.isEmpty()) {
+            handleRecordsSafely(retry);
+        }
+        if (!dead.isEmpty()) {
+            deadLetter(streamKey, dead, deliveries);
+        }
+    }
+
+    /**
+     * 把坏消息连同失败原因写入死信stream，然后ACK，不再阻塞订单流水线
+     */
+    private void deadLetter(String streamKey, List<StringRecord> records, Map<RecordId, Long> deliveries) {
+        List<RecordId> ids = new ArrayList<>(records.size());
+        for (StringRecord record : records) {
+            String failureField = streamKey + "/" + record.getId();
+            Object reason = stringRedisTemplate.opsForHash().get(RedisConstants.SECKILL_ORDER_FAILURE_KEY, failureField);
+            Map<String, String> values = new HashMap<>(record.getValue());
+            values.put("sourceStream", streamKey);
+            values.put("sourceId", record.getId().getValue());
+            values.put("deliveries", String.valueOf(deliveries.get(record.getId())));
+            values.put("reason", reason == null ? "unknown" : reason.toString());
+            // XADD stream.orders.dlq * userId .. voucherId .. id .. reason ..
+            stringRedisTemplate.opsForStream().add(StreamRecords.newRecord()
+                    .in(RedisConstants.SECKILL_ORDER_DLQ_KEY).ofMap(values));
+            stringRedisTemplate.opsForHash().delete(RedisConstants.SECKILL_ORDER_FAILURE_KEY, failureField);
+            ids.add(record.getId());
+            log.error("订单消息转入死信队列，stream={}，id={}，原因={}", streamKey, record.getId(), values.get("reason"));
+        }
+        stringRedisTemplate.opsForStream().acknowledge(streamKey, groupName, ids.toArray(new RecordId[0]));
+        deadLetterCount.addAndGet(ids.size());
+
+        // 订单不会再落库：先把redis库存和一人一单的名额还回去，再把订单状态改为失败
+        // 字段不完整的消息不是抢单时写入的，没有对应的库存和状态记录
+        List<VoucherOrder> orders = new ArrayList<>(records.size());
+        for (StringRecord record : records) {
+            Map<String, String> value = record.getValue();
+            if (NumberUtil.isLong(value.get("id")) && NumberUtil.isLong(value.get("userId"))
+                    && NumberUtil.isLong(value.get("voucherId"))) {
+                orders.add(new VoucherOrder().setId(Long.valueOf(value.get("id")))
+                        .setUserId(Long.valueOf(value.get("userId")))
+                        .setVoucherId(Long.valueOf(value.get("voucherId"))));
+            }
+        }
+        if (!orders.isEmpty()) {
+            voucherOrderService.returnSeckillStock(orders);
+        }
+        seckillOrderStateStore.update(orders, SeckillOrderState.FAILED);
+    }
+
+    /**
+     * 消费者的健康和积压情况
+     * 每个分片：stream长度(XLEN)、组内待确认消息数(XPENDING)、每个消费者的待确认数和空闲时间(XINFO CONSUMERS)
+     * 本实例：运行状态、队列中等待写库的批次数、累计处理数、本地日志的积压
+     */
+    public Map<String, Object> metrics() {
+        Map<String, Object> metrics = new LinkedHashMap<>();
+        metrics.put("consumer", consumerName);
+        metrics.put("running", running);
+        metrics.put("queuedBatches", batchQueue == null ? 0 : batchQueue.size());
+        metrics.put("persisted", persistedCount.get());
+        metrics.put("spooled", spooledCount.get());
+        metrics.put("rejected", rejectedCount.get());
+        metrics.put("failed", failedCount.get());
+        metrics.put("deadLettered", deadLetterCount.get());
+
+        List<Map<String, Object>> shards = new ArrayList<>(orderShards);
+        for (int shard = 0; shard < orderShards; shard++) {
+            String streamKey = RedisConstants.SECKILL_ORDER_STREAM_KEY + shard;
+            Map<String, Object> shardMetrics = new LinkedHashMap<>();
+            shardMetrics.put("stream", streamKey);
+            try {
+                shardMetrics.put("length", stringRedisTemplate.opsForStream().size(streamKey));
+                PendingMessagesSummary summary = stringRedisTemplate.opsForStream().pending(streamKey, groupName);
+                shardMetrics.put("pending", summary == null ? 0 : summary.getTotalPendingMessages());
+                Map<String, Object> consumers = new LinkedHashMap<>();
+                StreamInfo.XInfoConsumers infos = stringRedisTemplate.opsForStream().consumers(streamKey, groupName);
+                infos.forEach(info -> {
+                    Map<String, Object> consumer = new LinkedHashMap<>();
+                    consumer.put("pending", info.pendingCount());
+                    consumer.put("idleMs", info.idleTimeMs());
+                    consumers.put(info.consumerName(), consumer);
+                });
+                shardMetrics.put("consumers", consumers);
+            } catch (Exception e) {
+                shardMetrics.put("error", ExceptionUtil.getRootCauseMessage(e));
+            }
+            shards.add(shardMetrics);
+        }
+        metrics.put("shards", shards);
+        metrics.put("spool", seckillOrderSpool.metrics());
+        return metrics;
+    }
+}
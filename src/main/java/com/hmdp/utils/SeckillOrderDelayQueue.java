@@ -0,0 +1,128 @@
+package com.hmdp.utils;
+
+import com.hmdp.entity.VoucherOrder;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 未支付订单的支付超时延时队列
+ * 每个分片一个zset：seckill:order:delay:{shard}，score是支付截止时间(ms)，member是订单id，
+ * 分片规则和订单stream一致(voucherId % shards)，抢单成功后和订单消息在同一个管道中加入，
+ * 数百万个待支付订单分散在多个key上，到期查询只扫描zset头部已经到期的部分
+ */
+@Component
+public class SeckillOrderDelayQueue {
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    // 分片数，和订单stream一致
+    @Value("${hmdp.seckill.order.shards:4}")
+    private int shards;
+
+    // 支付超时时间(分钟)，0表示不自动取消
+    @Value("${hmdp.seckill.pay-timeout.minutes:15}")
+    private long payTimeoutMinutes;
+
+    // 认领的可见性超时，认领的节点在这个时间内没有处理完，订单会重新到期被其他节点认领
+    @Value("${hmdp.seckill.pay-timeout.claim-visibility-ms:60000}")
+    private long claimVisibilityMs;
+
+    private static final DefaultRedisScript<List> CLAIM_SCRIPT;
+    static {
+        CLAIM_SCRIPT = new DefaultRedisScript<>();
+        CLAIM_SCRIPT.setLocation(new ClassPathResource("seckill_delay_claim.lua"));
+        CLAIM_SCRIPT.setResultType(List.class);
+    }
+
+    public static String key(int shard) {
+        return RedisConstants.SECKILL_ORDER_DELAY_KEY + shard;
+    }
+
+    public int getShards() {
+        return shards;
+    }
+
+    /**
+     * @return 抢单成功后写入延时队列用的支付超时时间(ms)，0表示不加入延时队列
+     */
+    public long getPayTimeoutMillis() {
+        return TimeUnit.MINUTES.toMillis(payTimeoutMinutes);
+    }
+
+    /**
+     * 认领一个分片中已经到期的订单
+     * @param shard 分片号
+     * @param now   当前时间(ms)
+     * @param limit 最多认领的数量
+     * @return 认领到的订单id
+     */
+    public List<Long> claim(int shard, long now, int limit) {
+        List<?> ids = stringRedisTemplate.execute(CLAIM_SCRIPT, Collections.singletonList(key(shard)),
+                String.valueOf(now), String.valueOf(limit), String.valueOf(claimVisibilityMs));
+        if (ids == null || ids.isEmpty()) {
+            return Collections.emptyList();
+        }
+        List<Long> orderIds = new ArrayList<>(ids.size());
+        for (Object id : ids) {
+            orderIds.add(Long.valueOf(id.toString()));
+        }
+        return orderIds;
+    }
+
+    /**
+     * 处理完成的订单移出延时队列
+     */
+    public void remove(int shard, Collection<Long> orderIds) {
+        if (orderIds.isEmpty()) {
+            return;
+        }
+        stringRedisTemplate.opsForZSet().remove(key(shard), orderIds.stream().map(String::valueOf).toArray());
+    }
+
+    /**
+     * 已支付或已取消的订单移出延时队列，用一次管道按分片批量ZREM
+     */
+    public void remove(Collection<VoucherOrder> orders) {
+        if (orders.isEmpty()) {
+            return;
+        }
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection conn = (StringRedisConnection) connection;
+            for (VoucherOrder order : orders) {
+                conn.zRem(key((int) (order.getVoucherId() % shards)), order.getId().toString());
+            }
+            return null;
+        });
+    }
+
+    /**
+     * @return 每个分片中等待支付的订单数
+     */
+    public List<Long> sizes() {
+        List<Object> sizes = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection conn = (StringRedisConnection) connection;
+            for (int shard = 0; shard < shards; shard++) {
+                conn.zCard(key(shard));
+            }
+            return null;
+        });
+        List<Long> result = new ArrayList<>(sizes.size());
+        for (Object size : sizes) {
+            result.add(size == null ? 0L : (Long) size);
+        }
+        return result;
+    }
+}
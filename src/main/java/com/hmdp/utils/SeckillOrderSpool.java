@@ -0,0 +1,451 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.exceptions.ExceptionUtil;
+import cn.hutool.core.thread.ThreadUtil;
+import cn.hutool.core.util.StrUtil;
+import com.hmdp.dto.SeckillOrderState;
+import com.hmdp.dto.SeckillPersistResult;
+import com.hmdp.entity.VoucherOrder;
+import com.hmdp.service.IVoucherOrderService;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.SmartLifecycle;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.data.redis.connection.stream.StreamRecords;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.zip.CRC32;
+
+/**
+ * 秒杀订单的本地预写日志(spool)
+ * 开启后，订单消费者把解析好的订单追加到本地日志并刷盘，然后立即ACK stream，
+ * 由单独的写库线程按检查点顺序把日志批量写入数据库。数据库变慢或宕机时订单先落在本地磁盘，
+ * redis中的stream和pending list不会因此堆积；数据库恢复后写库线程以大批量追平，重启后从检查点继续回放。
+ * <p>
+ * 日志按段存放：spool-{段号}.log，每段是一个固定大小的内存映射文件，
+ * 每条记录是 长度(4字节) + CRC32(4字节) + 若干个订单(每个订单 id、userId、voucherId 共24字节)，
+ * 长度为0或者校验失败的位置视为段的结尾（崩溃时写了一半的记录会被丢弃，它对应的stream消息还没有ACK）。
+ * 检查点文件记录下一条待写库记录的段号和偏移量。
+ */
+@Slf4j
+@Component
+public class SeckillOrderSpool implements SmartLifecycle {
+
+    private static final int HEADER_BYTES = 8;
+    private static final int ORDER_BYTES = 24;
+    private static final String SEGMENT_PREFIX = "spool-";
+    private static final String SEGMENT_SUFFIX = ".log";
+    private static final String CHECKPOINT_FILE = "checkpoint";
+
+    @Resource
+    private IVoucherOrderService voucherOrderService;
+
+    @Resource
+    private SeckillOrderStateStore seckillOrderStateStore;
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    // 是否把订单先写入本地日志再ACK，关闭时仍会把目录中遗留的日志写完
+    @Value("${hmdp.seckill.spool.enabled:false}")
+    private boolean enabled;
+
+    // 日志目录，同一台机器上的多个实例必须使用不同的目录
+    @Value("${hmdp.seckill.spool.dir:data/seckill-spool}")
+    private String dir;
+
+    // 每个日志段的大小(MB)
+    @Value("${hmdp.seckill.spool.segment-size-mb:64}")
+    private int segmentSizeMb;
+
+    // 写库线程每批最多写入的订单数
+    @Value("${hmdp.seckill.spool.drain-batch-size:1000}")
+    private int drainBatchSize;
+
+    private Path directory;
+
+    private int segmentSize;
+
+    // 段号 -> 日志段
+    private final ConcurrentSkipListMap<Long, Segment> segments = new ConcurrentSkipListMap<>();
+
+    // 当前追加的日志段，只在append和start中修改
+    private Segment active;
+
+    private volatile boolean running;
+
+    private Thread drainer;
+
+    private static class Segment {
+        private final long seq;
+        private final Path path;
+        private final MappedByteBuffer buffer;
+        // 已经写入并刷盘的数据的结尾，读线程只读取这个位置之前的数据
+        private volatile int end;
+        // 不再追加的段，读到end就可以进入下一段
+        private volatile boolean sealed;
+
+        private Segment(long seq, Path path, MappedByteBuffer buffer) {
+            this.seq = seq;
+            this.path = path;
+            this.buffer = buffer;
+        }
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * 追加一批订单并刷盘，返回后调用方才能ACK对应的stream消息
+     * @param orders 订单列表，不能为空
+     */
+    public synchronized void append(List<VoucherOrder> orders) throws IOException {
+        if (!running) {
+            throw new IllegalStateException("订单日志未启动");
+        }
+        int length = orders.size() * ORDER_BYTES;
+        if (HEADER_BYTES + length > segmentSize) {
+            throw new IllegalArgumentException("一批订单超过了日志段大小：" + orders.size());
+        }
+        // 1.当前段放不下就换一个新段
+        if (active.end + HEADER_BYTES + length > segmentSize) {
+            active.sealed = true;
+            active = openSegment(active.seq + 1);
+        }
+        // 2.先写订单数据和校验和，最后写长度，再整体刷盘
+        MappedByteBuffer buffer = active.buffer;
+        int position = active.end;
+        int offset = position + HEADER_BYTES;
+        for (VoucherOrder order : orders) {
+            buffer.putLong(offset, order.getId());
+            buffer.putLong(offset + 8, order.getUserId());
+            buffer.putLong(offset + 16, order.getVoucherId());
+            offset += ORDER_BYTES;
+        }
+        buffer.putInt(position + 4, crc(buffer, position + HEADER_BYTES, length));
+        buffer.putInt(position, length);
+        buffer.force();
+        // 3.发布新的结尾，写库线程可以读到这批订单了
+        active.end = offset;
+    }
+
+    @Override
+    public synchronized void start() {
+        if (running) {
+            return;
+        }
+        try {
+            directory = Paths.get(dir);
+            segmentSize = segmentSizeMb * 1024 * 1024;
+            List<Long> existing = Files.isDirectory(directory) ? existingSegments() : Collections.emptyList();
+            if (!enabled && existing.isEmpty()) {
+                // 没有开启，也没有遗留的日志
+                return;
+            }
+            Files.createDirectories(directory);
+            // 1.打开已有的日志段，扫描出每段的有效结尾
+            for (long seq : existing) {
+                Segment segment = openSegment(seq);
+                segment.end = scanEnd(segment);
+                segment.sealed = true;
+            }
+            // 2.开启时在最后一段之后开一个新段用于追加，旧段都不再写入；没开启时只回放遗留的日志
+            if (enabled) {
+                active = openSegment(segments.isEmpty() ? 0 : segments.lastKey() + 1);
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("打开订单日志失败：" + dir, e);
+        }
+        running = true;
+        // 3.启动写库线程，从检查点继续回放
+        long[] checkpoint = readCheckpoint();
+        drainer = new Thread(() -> drainLoop(checkpoint[0], (int) checkpoint[1]), "seckill-order-spool-drainer");
+        drainer.start();
+        log.info("订单日志启动，enabled={}，目录={}，检查点={}:{}，段数={}",
+                enabled, directory.toAbsolutePath(), checkpoint[0], checkpoint[1], segments.size());
+    }
+
+    /**
+     * 订单消费者先停止(phase更大的先停)，然后写库线程写完当前批次后退出，未写库的订单留在日志中，重启后回放
+     */
+    @Override
+    public synchronized void stop() {
+        if (!running) {
+            return;
+        }
+        running = false;
+        try {
+            drainer.join(10000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        log.info("订单日志已关闭，未写库的订单在下次启动时回放");
+    }
+
+    @Override
+    public boolean isRunning() {
+        return running;
+    }
+
+    @Override
+    public int getPhase() {
+        // 比订单消费者(DEFAULT_PHASE)先启动、后停止
+        return DEFAULT_PHASE - 1;
+    }
+
+    /**
+     * 写库线程：从检查点开始顺序读取日志，攒够一批写入数据库，成功后推进检查点，删除已经写完的段
+     * 数据库写入失败时按指数退避重试同一批，saveSeckillOrders是幂等的，重复写入同一批不会产生重复订单
+     */
+    private void drainLoop(long seq, int offset) {
+        int failures = 0;
+        while (running) {
+            Segment segment = segments.get(seq);
+            if (segment == null) {
+                // 检查点指向的段已经不存在（例如日志目录被清理过），从最早的段开始
+                Long first = segments.ceilingKey(seq);
+                if (first == null) {
+                    if (!enabled) {
+                        // 没开启时遗留的日志已经全部回放完
+                        log.info("遗留的订单日志已经全部写库");
+                        return;
+                    }
+                    pause(100);
+                    continue;
+                }
+                seq = first;
+                offset = 0;
+                continue;
+            }
+            // 1.读取一批订单
+            List<VoucherOrder> orders = new ArrayList<>();
+            int next = offset;
+            int end = segment.end;
+            while (next < end && orders.size() < drainBatchSize) {
+                int length = segment.buffer.getInt(next);
+                for (int p = next + HEADER_BYTES; p < next + HEADER_BYTES + length; p += ORDER_BYTES) {
+                    VoucherOrder order = new VoucherOrder();
+                    order.setId(segment.buffer.getLong(p));
+                    order.setUserId(segment.buffer.getLong(p + 8));
+                    order.setVoucherId(segment.buffer.getLong(p + 16));
+                    orders.add(order);
+                }
+                next += HEADER_BYTES + length;
+            }
+            if (orders.isEmpty()) {
+                if (segment.sealed && next >= segment.end) {
+                    // 2.这一段已经写完，进入下一段并删除它
+                    seq++;
+                    offset = 0;
+                    writeCheckpoint(seq, offset);
+                    deleteSegment(segment);
+                } else {
+                    pause(50);
+                }
+                continue;
+            }
+            // 3.写入数据库，成功后推进检查点
+            try {
+                drain(orders);
+                failures = 0;
+                offset = next;
+                writeCheckpoint(seq, offset);
+            } catch (Exception e) {
+                failures++;
+                long backoff = Math.min(30000, 500L << Math.min(failures, 6));
+                log.warn("订单日志写库失败，{}ms后重试，连续失败{}次：{}", backoff, failures, ExceptionUtil.getRootCauseMessage(e));
+                pause(backoff);
+            }
+        }
+    }
+
+    /**
+     * 可以被stop打断的等待，不使用中断，避免打断正在进行的数据库写入
+     */
+    private void pause(long millis) {
+        long deadline = System.currentTimeMillis() + millis;
+        while (running && System.currentTimeMillis() < deadline) {
+            ThreadUtil.sleep(Math.min(50, deadline - System.currentTimeMillis()));
+        }
+    }
+
+    /**
+     * 把一批订单写入数据库并更新订单状态
+     * 只有数据本身有问题(违反约束等)时才逐条写入，把坏订单转入死信队列；数据库不可用时整批抛出，由调用方重试
+     */
+    private void drain(List<VoucherOrder> orders) {
+        try {
+            updateState(orders, voucherOrderService.saveSeckillOrders(orders));
+            return;
+        } catch (DataIntegrityViolationException e) {
+            log.warn("批量写入{}条订单违反约束，改为逐条写入", orders.size(), e);
+        }
+        for (VoucherOrder order : orders) {
+            try {
+                List<VoucherOrder> single = Collections.singletonList(order);
+                updateState(single, voucherOrderService.saveSeckillOrders(single));
+            } catch (DataIntegrityViolationException e) {
+                deadLetter(order, e);
+            }
+        }
+    }
+
+    private void updateState(List<VoucherOrder> orders, SeckillPersistResult result) {
+        seckillOrderStateStore.update(orders, result.getPersistedIds(), SeckillOrderState.PERSISTED);
+        voucherOrderService.releaseRejectedOrders(orders, result.getRejectedIds());
+    }
+
+    private void deadLetter(VoucherOrder order, Exception e) {
+        Map<String, String> values = new HashMap<>();
+        values.put("id", String.valueOf(order.getId()));
+        values.put("userId", String.valueOf(order.getUserId()));
+        values.put("voucherId", String.valueOf(order.getVoucherId()));
+        values.put("sourceStream", "spool");
+        values.put("reason", StrUtil.maxLength(ExceptionUtil.getRootCauseMessage(e), 500));
+        stringRedisTemplate.opsForStream().add(StreamRecords.newRecord()
+                .in(RedisConstants.SECKILL_ORDER_DLQ_KEY).ofMap(values));
+        // 订单不会再落库，先归还redis库存，再标记失败
+        voucherOrderService.returnSeckillStock(Collections.singletonList(order));
+        seckillOrderStateStore.update(Collections.singletonList(order), SeckillOrderState.FAILED);
+        log.error("订单日志中的订单转入死信队列，id={}，原因={}", order.getId(), values.get("reason"));
+    }
+
+    /**
+     * 日志积压情况，供监控接口查看
+     */
+    public Map<String, Object> metrics() {
+        Map<String, Object> metrics = new LinkedHashMap<>();
+        metrics.put("enabled", enabled);
+        metrics.put("running", running);
+        metrics.put("segments", segments.size());
+        long[] checkpoint = running ? readCheckpoint() : new long[]{0, 0};
+        long backlogBytes = 0;
+        for (Segment segment : segments.values()) {
+            if (segment.seq > checkpoint[0]) {
+                backlogBytes += segment.end;
+            } else if (segment.seq == checkpoint[0]) {
+                backlogBytes += Math.max(0, segment.end - checkpoint[1]);
+            }
+        }
+        metrics.put("backlogBytes", backlogBytes);
+        metrics.put("backlogOrders", backlogBytes / ORDER_BYTES);
+        return metrics;
+    }
+
+    private List<Long> existingSegments() throws IOException {
+        List<Long> seqs = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX)) {
+            for (Path path : stream) {
+                String name = path.getFileName().toString();
+                seqs.add(Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length())));
+            }
+        }
+        Collections.sort(seqs);
+        return seqs;
+    }
+
+    private Segment openSegment(long seq) throws IOException {
+        Path path = directory.resolve(String.format("%s%020d%s", SEGMENT_PREFIX, seq, SEGMENT_SUFFIX));
+        try (RandomAccessFile file = new RandomAccessFile(path.toFile(), "rw");
+             FileChannel channel = file.getChannel()) {
+            // 新文件按段大小预先分配，未写入的部分都是0
+            if (file.length() < segmentSize) {
+                file.setLength(segmentSize);
+            }
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, file.length());
+            Segment segment = new Segment(seq, path, buffer);
+            segments.put(seq, segment);
+            return segment;
+        }
+    }
+
+    /**
+     * 从段头开始逐条校验，返回最后一条完整记录的结尾
+     */
+    private int scanEnd(Segment segment) {
+        MappedByteBuffer buffer = segment.buffer;
+        int position = 0;
+        while (position + HEADER_BYTES <= buffer.capacity()) {
+            int length = buffer.getInt(position);
+            if (length <= 0 || length % ORDER_BYTES != 0 || position + HEADER_BYTES + length > buffer.capacity()) {
+                break;
+            }
+            if (crc(buffer, position + HEADER_BYTES, length) != buffer.getInt(position + 4)) {
+                log.warn("订单日志{}在偏移量{}处校验失败，之后的数据被丢弃", segment.path, position);
+                break;
+            }
+            position += HEADER_BYTES + length;
+        }
+        return position;
+    }
+
+    private void deleteSegment(Segment segment) {
+        segments.remove(segment.seq);
+        try {
+            Files.deleteIfExists(segment.path);
+        } catch (IOException e) {
+            log.warn("删除订单日志段失败：{}", segment.path, e);
+        }
+    }
+
+    private static int crc(ByteBuffer buffer, int offset, int length) {
+        ByteBuffer view = buffer.duplicate();
+        view.position(offset);
+        view.limit(offset + length);
+        CRC32 crc = new CRC32();
+        crc.update(view);
+        return (int) crc.getValue();
+    }
+
+    /**
+     * 检查点格式：段号 偏移量
+     */
+    private long[] readCheckpoint() {
+        Path path = directory.resolve(CHECKPOINT_FILE);
+        try {
+            if (Files.exists(path)) {
+                String[] parts = new String(Files.readAllBytes(path), StandardCharsets.UTF_8).trim().split(" ");
+                return new long[]{Long.parseLong(parts[0]), Long.parseLong(parts[1])};
+            }
+        } catch (Exception e) {
+            log.warn("读取订单日志检查点失败，从最早的段开始回放", e);
+        }
+        return new long[]{segments.isEmpty() ? 0 : segments.firstKey(), 0};
+    }
+
+    /**
+     * 先写临时文件再原子替换，崩溃时检查点要么是旧值要么是新值
+     */
+    private void writeCheckpoint(long seq, int offset) {
+        Path path = directory.resolve(CHECKPOINT_FILE);
+        Path tmp = directory.resolve(CHECKPOINT_FILE + ".tmp");
+        try {
+            Files.write(tmp, (seq + " " + offset).getBytes(StandardCharsets.UTF_8));
+            Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            // 检查点落后只会导致重启后重复回放，写库是幂等的
+            log.warn("写入订单日志检查点失败", e);
+        }
+    }
+}
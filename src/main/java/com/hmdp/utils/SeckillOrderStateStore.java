@@ -0,0 +1,99 @@
+package com.hmdp.utils;
+
+import com.hmdp.dto.SeckillOrderState;
+import com.hmdp.entity.VoucherOrder;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+/**
+ * 秒杀订单状态记录
+ * 按订单id的时间戳部分(秒)分桶：seckill:order:state:{秒} 是一个hash，field是订单id，value是一个字符的状态code加上下单用户id，
+ * 同一秒创建的订单共用一个小hash，比每个订单一个key紧凑得多，整个桶一起过期；带上用户id是为了只让下单用户查询自己的订单
+ * 抢单成功后和订单消息在同一个管道中写入QUEUED，消费者落库后用管道批量改成PERSISTED
+ */
+@Component
+public class SeckillOrderStateStore {
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    // 状态记录的保留时间(秒)
+    @Value("${hmdp.seckill.order.state-ttl-seconds:86400}")
+    private long stateTtlSeconds;
+
+    public long getStateTtlSeconds() {
+        return stateTtlSeconds;
+    }
+
+    /**
+     * @param orderId 订单id
+     * @return 订单所在的状态桶key
+     */
+    public static String bucketKey(long orderId) {
+        return RedisConstants.SECKILL_ORDER_STATE_KEY + (orderId >>> 32);
+    }
+
+    public SeckillOrderState get(Long orderId) {
+        Object value = stringRedisTemplate.opsForHash().get(bucketKey(orderId), orderId.toString());
+        return value == null ? null : SeckillOrderState.ofCode(value.toString().substring(0, 1));
+    }
+
+    /**
+     * 查询某个用户的订单状态
+     * @return 记录不存在、或者订单不是这个用户的时返回null
+     */
+    public SeckillOrderState get(Long orderId, Long userId) {
+        Object value = stringRedisTemplate.opsForHash().get(bucketKey(orderId), orderId.toString());
+        if (value == null || !value.toString().substring(1).equals(userId.toString())) {
+            return null;
+        }
+        return SeckillOrderState.ofCode(value.toString().substring(0, 1));
+    }
+
+    /**
+     * 用一次管道批量更新一批订单的状态
+     */
+    public void update(Collection<VoucherOrder> orders, SeckillOrderState state) {
+        if (orders.isEmpty()) {
+            return;
+        }
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection conn = (StringRedisConnection) connection;
+            for (VoucherOrder order : orders) {
+                String key = bucketKey(order.getId());
+                conn.hSet(key, order.getId().toString(), state.getCode() + order.getUserId());
+                conn.expire(key, stateTtlSeconds);
+            }
+            return null;
+        });
+    }
+
+    /**
+     * 批量更新orders中id在orderIds里的订单的状态，落库结果只有订单id，下单用户从orders中取
+     */
+    public void update(List<VoucherOrder> orders, Collection<Long> orderIds, SeckillOrderState state) {
+        if (orderIds.isEmpty()) {
+            return;
+        }
+        Set<Long> ids = new HashSet<>(orderIds);
+        update(orders.stream().filter(order -> ids.contains(order.getId())).collect(Collectors.toList()), state);
+    }
+
+    /**
+     * 状态记录是否可能已经过期：订单创建时间早于保留时间的，redis中查不到是正常的
+     */
+    public boolean mayBeExpired(long orderId) {
+        long createdAt = RedisWorker.epochSecondOf(orderId);
+        return RedisWorker.currentEpochSecond() - createdAt >= stateTtlSeconds;
+    }
+}
@@ -0,0 +1,105 @@
+package com.hmdp.utils;
+
+import com.hmdp.dto.SeckillOrderState;
+import com.hmdp.dto.VoucherOrderTransition;
+import com.hmdp.entity.VoucherOrder;
+import com.hmdp.service.IVoucherOrderService;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 未支付订单超时取消任务
+ * 定时从延时队列认领到期的订单，一条UPDATE批量取消，一次lua调用把库存还给redis，
+ * 认领是原子的并且带可见性超时，多个节点同时运行也不会重复处理，节点挂掉时订单会被其他节点重新认领
+ */
+@Slf4j
+@Component
+public class SeckillOrderTimeoutCanceller {
+
+    @Resource
+    private IVoucherOrderService voucherOrderService;
+
+    @Resource
+    private SeckillOrderDelayQueue seckillOrderDelayQueue;
+
+    @Resource
+    private SeckillOrderStateStore seckillOrderStateStore;
+
+    // 每批认领的订单数
+    @Value("${hmdp.seckill.pay-timeout.batch-size:500}")
+    private int batchSize;
+
+    // 每个分片每轮最多处理的批数，避免积压很多时一直占用调度线程
+    @Value("${hmdp.seckill.pay-timeout.max-batches:20}")
+    private int maxBatches;
+
+    private final LongAdder cancelled = new LongAdder();
+
+    @Scheduled(initialDelayString = "${hmdp.seckill.pay-timeout.poll-interval-ms:1000}",
+            fixedDelayString = "${hmdp.seckill.pay-timeout.poll-interval-ms:1000}")
+    public void cancelExpiredOrders() {
+        if (seckillOrderDelayQueue.getPayTimeoutMillis() <= 0) {
+            return;
+        }
+        for (int shard = 0; shard < seckillOrderDelayQueue.getShards(); shard++) {
+            try {
+                for (int i = 0; i < maxBatches; i++) {
+                    List<Long> orderIds = seckillOrderDelayQueue.claim(shard, System.currentTimeMillis(), batchSize);
+                    if (orderIds.isEmpty()) {
+                        break;
+                    }
+                    handleExpired(shard, orderIds);
+                    if (orderIds.size() < batchSize) {
+                        break;
+                    }
+                }
+            } catch (Exception e) {
+                // 没有处理完的订单在可见性超时后重新到期
+                log.error("取消分片{}的超时订单失败", shard, e);
+            }
+        }
+    }
+
+    private void handleExpired(int shard, List<Long> orderIds) {
+        // 1.批量取消仍未支付的订单，数据库和redis库存都会加回
+        List<VoucherOrder> orders = voucherOrderService.transitOrders(orderIds, VoucherOrderTransition.CANCEL, null);
+        cancelled.add(orders.size());
+        Set<Long> done = new HashSet<>();
+        orders.forEach(order -> done.add(order.getId()));
+        // 2.剩下的订单：数据库中已经存在的是已支付或已取消，直接移出队列
+        List<Long> remaining = new ArrayList<>();
+        for (Long orderId : orderIds) {
+            if (!done.contains(orderId)) {
+                remaining.add(orderId);
+            }
+        }
+        if (!remaining.isEmpty()) {
+            voucherOrderService.query().select("id").in("id", remaining).list()
+                    .forEach(order -> done.add(order.getId()));
+        }
+        // 3.数据库中还没有的订单：还在排队等待落库的保留在队列中，可见性超时后再处理；
+        // 落库失败的订单转入死信队列时已经归还了redis库存，这里只移出队列
+        for (Long orderId : remaining) {
+            if (!done.contains(orderId) && seckillOrderStateStore.get(orderId) != SeckillOrderState.QUEUED) {
+                done.add(orderId);
+            }
+        }
+        seckillOrderDelayQueue.remove(shard, done);
+        if (!orders.isEmpty()) {
+            log.info("分片{}取消了{}个超时未支付的订单", shard, orders.size());
+        }
+    }
+
+    public long getCancelled() {
+        return cancelled.sum();
+    }
+}
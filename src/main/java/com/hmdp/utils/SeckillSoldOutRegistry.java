@@ -0,0 +1,101 @@
+package com.hmdp.utils;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 本地(JVM内)的秒杀券售罄标记
+ * 秒杀脚本返回库存不足后在本地记下售罄，之后的请求不再申请订单id、也不再执行lua脚本，直接返回库存不足
+ * 补充库存时通过redis pub/sub广播，所有节点清除这个券的售罄标记
+ */
+@Slf4j
+@Component
+public class SeckillSoldOutRegistry {
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private RedisMessageListenerContainer redisMessageListenerContainer;
+
+    // 售罄标记的兜底有效期(ms)，防止错过广播消息时标记一直不消失
+    @Value("${hmdp.seckill.sold-out.ttl-ms:60000}")
+    private long soldOutTtlMillis;
+
+    // voucherId -> 售罄标记的过期时间戳
+    private final Map<Long, Long> soldOut = new ConcurrentHashMap<>();
+
+    // 每清除一次标记加一，用来丢弃在清除之前发起、在清除之后才返回的"库存不足"结果
+    private final AtomicLong epoch = new AtomicLong();
+
+    @PostConstruct
+    private void init() {
+        redisMessageListenerContainer.addMessageListener((message, pattern) -> {
+            String body = new String(message.getBody(), StandardCharsets.UTF_8);
+            try {
+                clearLocal(Long.valueOf(body));
+            } catch (NumberFormatException e) {
+                log.warn("收到无法解析的售罄清除消息: {}", body);
+            }
+        }, new ChannelTopic(RedisConstants.SECKILL_SOLD_OUT_CHANNEL));
+    }
+
+    /**
+     * @return 当前的清除版本号，执行秒杀脚本之前获取，标记售罄时传回
+     */
+    public long epoch() {
+        return epoch.get();
+    }
+
+    /**
+     * 判断本地是否已经标记售罄
+     */
+    public boolean isSoldOut(Long voucherId) {
+        Long expireAt = soldOut.get(voucherId);
+        if (expireAt == null) {
+            return false;
+        }
+        if (expireAt < System.currentTimeMillis()) {
+            soldOut.remove(voucherId, expireAt);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * 秒杀脚本返回库存不足时标记售罄
+     * @param voucherId 优惠券id
+     * @param epoch     执行脚本之前获取的版本号，期间如果有补库存的清除消息则不标记
+     */
+    public void markSoldOut(Long voucherId, long epoch) {
+        soldOut.put(voucherId, System.currentTimeMillis() + soldOutTtlMillis);
+        if (this.epoch.get() != epoch) {
+            // 脚本执行期间库存被补充过，这次的库存不足结果可能已经过时
+            soldOut.remove(voucherId);
+        }
+    }
+
+    /**
+     * 库存补充后调用，广播给所有节点（包括自己）清除售罄标记
+     */
+    public void publishReplenished(Long voucherId) {
+        clearLocal(voucherId);
+        stringRedisTemplate.convertAndSend(RedisConstants.SECKILL_SOLD_OUT_CHANNEL, voucherId.toString());
+    }
+
+    private void clearLocal(Long voucherId) {
+        epoch.incrementAndGet();
+        soldOut.remove(voucherId);
+    }
+}
@@ -0,0 +1,98 @@
+package com.hmdp.utils;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * 秒杀库存相关的redis key工具类，和seckill.lua中的key规则保持一致
+ * 每个库存分段的key带相同的hash tag {voucherId:分段号}，在集群中落在同一个slot，seckill.lua只访问一个分段的key：
+ * 库存 sekill:{voucherId:分段号}:stock，下单用户集合 sekill:{voucherId:分段号}:order，售卖时间段 sekill:{voucherId:分段号}:window
+ * 用户固定属于 userId % 分段数 这个分段，一人一单只在这个分段的下单用户集合中判断；不分段时只有分段0
+ * 分段数记录在 sekill:meta{voucherId} 的 segments 字段，没有记录时按1处理
+ */
+public class SeckillStockKeys {
+
+    public static final String SEGMENTS_FIELD = "segments";
+
+    public static String metaKey(Long voucherId) {
+        return RedisConstants.SEKILL_META_KEY + voucherId;
+    }
+
+    /**
+     * @param voucherId 优惠券id
+     * @param segment   分段号，segments为1时忽略
+     * @param segments  分段数
+     * @return 库存key
+     */
+    public static String stockKey(Long voucherId, int segment, int segments) {
+        return segmentKey(voucherId, segment, segments) + ":stock";
+    }
+
+    /**
+     * @param voucherId 优惠券id
+     * @param userId    用户id
+     * @param segments  分段数
+     * @return 用户所在的下单用户集合key
+     */
+    public static String orderKey(Long voucherId, Long userId, int segments) {
+        return orderSetKey(voucherId, homeSegment(userId, segments), segments);
+    }
+
+    /**
+     * @return 用户所在的分段号，一人一单按这个分段的下单用户集合判断
+     */
+    public static int homeSegment(Long userId, int segments) {
+        return segments <= 1 ? 0 : (int) (userId % segments);
+    }
+
+    /**
+     * @param voucherId 优惠券id
+     * @param segment   分段号，segments为1时忽略
+     * @param segments  分段数
+     * @return 该分段的下单用户集合key
+     */
+    public static String orderSetKey(Long voucherId, int segment, int segments) {
+        return segmentKey(voucherId, segment, segments) + ":order";
+    }
+
+    /**
+     * @return 该分段的售卖时间段hash，字段和元数据中的begin/end相同，seckill.lua在分段所在的slot内判断时间段
+     */
+    public static String windowKey(Long voucherId, int segment, int segments) {
+        return segmentKey(voucherId, segment, segments) + ":window";
+    }
+
+    private static String segmentKey(Long voucherId, int segment, int segments) {
+        return RedisConstants.SEKILL_SEGMENT_KEY + "{" + voucherId + ":" + (segments <= 1 ? 0 : segment) + "}";
+    }
+
+    /**
+     * @return 没有hash tag的旧库存key：sekill:stock{voucherId}，分段时后面拼接 :{分段号}，只用于预热时迁移
+     */
+    public static String legacyStockKey(Long voucherId, int segment, int segments) {
+        return RedisConstants.SEKILL_STOCK_KEY + voucherId + (segments <= 1 ? "" : ":" + segment);
+    }
+
+    /**
+     * @return 没有hash tag的旧下单用户集合key，只用于预热时迁移
+     */
+    public static String legacyOrderSetKey(Long voucherId, int segment, int segments) {
+        return RedisConstants.SEKILL_ORDER_KEY + voucherId + (segments <= 1 ? "" : ":" + segment);
+    }
+
+    /**
+     * 把库存平均拆到各个分段，除不尽的部分依次分给前面的分段
+     * @param voucherId 优惠券id
+     * @param stock     总库存（补库存时是增量）
+     * @param segments  分段数
+     * @return 库存key -> 该分段的库存
+     */
+    public static Map<String, Integer> splitStock(Long voucherId, int stock, int segments) {
+        Map<String, Integer> result = new LinkedHashMap<>();
+        int n = Math.max(1, segments);
+        for (int i = 0; i < n; i++) {
+            result.put(stockKey(voucherId, i, n), stock / n + (i < stock % n ? 1 : 0));
+        }
+        return result;
+    }
+}
@@ -0,0 +1,179 @@
+package com.hmdp.utils;
+
+import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
+import com.hmdp.dto.VoucherOrderStatus;
+import com.hmdp.entity.SeckillVoucher;
+import com.hmdp.entity.VoucherOrder;
+import com.hmdp.service.ISeckillVoucherService;
+import com.hmdp.service.IVoucherOrderService;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.time.LocalDateTime;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+
+/**
+ * 秒杀库存对账任务
+ * 对每个在售(或刚结束)的秒杀券比较：redis剩余库存、redis下单用户数、数据库库存、数据库订单数
+ * 正常情况下 redis库存 + redis下单用户数 == 数据库库存 + 数据库订单数（都等于总库存），
+ * 两边的差值就是偏差，还在stream中没落库的订单两边都已经计入，不影响这个等式
+ */
+@Slf4j
+@Component
+public class SeckillStockReconciler {
+
+    @Resource
+    private ISeckillVoucherService seckillVoucherService;
+
+    @Resource
+    private IVoucherOrderService voucherOrderService;
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    // 是否自动修复数据库库存，关闭时只打印偏差
+    @Value("${hmdp.seckill.reconcile.repair:false}")
+    private boolean repair;
+
+    // 每次对账处理的秒杀券数量
+    private static final int PAGE_SIZE = 500;
+
+    // 上一轮对账发现的偏差，连续两轮偏差相同才修复，避免把正在落库的瞬时状态当成偏差
+    private final Map<Long, Long> lastDrift = new ConcurrentHashMap<>();
+
+    @Scheduled(initialDelayString = "${hmdp.seckill.reconcile.interval-ms:60000}",
+            fixedDelayString = "${hmdp.seckill.reconcile.interval-ms:60000}")
+    public void reconcile() {
+        // 结束超过一天的券不再对账
+        LocalDateTime since = LocalDateTime.now().minusDays(1);
+        long lastId = 0;
+        while (true) {
+            List<SeckillVoucher> vouchers = seckillVoucherService.query()
+                    .ge("end_time", since)
+                    .gt("voucher_id", lastId)
+                    .orderByAsc("voucher_id")
+                    .last("LIMIT " + PAGE_SIZE)
+                    .list();
+            if (vouchers.isEmpty()) {
+                return;
+            }
+            try {
+                reconcile(vouchers);
+            } catch (Exception e) {
+                log.error("秒杀库存对账失败", e);
+            }
+            lastId = vouchers.get(vouchers.size() - 1).getVoucherId();
+        }
+    }
+
+    private void reconcile(List<SeckillVoucher> vouchers) {
+        List<Long> ids = vouchers.stream().map(SeckillVoucher::getVoucherId).collect(Collectors.toList());
+        // 1.数据库订单数，一条GROUP BY查出这一页所有券的订单数
+        Map<Long, Long> dbOrders = countOrders(ids);
+        // 2.redis中的库存分段数，管道一次取回
+        List<Object> metas = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection conn = (StringRedisConnection) connection;
+            for (Long id : ids) {
+                conn.hGet(SeckillStockKeys.metaKey(id), SeckillStockKeys.SEGMENTS_FIELD);
+            }
+            return null;
+        });
+        int[] segments = new int[ids.size()];
+        for (int i = 0; i < ids.size(); i++) {
+            Object meta = metas.get(i);
+            segments[i] = meta == null ? 1 : Integer.parseInt(meta.toString());
+        }
+        // 3.redis库存和下单用户数，同样用管道：每个券依次是 n个GET + n个SCARD
+        List<Object> values = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection conn = (StringRedisConnection) connection;
+            for (int i = 0; i < ids.size(); i++) {
+                for (int seg = 0; seg < segments[i]; seg++) {
+                    conn.get(SeckillStockKeys.stockKey(ids.get(i), seg, segments[i]));
+                }
+                for (int seg = 0; seg < segments[i]; seg++) {
+                    conn.sCard(SeckillStockKeys.orderSetKey(ids.get(i), seg, segments[i]));
+                }
+            }
+            return null;
+        });
+
+        int cursor = 0;
+        for (int i = 0; i < ids.size(); i++) {
+            SeckillVoucher voucher = vouchers.get(i);
+            Long voucherId = voucher.getVoucherId();
+            long redisStock = 0;
+            boolean missing = false;
+            for (int seg = 0; seg < segments[i]; seg++) {
+                Object stock = values.get(cursor++);
+                if (stock == null) {
+                    missing = true;
+                } else {
+                    redisStock += Long.parseLong(stock.toString());
+                }
+            }
+            long redisBuyers = 0;
+            for (int seg = 0; seg < segments[i]; seg++) {
+                redisBuyers += (Long) values.get(cursor++);
+            }
+            if (missing) {
+                // redis中没有库存key（例如redis被清空），此时redis的数据不可信，等预热后再对账
+                log.warn("秒杀券{}的redis库存不存在，跳过对账", voucherId);
+                lastDrift.remove(voucherId);
+                continue;
+            }
+            long orders = dbOrders.getOrDefault(voucherId, 0L);
+            long drift = (voucher.getStock() + orders) - (redisStock + redisBuyers);
+            if (drift == 0) {
+                lastDrift.remove(voucherId);
+                continue;
+            }
+            log.warn("秒杀券{}库存偏差{}：redis库存={}，redis下单用户数={}，数据库库存={}，数据库订单数={}",
+                    voucherId, drift, redisStock, redisBuyers, voucher.getStock(), orders);
+            Long previous = lastDrift.put(voucherId, drift);
+            if (repair && previous != null && previous == drift) {
+                repair(voucher, drift);
+            }
+        }
+    }
+
+    /**
+     * 以redis为准修复数据库库存
+     * 带上读取时的库存作为条件，期间消费者又扣减过库存就放弃，等下一轮对账
+     */
+    private void repair(SeckillVoucher voucher, long drift) {
+        long expected = voucher.getStock() - drift;
+        boolean success = seckillVoucherService.update()
+                .set("stock", expected)
+                .eq("voucher_id", voucher.getVoucherId())
+                .eq("stock", voucher.getStock())
+                .update();
+        if (success) {
+            lastDrift.remove(voucher.getVoucherId());
+            log.warn("秒杀券{}数据库库存已修复：{} -> {}", voucher.getVoucherId(), voucher.getStock(), expected);
+        }
+    }
+
+    private Map<Long, Long> countOrders(List<Long> voucherIds) {
+        List<Map<String, Object>> rows = voucherOrderService.listMaps(new QueryWrapper<VoucherOrder>()
+                .select("voucher_id", "COUNT(*) AS total")
+                .in("voucher_id", voucherIds)
+                // 已取消和已退款的订单已经归还了库存
+                .notIn("status", VoucherOrderStatus.CANCELLED.getCode(), VoucherOrderStatus.REFUNDED.getCode())
+                .groupBy("voucher_id"));
+        Map<Long, Long> result = new HashMap<>();
+        for (Map<String, Object> row : rows) {
+            result.put(((Number) row.get("voucher_id")).longValue(), ((Number) row.get("total")).longValue());
+        }
+        return result;
+    }
+}
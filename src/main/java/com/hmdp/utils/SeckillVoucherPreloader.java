@@ -0,0 +1,217 @@
+package com.hmdp.utils;
+
+import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
+import com.hmdp.dto.VoucherOrderStatus;
+import com.hmdp.entity.SeckillVoucher;
+import com.hmdp.entity.VoucherOrder;
+import com.hmdp.service.ISeckillVoucherService;
+import com.hmdp.service.IVoucherOrderService;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.ApplicationArguments;
+import org.springframework.boot.ApplicationRunner;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.scripting.support.ResourceScriptSource;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+/**
+ * 秒杀预热，启动时执行：
+ * 1.SCRIPT LOAD所有lua脚本，热路径上的第一次调用就能直接EVALSHA命中，不需要先失败再发送整个脚本
+ * 2.把所有未结束的秒杀券的售卖时间段写入redis元数据、每个库存分段和本地，开抢前的请求不需要查数据库
+ * 3.redis中没有库存的券（例如redis被清空或故障切换后丢了数据），用数据库库存重建库存key，
+ *   并用tb_voucher_order重建下单用户集合，保证一人一单；没有hash tag的旧库存key改名为分段key
+ * 所有redis写入都按页走管道，10万张券只需要几百次往返
+ */
+@Slf4j
+@Component
+public class SeckillVoucherPreloader implements ApplicationRunner {
+
+    private static final int PAGE_SIZE = 1000;
+
+    // 启动时需要预加载的lua脚本
+    private static final String[] SCRIPTS = {"seckill.lua", "seckill_rebalance.lua", "seckill_return.lua", "seckill_delay_claim.lua", "unlock.lua"};
+
+    @Resource
+    private ISeckillVoucherService seckillVoucherService;
+
+    @Resource
+    private IVoucherOrderService voucherOrderService;
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private SeckillWindowRegistry seckillWindowRegistry;
+
+    @Resource
+    private SeckillSoldOutRegistry seckillSoldOutRegistry;
+
+    // 重建库存时使用的分段数
+    @Value("${hmdp.seckill.stock.segments:1}")
+    private int stockSegments;
+
+    @Override
+    public void run(ApplicationArguments args) throws IOException {
+        loadScripts();
+
+        long begin = System.currentTimeMillis();
+        LocalDateTime now = LocalDateTime.now();
+        long lastId = 0;
+        int total = 0;
+        int rebuilt = 0;
+        while (true) {
+            List<SeckillVoucher> vouchers = seckillVoucherService.query()
+                    .ge("end_time", now)
+                    .gt("voucher_id", lastId)
+                    .orderByAsc("voucher_id")
+                    .last("LIMIT " + PAGE_SIZE)
+                    .list();
+            if (vouchers.isEmpty()) {
+                break;
+            }
+            rebuilt += warmUp(vouchers);
+            total += vouchers.size();
+            lastId = vouchers.get(vouchers.size() - 1).getVoucherId();
+        }
+        log.info("秒杀券预热完成，共{}张，重建库存{}张，耗时{}ms", total, rebuilt, System.currentTimeMillis() - begin);
+    }
+
+    /**
+     * SCRIPT LOAD预加载脚本，返回的sha1和DefaultRedisScript计算的一致
+     */
+    private void loadScripts() throws IOException {
+        for (String script : SCRIPTS) {
+            byte[] body = new ResourceScriptSource(new ClassPathResource(script))
+                    .getScriptAsString().getBytes(StandardCharsets.UTF_8);
+            String sha = stringRedisTemplate.execute(
+                    (RedisCallback<String>) connection -> connection.scriptingCommands().scriptLoad(body));
+            log.info("预加载lua脚本 {} sha1={}", script, sha);
+        }
+    }
+
+    /**
+     * 预热一页秒杀券
+     * @return 重建了库存的券数量
+     */
+    private int warmUp(List<SeckillVoucher> vouchers) {
+        // 1.管道查询每张券的元数据中的分段数，以及分段0的库存key是否存在，存在说明redis中的库存是完好的，以redis为准不覆盖；
+        //   同时查询没有hash tag的旧库存key(不分段和分段两种)，旧key需要迁移，也不能覆盖
+        List<Object> existing = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection conn = (StringRedisConnection) connection;
+            for (SeckillVoucher voucher : vouchers) {
+                Long voucherId = voucher.getVoucherId();
+                conn.hGet(SeckillStockKeys.metaKey(voucherId), SeckillStockKeys.SEGMENTS_FIELD);
+                conn.exists(SeckillStockKeys.stockKey(voucherId, 0, 1));
+                conn.exists(SeckillStockKeys.legacyStockKey(voucherId, 0, 1));
+                conn.exists(SeckillStockKeys.legacyStockKey(voucherId, 0, 2));
+            }
+            return null;
+        });
+        List<SeckillVoucher> missing = new ArrayList<>();
+        Map<Long, Integer> segments = new HashMap<>();
+        for (int i = 0; i < vouchers.size(); i++) {
+            Long voucherId = vouchers.get(i).getVoucherId();
+            Object recorded = existing.get(4 * i);
+            int n = recorded == null ? 1 : Integer.parseInt(recorded.toString());
+            if (Boolean.TRUE.equals(existing.get(4 * i + 1))) {
+                segments.put(voucherId, n);
+            } else if (Boolean.TRUE.equals(existing.get(4 * i + 2)) || Boolean.TRUE.equals(existing.get(4 * i + 3))) {
+                migrate(voucherId, n);
+                segments.put(voucherId, n);
+            } else {
+                missing.add(vouchers.get(i));
+                segments.put(voucherId, stockSegments);
+            }
+        }
+        // 2.需要重建的券，从订单表中一次查出下单用户
+        Map<Long, List<Long>> buyers = queryBuyers(missing);
+
+        // 3.一次管道写入：所有券的售卖时间段(元数据和每个分段)，缺失券的库存、分段数和下单用户集合
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection conn = (StringRedisConnection) connection;
+            for (SeckillVoucher voucher : vouchers) {
+                Long voucherId = voucher.getVoucherId();
+                Map<String, String> window = SeckillWindowRegistry.toFields(voucher.getBeginTime(), voucher.getEndTime());
+                conn.hMSet(SeckillStockKeys.metaKey(voucherId), window);
+                int n = segments.get(voucherId);
+                for (int segment = 0; segment < Math.max(1, n); segment++) {
+                    conn.hMSet(SeckillStockKeys.windowKey(voucherId, segment, n), window);
+                }
+            }
+            for (SeckillVoucher voucher : missing) {
+                Long voucherId = voucher.getVoucherId();
+                // 库存key用SETNX，其他节点同时在预热或者已经有请求写入时不覆盖
+                SeckillStockKeys.splitStock(voucherId, Math.max(0, voucher.getStock()), stockSegments)
+                        .forEach((key, stock) -> conn.setNX(key, stock.toString()));
+                Map<String, List<String>> sets = new HashMap<>();
+                for (Long userId : buyers.getOrDefault(voucherId, new ArrayList<>())) {
+                    sets.computeIfAbsent(SeckillStockKeys.orderKey(voucherId, userId, stockSegments),
+                            k -> new ArrayList<>()).add(userId.toString());
+                }
+                sets.forEach((key, users) -> conn.sAdd(key, users.toArray(new String[0])));
+                conn.hSetNX(SeckillStockKeys.metaKey(voucherId), SeckillStockKeys.SEGMENTS_FIELD,
+                        String.valueOf(stockSegments));
+            }
+            return null;
+        });
+
+        for (SeckillVoucher voucher : vouchers) {
+            seckillWindowRegistry.putLocal(voucher.getVoucherId(), voucher.getBeginTime(), voucher.getEndTime());
+        }
+        for (SeckillVoucher voucher : missing) {
+            // 库存重建前其他节点可能已经把这个券标记为售罄了
+            seckillSoldOutRegistry.publishReplenished(voucher.getVoucherId());
+        }
+        return missing.size();
+    }
+
+    /**
+     * 把没有hash tag的旧库存key和下单用户集合改名为分段key
+     * 旧key只会出现在单机redis上(集群上旧的脚本会报CROSSSLOT)，所以可以直接RENAME；只在升级后第一次启动时执行
+     */
+    private void migrate(Long voucherId, int segments) {
+        for (int segment = 0; segment < Math.max(1, segments); segment++) {
+            String[][] renames = {
+                    {SeckillStockKeys.legacyStockKey(voucherId, segment, segments),
+                            SeckillStockKeys.stockKey(voucherId, segment, segments)},
+                    {SeckillStockKeys.legacyOrderSetKey(voucherId, segment, segments),
+                            SeckillStockKeys.orderSetKey(voucherId, segment, segments)}};
+            for (String[] rename : renames) {
+                // 其他节点同时在迁移时只有一个能改名成功
+                if (Boolean.TRUE.equals(stringRedisTemplate.hasKey(rename[0]))) {
+                    stringRedisTemplate.renameIfAbsent(rename[0], rename[1]);
+                }
+            }
+        }
+        stringRedisTemplate.opsForHash().putIfAbsent(SeckillStockKeys.metaKey(voucherId),
+                SeckillStockKeys.SEGMENTS_FIELD, String.valueOf(Math.max(1, segments)));
+        log.info("秒杀券{}的库存key迁移到分段key，分段数{}", voucherId, segments);
+    }
+
+    private Map<Long, List<Long>> queryBuyers(List<SeckillVoucher> vouchers) {
+        if (vouchers.isEmpty()) {
+            return new HashMap<>();
+        }
+        List<Long> ids = vouchers.stream().map(SeckillVoucher::getVoucherId).collect(Collectors.toList());
+        List<VoucherOrder> orders = voucherOrderService.list(new QueryWrapper<VoucherOrder>()
+                .select("voucher_id", "user_id")
+                .in("voucher_id", ids)
+                // 已取消和已退款的用户已经移出下单集合
+                .notIn("status", VoucherOrderStatus.CANCELLED.getCode(), VoucherOrderStatus.REFUNDED.getCode()));
+        return orders.stream().collect(Collectors.groupingBy(VoucherOrder::getVoucherId,
+                Collectors.mapping(VoucherOrder::getUserId, Collectors.toList())));
+    }
+}
@@ -0,0 +1,145 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.date.LocalDateTimeUtil;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.time.LocalDateTime;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 秒杀券的售卖时间段和库存分段数
+ * 开始/结束时间(ms)写在redis的 sekill:meta{voucherId} 中，并给每个库存分段复制一份 sekill:{voucherId:分段号}:window，
+ * seckill.lua在分段所在的slot内原子地拒绝时间段外的请求；
+ * JVM内再保留一份，开抢前的刷新请求在本地就被拒绝，不访问redis也不查数据库
+ * 库存分段数创建券之后不再变化，同样保留在本地，下单时由java选出要扣减的分段key
+ */
+@Component
+public class SeckillWindowRegistry {
+
+    public static final String BEGIN_FIELD = "begin";
+    public static final String END_FIELD = "end";
+
+    // 检查结果，和seckill.lua的返回值保持一致
+    public static final int IN_WINDOW = 0;
+    public static final int NOT_STARTED = 3;
+    public static final int ENDED = 4;
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    // voucherId -> {开始时间, 结束时间}
+    private final Map<Long, long[]> windows = new ConcurrentHashMap<>();
+
+    // voucherId -> 到这个时间戳(ms)之前不再去redis加载：redis中也没有时间段的券，本地记一个短时间的空结果，
+    // 避免这类券的每个请求都执行一次HMGET
+    private final Map<Long, Long> missing = new ConcurrentHashMap<>();
+
+    // 空结果的有效期(ms)，其他节点新建券之后最多这么久本节点才会开始按时间段拦截
+    @Value("${hmdp.seckill.window.miss-ttl-ms:5000}")
+    private long missTtlMillis;
+
+    // voucherId -> 库存分段数
+    private final Map<Long, Integer> segments = new ConcurrentHashMap<>();
+
+    /**
+     * 把券的售卖时间段写入redis元数据、每个库存分段和本地
+     * @param segments 库存分段数
+     */
+    public void publish(Long voucherId, int segments, LocalDateTime beginTime, LocalDateTime endTime) {
+        if (beginTime == null || endTime == null) {
+            return;
+        }
+        Map<String, String> fields = toFields(beginTime, endTime);
+        stringRedisTemplate.opsForHash().putAll(SeckillStockKeys.metaKey(voucherId), fields);
+        // 各分段在不同的slot上，逐个写入
+        for (int segment = 0; segment < Math.max(1, segments); segment++) {
+            stringRedisTemplate.opsForHash().putAll(SeckillStockKeys.windowKey(voucherId, segment, segments), fields);
+        }
+        this.segments.put(voucherId, Math.max(1, segments));
+        putLocal(voucherId, beginTime, endTime);
+    }
+
+    /**
+     * @return 写入redis元数据hash和分段时间段hash的字段，批量预热时由调用方放进管道
+     */
+    public static Map<String, String> toFields(LocalDateTime beginTime, LocalDateTime endTime) {
+        Map<String, String> fields = new HashMap<>();
+        fields.put(BEGIN_FIELD, String.valueOf(LocalDateTimeUtil.toEpochMilli(beginTime)));
+        fields.put(END_FIELD, String.valueOf(LocalDateTimeUtil.toEpochMilli(endTime)));
+        return fields;
+    }
+
+    public void putLocal(Long voucherId, LocalDateTime beginTime, LocalDateTime endTime) {
+        missing.remove(voucherId);
+        windows.put(voucherId, new long[]{
+                LocalDateTimeUtil.toEpochMilli(beginTime), LocalDateTimeUtil.toEpochMilli(endTime)});
+    }
+
+    /**
+     * 判断当前时间是否在券的售卖时间段内
+     * 本地没有记录时（例如券是在其他节点上新建的）从redis元数据加载一次，redis也没有时放行，由lua脚本兜底，
+     * 并在本地记住这个空结果，missTtlMillis内不再访问redis
+     * @param voucherId 优惠券id
+     * @param now       当前时间戳(ms)
+     * @return IN_WINDOW / NOT_STARTED / ENDED
+     */
+    public int check(Long voucherId, long now) {
+        long[] window = windows.get(voucherId);
+        if (window == null) {
+            Long retryAt = missing.get(voucherId);
+            if (retryAt != null && retryAt > now) {
+                return IN_WINDOW;
+            }
+            window = load(voucherId);
+            if (window == null) {
+                missing.put(voucherId, now + missTtlMillis);
+                return IN_WINDOW;
+            }
+            missing.remove(voucherId);
+        }
+        if (now < window[0]) {
+            return NOT_STARTED;
+        }
+        if (now > window[1]) {
+            return ENDED;
+        }
+        return IN_WINDOW;
+    }
+
+    /**
+     * @return 券的库存分段数，本地没有时从redis元数据加载一次；元数据中没有记录的按原来的单key模式处理，
+     * 但不记在本地，预热重建库存之后会写入分段数
+     */
+    public int segments(Long voucherId) {
+        Integer n = segments.get(voucherId);
+        if (n != null) {
+            return n;
+        }
+        Object value = stringRedisTemplate.opsForHash().get(SeckillStockKeys.metaKey(voucherId),
+                SeckillStockKeys.SEGMENTS_FIELD);
+        if (value == null) {
+            return 1;
+        }
+        n = Integer.parseInt(value.toString());
+        segments.put(voucherId, n);
+        return n;
+    }
+
+    private long[] load(Long voucherId) {
+        List<Object> values = stringRedisTemplate.opsForHash().multiGet(SeckillStockKeys.metaKey(voucherId),
+                Arrays.asList(BEGIN_FIELD, END_FIELD));
+        if (values.get(0) == null || values.get(1) == null) {
+            return null;
+        }
+        long[] window = {Long.parseLong(values.get(0).toString()), Long.parseLong(values.get(1).toString())};
+        windows.put(voucherId, window);
+        return window;
+    }
+}
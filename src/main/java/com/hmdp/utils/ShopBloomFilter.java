@@ -0,0 +1,214 @@
+package com.hmdp.utils;
+
+import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
+import com.hmdp.entity.Shop;
+import com.hmdp.mapper.ShopMapper;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.ApplicationArguments;
+import org.springframework.boot.ApplicationRunner;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.stream.Collectors;
+
+/**
+ * 所有商铺id的布隆过滤器，防止用不存在的id穿透缓存
+ * 启动时从tb_shop构建(redis中已经有bitmap时直接加载)，新增商铺时写入并广播给其他节点，
+ * 定时从数据库全量重建以清除已删除的商铺，另外定时从redis合并一次，兜底错过的广播
+ * 过滤器没有准备好或者关闭时，所有id都按可能存在处理
+ */
+@Slf4j
+@Component
+public class ShopBloomFilter implements ApplicationRunner {
+
+    private static final int PAGE_SIZE = 1000;
+
+    // 广播消息：全量重建完成，所有节点从redis重新加载
+    private static final String RELOAD_MESSAGE = "*";
+
+    @Resource
+    private ShopMapper shopMapper;
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private RedisMessageListenerContainer redisMessageListenerContainer;
+
+    @Value("${hmdp.bloom.shop.enabled:true}")
+    private boolean enabled;
+
+    // 预期的商铺数量，超过之后误判率会上升，需要调大并重启
+    @Value("${hmdp.bloom.shop.expected-insertions:1000000}")
+    private long expectedInsertions;
+
+    // 期望的误判率
+    @Value("${hmdp.bloom.shop.fpp:0.001}")
+    private double fpp;
+
+    private RedisBloomFilter filter;
+
+    private volatile boolean ready;
+
+    @PostConstruct
+    private void init() {
+        filter = new RedisBloomFilter(stringRedisTemplate, RedisConstants.SHOP_BLOOM_KEY, expectedInsertions, fpp);
+        redisMessageListenerContainer.addMessageListener((message, pattern) -> {
+            String body = new String(message.getBody(), StandardCharsets.UTF_8);
+            if (RELOAD_MESSAGE.equals(body)) {
+                reload();
+            } else {
+                filter.putLocal(body);
+            }
+        }, new ChannelTopic(RedisConstants.SHOP_BLOOM_CHANNEL));
+    }
+
+    @Override
+    public void run(ApplicationArguments args) {
+        if (!enabled) {
+            return;
+        }
+        try {
+            // redis中已经有bitmap(其他节点建好的)就直接加载，否则从数据库构建
+            AtomicLongArray words = filter.download();
+            if (words != null) {
+                filter.replace(words);
+                ready = true;
+                log.info("商铺布隆过滤器从redis加载完成，{}位，{}个哈希函数", filter.getBits(), filter.getHashes());
+            } else {
+                rebuild();
+            }
+        } catch (Exception e) {
+            log.error("商铺布隆过滤器初始化失败，暂时不过滤", e);
+        }
+    }
+
+    /**
+     * @return id可能存在时返回true；返回false时这个商铺一定不存在
+     */
+    public boolean mightContain(Long id) {
+        return !enabled || !ready || filter.mightContain(id.toString());
+    }
+
+    /**
+     * 新增商铺后调用：写入redis和本地，并广播给其他节点
+     */
+    public void add(Long id) {
+        if (!enabled) {
+            return;
+        }
+        filter.put(id.toString());
+        stringRedisTemplate.convertAndSend(RedisConstants.SHOP_BLOOM_CHANNEL, id.toString());
+    }
+
+    /**
+     * 从数据库全量重建：只有拿到锁的节点重建，写入redis后通知所有节点重新加载
+     */
+    @Scheduled(initialDelayString = "${hmdp.bloom.shop.rebuild-interval-ms:21600000}",
+            fixedDelayString = "${hmdp.bloom.shop.rebuild-interval-ms:21600000}")
+    public void rebuild() {
+        if (!enabled) {
+            return;
+        }
+        Boolean locked = stringRedisTemplate.opsForValue()
+                .setIfAbsent(RedisConstants.LOCK_SHOP_BLOOM_KEY, "1", 10, TimeUnit.MINUTES);
+        if (!Boolean.TRUE.equals(locked) && ready) {
+            // 其他节点正在重建，等它的重新加载广播
+            return;
+        }
+        try {
+            long begin = System.currentTimeMillis();
+            // 1.分页读出所有商铺id，构建新的位数组
+            AtomicLongArray words = filter.newBits();
+            long lastId = scanIds(0, words);
+            if (!Boolean.TRUE.equals(locked)) {
+                // 启动时其他节点正在重建，先在本地使用，等它的重新加载广播
+                filter.replace(words);
+                ready = true;
+                return;
+            }
+            // 2.替换redis中的bitmap
+            filter.upload(words);
+            filter.replace(words);
+            ready = true;
+            // 3.补上扫描结束之后新增的商铺，它们的SETBIT可能写在了被替换掉的旧bitmap上；
+            // 补完再通知所有节点重新加载，其他节点下载到的bitmap里才有这些商铺
+            scanIds(lastId, null);
+            stringRedisTemplate.convertAndSend(RedisConstants.SHOP_BLOOM_CHANNEL, RELOAD_MESSAGE);
+            log.info("商铺布隆过滤器重建完成，{}位，{}个哈希函数，耗时{}ms",
+                    filter.getBits(), filter.getHashes(), System.currentTimeMillis() - begin);
+        } catch (Exception e) {
+            log.error("商铺布隆过滤器重建失败", e);
+        } finally {
+            if (Boolean.TRUE.equals(locked)) {
+                stringRedisTemplate.delete(RedisConstants.LOCK_SHOP_BLOOM_KEY);
+            }
+        }
+    }
+
+    /**
+     * 定时从redis合并一次，补上错过的新增广播
+     */
+    @Scheduled(initialDelayString = "${hmdp.bloom.shop.sync-interval-ms:300000}",
+            fixedDelayString = "${hmdp.bloom.shop.sync-interval-ms:300000}")
+    public void sync() {
+        if (!enabled || !ready) {
+            return;
+        }
+        try {
+            AtomicLongArray words = filter.download();
+            if (words != null) {
+                filter.merge(words);
+            }
+        } catch (Exception e) {
+            log.warn("商铺布隆过滤器同步失败", e);
+        }
+    }
+
+    private void reload() {
+        try {
+            AtomicLongArray words = filter.download();
+            if (words != null) {
+                filter.replace(words);
+                ready = true;
+            }
+        } catch (Exception e) {
+            log.warn("商铺布隆过滤器重新加载失败", e);
+        }
+    }
+
+    /**
+     * 分页扫描id大于lastId的商铺
+     * @param words 不为null时写入这个位数组，为null时直接写入过滤器(redis和本地)
+     * @return 扫描到的最大id
+     */
+    private long scanIds(long lastId, AtomicLongArray words) {
+        while (true) {
+            List<Shop> shops = shopMapper.selectList(new QueryWrapper<Shop>()
+                    .select("id")
+                    .gt("id", lastId)
+                    .orderByAsc("id")
+                    .last("LIMIT " + PAGE_SIZE));
+            if (shops.isEmpty()) {
+                return lastId;
+            }
+            List<String> ids = shops.stream().map(shop -> shop.getId().toString()).collect(Collectors.toList());
+            if (words != null) {
+                filter.build(ids, words);
+            } else {
+                ids.forEach(filter::put);
+            }
+            lastId = shops.get(shops.size() - 1).getId();
+        }
+    }
+}
@@ -0,0 +1,213 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.util.IdUtil;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Primary;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.Collections;
+import java.util.TimeZone;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 进程内的雪花算法id生成器，hmdp.id.mode=snowflake 时替代RedisWorker
+ * 沿用RedisWorker的布局：高32位是时间戳(秒)，低32位是序列号，低32位再拆成
+ * 10位workerId + 10位秒内毫秒数(0~999) + 12位毫秒内序列号，每个节点每毫秒最多4096个id
+ * workerId启动时从redis租用（SET NX EX），后台定时续期，生成id本身不访问redis；
+ * 只在最近一次确认租约后的 leaseSeconds - leaseSafetyMillis 内发号，redis故障超过这个时间就拒绝发号，
+ * 避免租约过期被其他节点租走后两个节点用同一个workerId
+ */
+@Slf4j
+@Primary
+@Component
+@ConditionalOnProperty(name = "hmdp.id.mode", havingValue = "snowflake")
+public class SnowflakeIdGenerator implements IdGenerator {
+
+    private static final int WORKER_BITS = 10;
+    private static final int MILLIS_BITS = 10;
+    private static final int SEQUENCE_BITS = 12;
+    private static final int MAX_WORKERS = 1 << WORKER_BITS;
+    private static final long SEQUENCE_MASK = (1L << SEQUENCE_BITS) - 1;
+
+    private static final String WORKER_KEY_PREFIX = "id:worker:";
+
+    // 续期脚本：只有租约还是自己的才续期
+    private static final DefaultRedisScript<Long> RENEW_SCRIPT = new DefaultRedisScript<>(
+            "if (redis.call('get', KEYS[1]) == ARGV[1]) then return redis.call('expire', KEYS[1], ARGV[2]) end return 0",
+            Long.class);
+
+    private final StringRedisTemplate stringRedisTemplate;
+
+    // 固定的workerId，>=0时不向redis租用
+    private final int fixedWorkerId;
+
+    // 租约有效期(秒)，续期间隔是它的三分之一
+    private final long leaseSeconds;
+
+    // 租约确认之后留出的安全余量(ms)，覆盖续期请求的网络耗时和redis与本地的时钟误差
+    private final long leaseSafetyMillis;
+
+    // 允许的最大时钟回拨(ms)，回拨不超过这个值时沿用上一个时间戳继续发号（序列号用完后等待时钟追上），超过则拒绝发号
+    private final long maxBackwardMillis;
+
+    // 本地时区偏移，和RedisWorker一样按本地时间计算时间戳；启动时固定下来，夏令时切换不会让时间戳倒退
+    private final long zoneOffsetMillis = TimeZone.getDefault().getOffset(System.currentTimeMillis());
+
+    // 本实例的标识，写在workerId租约的value中
+    private final String instanceId = IdUtil.fastSimpleUUID();
+
+    private volatile int workerId = -1;
+
+    // 最近一次确认租约有效的时间(System.nanoTime)，取发出租用/续期请求之前的时间；0表示租约未确认，不能发号
+    private volatile long confirmedAt;
+
+    // 上一次发号的状态：毫秒时间戳 << 12 | 序列号
+    private final AtomicLong state = new AtomicLong();
+
+    private final ScheduledExecutorService heartbeatExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "id-worker-heartbeat");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public SnowflakeIdGenerator(StringRedisTemplate stringRedisTemplate,
+                                @Value("${hmdp.id.worker-id:-1}") int fixedWorkerId,
+                                @Value("${hmdp.id.worker-lease-seconds:30}") long leaseSeconds,
+                                @Value("${hmdp.id.worker-lease-safety-ms:3000}") long leaseSafetyMillis,
+                                @Value("${hmdp.id.max-backward-ms:1000}") long maxBackwardMillis) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.fixedWorkerId = fixedWorkerId;
+        this.leaseSeconds = leaseSeconds;
+        this.leaseSafetyMillis = leaseSafetyMillis;
+        this.maxBackwardMillis = maxBackwardMillis;
+        if (fixedWorkerId >= 0) {
+            this.workerId = fixedWorkerId % MAX_WORKERS;
+        }
+    }
+
+    @PostConstruct
+    private void init() {
+        if (fixedWorkerId >= 0) {
+            log.info("雪花id生成器使用固定workerId={}", workerId);
+            return;
+        }
+        long start = System.nanoTime();
+        workerId = acquireWorkerId(-1);
+        confirmedAt = start;
+        long interval = Math.max(1, leaseSeconds / 3);
+        heartbeatExecutor.scheduleWithFixedDelay(this::heartbeat, interval, interval, TimeUnit.SECONDS);
+        log.info("雪花id生成器租用workerId={}", workerId);
+    }
+
+    @PreDestroy
+    private void destroy() {
+        heartbeatExecutor.shutdownNow();
+        if (fixedWorkerId < 0 && workerId >= 0) {
+            // 主动释放租约，重启时不用等它过期
+            stringRedisTemplate.execute(new DefaultRedisScript<>(
+                    "if (redis.call('get', KEYS[1]) == ARGV[1]) then return redis.call('del', KEYS[1]) end return 0",
+                    Long.class), Collections.singletonList(WORKER_KEY_PREFIX + workerId), instanceId);
+        }
+    }
+
+    @Override
+    public long nextId(String prefix) {
+        // 1.租用的workerId必须在租约确认后的有效期内，否则它可能已经过期、被其他节点租走
+        long confirmed = confirmedAt;
+        int worker = workerId;
+        if (fixedWorkerId < 0) {
+            checkLease(confirmed);
+        }
+        // 2.生成id
+        while (true) {
+            long last = state.get();
+            long lastMillis = last >>> SEQUENCE_BITS;
+            long now = System.currentTimeMillis() + zoneOffsetMillis;
+            long next;
+            if (now > lastMillis) {
+                next = now << SEQUENCE_BITS;
+            } else {
+                // 同一毫秒内，或者时钟小幅回拨了：沿用上一个时间戳，序列号加一
+                if (lastMillis - now > maxBackwardMillis) {
+                    throw new IllegalStateException("时钟回拨" + (lastMillis - now) + "ms，拒绝生成id");
+                }
+                if ((last & SEQUENCE_MASK) == SEQUENCE_MASK) {
+                    // 这一毫秒的序列号用完了，等时钟走到下一毫秒
+                    Thread.yield();
+                    continue;
+                }
+                next = last + 1;
+            }
+            if (state.compareAndSet(last, next)) {
+                long millis = next >>> SEQUENCE_BITS;
+                long seconds = millis / 1000 - RedisWorker.BEGIN_TIMESTAMP;
+                long low = ((long) worker << (MILLIS_BITS + SEQUENCE_BITS))
+                        | ((millis % 1000) << SEQUENCE_BITS)
+                        | (next & SEQUENCE_MASK);
+                return seconds << RedisWorker.COUNT_BITS | low;
+            }
+        }
+    }
+
+    private void checkLease(long confirmed) {
+        if (confirmed == 0) {
+            throw new IllegalStateException("workerId租约未确认，拒绝生成id");
+        }
+        long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - confirmed);
+        if (elapsedMillis > leaseSeconds * 1000 - leaseSafetyMillis) {
+            throw new IllegalStateException("workerId=" + workerId + "的租约已" + elapsedMillis + "ms未确认，拒绝生成id");
+        }
+    }
+
+    /**
+     * 从一个随机位置开始依次尝试 SET id:worker:{n} instanceId NX EX leaseSeconds
+     * @param preferred 优先尝试的workerId，-1表示没有
+     */
+    private int acquireWorkerId(int preferred) {
+        int start = preferred >= 0 ? preferred : (int) (Math.random() * MAX_WORKERS);
+        for (int i = 0; i < MAX_WORKERS; i++) {
+            int candidate = (start + i) % MAX_WORKERS;
+            Boolean success = stringRedisTemplate.opsForValue().setIfAbsent(WORKER_KEY_PREFIX + candidate,
+                    instanceId, leaseSeconds, TimeUnit.SECONDS);
+            if (Boolean.TRUE.equals(success)) {
+                return candidate;
+            }
+        }
+        throw new IllegalStateException("没有可用的workerId");
+    }
+
+    /**
+     * 续期workerId租约，成功后更新确认时间；租约丢失（例如redis重启）时先停止发号，
+     * 再优先重新租用原来的id，被别人占用了就换一个
+     * redis不可用时不更新确认时间，当前workerId只能用到租约确认后的有效期结束，之后nextId拒绝发号，等redis恢复后再续期
+     */
+    private void heartbeat() {
+        long start = System.nanoTime();
+        try {
+            Long renewed = stringRedisTemplate.execute(RENEW_SCRIPT,
+                    Collections.singletonList(WORKER_KEY_PREFIX + workerId), instanceId, String.valueOf(leaseSeconds));
+            if (renewed != null && renewed != 0) {
+                confirmedAt = start;
+                return;
+            }
+            // 租约已经不是自己的了，立即停止发号
+            confirmedAt = 0;
+            int previous = workerId;
+            workerId = acquireWorkerId(previous);
+            confirmedAt = start;
+            log.warn("workerId租约丢失，重新租用：{} -> {}", previous, workerId);
+        } catch (Exception e) {
+            log.warn("workerId={}续期失败，租约未确认期间超过{}ms将拒绝发号", workerId,
+                    leaseSeconds * 1000 - leaseSafetyMillis, e);
+        }
+    }
+}
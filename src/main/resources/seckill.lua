@@ -1,36 +1,44 @@
+--秒杀资格判断：售卖时间段、库存、一人一单，通过后扣减库存并记录下单用户
+--所有key属于同一个库存分段，带相同的hash tag {voucherId:分段号}，在集群中落在同一个slot
+--订单消息、订单状态和支付超时队列在其他slot上，由java在脚本返回0之后写入
+
 --1.确认参数
---1.1优惠券id
-local voucherId=ARGV[1]
+--1.1分段的库存key、下单用户集合key、售卖时间段hash(开始、结束时间ms，没有记录时不限制时间)
+local stockKey=KEYS[1]
+local orderKey=KEYS[2]
+local windowKey=KEYS[3]
 --1.2用户id
-local userId=ARGV[2]
---1.3订单id
-local orderId=ARGV[3]
+local userId=ARGV[1]
+--1.3当前时间戳(ms)，用来判断是否在秒杀时间段内
+local now=tonumber(ARGV[2])
 
---2.数据key
--- .. 是lua的字符拼接
---2.1库存key
-local stockKey = 'sekill:stock'.. voucherId
---2.2订单key
-local orderKey = 'sekill:order'.. voucherId
+--2.脚本业务
+--2.0判断是否在秒杀时间段内
+local window = redis.call('hmget', windowKey, 'begin', 'end')
+if(window[1] and now<tonumber(window[1])) then
+ --尚未开始返回3
+ return 3
+end
+if(window[2] and now>tonumber(window[2])) then
+ --已经结束返回4
+ return 4
+end
 
---3.脚本业务
---3.1判断库存是否充足
-if(tonumber(redis.call('get',stockKey))<0) then
+--2.1判断库存是否充足，库存key不存在时按0处理；分段模式下只判断用户所在的分段
+if(tonumber(redis.call('get',stockKey) or '0')<=0) then
  --不充足返回1
  return 1
 end
 
---3.2判断用户是否下单
+--2.2判断用户是否下单
 if(redis.call('sismember',orderKey,userId)==1) then
  --是，也就是已经下过一单了，不允许再下，返回2
  return 2
 end
 
---3.3用户之前没有下单，扣减库存
-redis.call('incryby',stockKey,-1)
---存入用户id到当前优惠券的set集合
+--2.3用户之前没有下单，扣减库存
+redis.call('incrby',stockKey,-1)
+--存入用户id到当前分段的下单用户集合
 redis.call('sadd',orderKey,userId)
---3.4发送消息到队列中, XADD stream.orders * k1 v1 k2 v2
-redis.call('xadd', 'stream.orders', '*', 'userId', userId, 'voucherId', voucherId, 'id', orderId)
 --返回0
-return 0
\ No newline at end of file
+return 0
@@ -0,0 +1,16 @@
+--认领一批到期的未支付订单，多个节点同时轮询也不会重复处理
+--KEYS[1] 延时队列zset，score是支付截止时间(ms)，member是订单id
+--ARGV[1] 当前时间(ms)，ARGV[2] 每批最多认领的数量，ARGV[3] 认领的可见性超时(ms)
+local now = tonumber(ARGV[1])
+local limit = tonumber(ARGV[2])
+local visibility = tonumber(ARGV[3])
+
+--1.取出已经到期的订单，zset按score有序，只扫描到期的部分
+local ids = redis.call('zrangebyscore', KEYS[1], '-inf', now, 'LIMIT', 0, limit)
+
+--2.把认领的订单往后推一个可见性超时，其他节点看不到；处理完成后由认领者ZREM，
+--认领者挂掉时超时后重新到期，被其他节点再次认领
+for i = 1, #ids do
+ redis.call('zadd', KEYS[1], now + visibility, ids[i])
+end
+return ids
@@ -0,0 +1,10 @@
+--分段库存再平衡：从一个分段取走一半库存(向上取整)，由java加到库存不足的分段上
+--KEYS[1] 被取走库存的分段的库存key
+--返回取走的库存数，这个分段也没有库存时返回0
+local stock = tonumber(redis.call('get', KEYS[1]) or '0')
+if(stock<=0) then
+ return 0
+end
+local take = math.ceil(stock / 2)
+redis.call('incrby', KEYS[1], -take)
+return take
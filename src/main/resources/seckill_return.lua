@@ -0,0 +1,17 @@
+--订单取消/退款后归还秒杀库存，一次调用处理同一张券同一个分段中的一批用户
+--KEYS[1] 库存key，KEYS[2] 下单用户集合key，两个key属于同一个分段
+--ARGV 用户id列表
+--返回实际归还的库存数
+
+--1.逐个用户移出下单集合，确实移除了才归还一个库存，重复调用不会多还
+local returned = 0
+for i = 1, #ARGV do
+ if(redis.call('srem', KEYS[2], ARGV[i])==1) then
+  returned = returned + 1
+ end
+end
+--2.库存还到用户所在的分段
+if(returned>0) then
+ redis.call('incrby', KEYS[1], returned)
+end
+return returned
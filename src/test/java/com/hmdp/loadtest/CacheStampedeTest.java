@@ -0,0 +1,80 @@
+package com.hmdp.loadtest;
+
+import com.hmdp.entity.Shop;
+import com.hmdp.utils.CacheClient;
+import com.hmdp.utils.EmbeddedRedisSupport;
+import com.hmdp.utils.JsonCacheCodec;
+import com.hmdp.utils.RedisConstants;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * 缓存击穿压测：大量线程同时查询同一个没有缓存的商铺，
+ * 检查同一个节点上只查一次数据库、只发少量redis命令
+ * 运行：mvn test -Ploadtest -Dtest=CacheStampedeTest
+ * 参数：loadtest.stampede-threads 并发线程数
+ */
+@Tag("loadtest")
+class CacheStampedeTest extends EmbeddedRedisSupport {
+
+    private static final int THREADS = Integer.getInteger("loadtest.stampede-threads", 1000);
+
+    @Test
+    void coldKeyStampede() throws InterruptedException {
+        CacheClient cacheClient = new CacheClient(stringRedisTemplate, new JsonCacheCodec());
+        ReflectionTestUtils.setField(cacheClient, "rebuildWaitMillis", 10000L);
+        Long shopId = 1L;
+        AtomicInteger dbQueries = new AtomicInteger();
+        AtomicInteger errors = new AtomicInteger();
+        AtomicInteger misses = new AtomicInteger();
+
+        long commandsBefore = totalCommands();
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        CountDownLatch ready = new CountDownLatch(THREADS);
+        CountDownLatch start = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(THREADS);
+        for (int i = 0; i < THREADS; i++) {
+            executor.submit(() -> {
+                try {
+                    ready.countDown();
+                    start.await();
+                    Shop shop = cacheClient.queryWithMutex(RedisConstants.CACHE_SHOP_KEY, shopId, Shop.class, null,
+                            id -> {
+                                dbQueries.incrementAndGet();
+                                sleep(200);
+                                return new Shop().setId(id).setName("stampede");
+                            }, RedisConstants.CACHE_SHOP_TTL, TimeUnit.MINUTES);
+                    if (shop == null || !shopId.equals(shop.getId())) {
+                        misses.incrementAndGet();
+                    }
+                } catch (Exception e) {
+                    errors.incrementAndGet();
+                } finally {
+                    done.countDown();
+                }
+            });
+        }
+        ready.await();
+        start.countDown();
+        done.await();
+        executor.shutdown();
+        // 减去INFO命令自己
+        long commands = totalCommands() - commandsBefore - 1;
+
+        System.out.printf("缓存击穿：线程=%d，数据库查询=%d，redis命令=%d%n", THREADS, dbQueries.get(), commands);
+        assertEquals(0, errors.get(), "存在失败的查询");
+        assertEquals(0, misses.get(), "存在没有拿到商铺的查询");
+        assertEquals(1, dbQueries.get(), "同一个节点上应只查一次数据库");
+        assertTrue(commands <= 10, "redis命令过多：" + commands);
+    }
+}
@@ -0,0 +1,105 @@
+package com.hmdp.loadtest;
+
+import com.hmdp.entity.Shop;
+import com.hmdp.utils.CacheClient;
+import com.hmdp.utils.EmbeddedRedisSupport;
+import com.hmdp.utils.JsonCacheCodec;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.hmdp.service.impl.ShopServiceImpl.CACHE_REBUILD_EXECUTOR;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * 逻辑过期的重建浪潮：同一批预热的key同时过期时，重建任务一下子堆满CACHE_REBUILD_EXECUTOR的队列；
+ * 加上过期时间抖动和提前刷新之后，重建分散开，队列的峰值明显降低
+ * 运行：mvn test -Ploadtest -Dtest=RebuildWaveTest
+ */
+@Tag("loadtest")
+class RebuildWaveTest extends EmbeddedRedisSupport {
+
+    private static final int KEYS = 500;
+
+    private static final long TTL_MS = 8000;
+
+    // 每次重建查数据库的耗时，10个重建线程每秒最多重建100个key
+    private static final long REBUILD_COST_MS = 100;
+
+    // 并发读取的线程数，每个线程按顺序读取一部分key
+    private static final int READERS = 4;
+
+    @Test
+    void jitterAndEarlyRefreshFlattenRebuilds() throws InterruptedException {
+        int[] baseline = run("wave:plain:", 0, 0, 0.0);
+        int[] smoothed = run("wave:smooth:", 10000, 0.4, 1.0);
+        System.out.printf("重建队列峰值：无抖动=%d，抖动+提前刷新=%d；重建次数：%d / %d%n",
+                baseline[0], smoothed[0], baseline[1], smoothed[1]);
+        assertTrue(baseline[1] >= KEYS && smoothed[1] >= KEYS, "所有key都应重建过");
+        assertTrue(smoothed[0] * 3 < baseline[0],
+                "重建没有分散开：" + smoothed[0] + " vs " + baseline[0]);
+    }
+
+    /**
+     * 预热KEYS个key，然后持续按顺序读取，直到所有key都过期过一次
+     * @return {重建队列的峰值, 重建次数}
+     */
+    private int[] run(String keyPrefix, long firstId, double jitter, double beta) throws InterruptedException {
+        CacheClient cacheClient = new CacheClient(stringRedisTemplate, new JsonCacheCodec());
+        ReflectionTestUtils.setField(cacheClient, "expireJitter", jitter);
+        ReflectionTestUtils.setField(cacheClient, "earlyRefreshBeta", beta);
+        AtomicInteger rebuilds = new AtomicInteger();
+
+        // 1.同一时刻预热所有key
+        for (long id = firstId; id < firstId + KEYS; id++) {
+            cacheClient.setWithLogicExpire(keyPrefix + id, new Shop().setId(id), TTL_MS, TimeUnit.MILLISECONDS);
+        }
+        long deadline = System.currentTimeMillis() + TTL_MS * 7 / 4;
+
+        // 2.监控重建线程池的队列长度
+        ThreadPoolExecutor executor = (ThreadPoolExecutor) CACHE_REBUILD_EXECUTOR;
+        AtomicInteger peak = new AtomicInteger();
+        AtomicBoolean running = new AtomicBoolean(true);
+        Thread monitor = new Thread(() -> {
+            while (running.get()) {
+                peak.accumulateAndGet(executor.getQueue().size(), Math::max);
+                sleep(2);
+            }
+        });
+        monitor.start();
+
+        // 3.持续读取，直到最晚过期的key也过期之后
+        Thread[] readers = new Thread[READERS];
+        for (int r = 0; r < READERS; r++) {
+            long from = firstId + (long) KEYS * r / READERS;
+            long to = firstId + (long) KEYS * (r + 1) / READERS;
+            readers[r] = new Thread(() -> {
+                while (System.currentTimeMillis() < deadline) {
+                    for (long id = from; id < to; id++) {
+                        cacheClient.queryWithLogicExpire(keyPrefix, id, Shop.class, shopId -> {
+                            rebuilds.incrementAndGet();
+                            sleep(REBUILD_COST_MS);
+                            return new Shop().setId(shopId);
+                        }, TTL_MS * 10, TimeUnit.MILLISECONDS);
+                    }
+                }
+            });
+            readers[r].start();
+        }
+        for (Thread reader : readers) {
+            reader.join();
+        }
+        // 4.等待重建全部完成
+        while (executor.getActiveCount() > 0 || !executor.getQueue().isEmpty()) {
+            Thread.sleep(20);
+        }
+        running.set(false);
+        monitor.join();
+        return new int[]{peak.get(), rebuilds.get()};
+    }
+}
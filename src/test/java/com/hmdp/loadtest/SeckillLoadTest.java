@@ -0,0 +1,565 @@
+package com.hmdp.loadtest;
+
+import cn.hutool.core.io.IoUtil;
+import cn.hutool.core.util.ArrayUtil;
+import cn.hutool.json.JSONArray;
+import cn.hutool.json.JSONObject;
+import cn.hutool.json.JSONUtil;
+import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
+import com.hmdp.dto.VoucherOrderStatus;
+import com.hmdp.dto.VoucherOrderTransition;
+import com.hmdp.entity.SeckillVoucher;
+import com.hmdp.entity.Voucher;
+import com.hmdp.entity.VoucherOrder;
+import com.hmdp.service.ISeckillVoucherService;
+import com.hmdp.service.IVoucherOrderService;
+import com.hmdp.service.IVoucherService;
+import com.hmdp.utils.RedisConstants;
+import com.hmdp.utils.SeckillOrderDelayQueue;
+import com.hmdp.utils.SeckillOrderTimeoutCanceller;
+import com.hmdp.utils.SeckillStockKeys;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.config.BeanDefinition;
+import org.springframework.beans.factory.config.BeanFactoryPostProcessor;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.context.TestConfiguration;
+import org.springframework.boot.test.web.server.LocalServerPort;
+import org.springframework.context.annotation.Bean;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.test.annotation.DirtiesContext;
+import org.springframework.test.context.ActiveProfiles;
+import org.springframework.test.context.DynamicPropertyRegistry;
+import org.springframework.test.context.DynamicPropertySource;
+import redis.embedded.RedisServer;
+
+import javax.annotation.Resource;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.ServerSocket;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * 秒杀压测：启动本地redis进程和H2内存数据库，不依赖外部环境
+ * 运行：mvn test -Ploadtest
+ * 参数（-D传入）：
+ * loadtest.users 用户数，loadtest.requests-per-user 每个用户的请求数（大于1时会产生重复下单请求），
+ * loadtest.concurrency 并发线程数，loadtest.stock 秒杀库存，loadtest.persist-timeout-seconds 等待全部落库的最长时间，
+ * loadtest.min-rps 吞吐量下限，大于0时低于下限判定失败；
+ * 应用自身的配置也可以用-D覆盖，例如 -Dhmdp.seckill.stock.segments=4
+ */
+@Tag("loadtest")
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT)
+@ActiveProfiles("loadtest")
+@DirtiesContext
+class SeckillLoadTest {
+
+    private static final int USERS = Integer.getInteger("loadtest.users", 5000);
+    private static final int REQUESTS_PER_USER = Integer.getInteger("loadtest.requests-per-user", 2);
+    private static final int CONCURRENCY = Integer.getInteger("loadtest.concurrency", 64);
+    private static final int STOCK = Integer.getInteger("loadtest.stock", 1000);
+    private static final int PERSIST_TIMEOUT_SECONDS = Integer.getInteger("loadtest.persist-timeout-seconds", 60);
+    private static final int MIN_RPS = Integer.getInteger("loadtest.min-rps", 0);
+
+    private static final String TOKEN_PREFIX = "loadtest-";
+
+    private static RedisServer redisServer;
+
+    static {
+        // HttpURLConnection默认每个地址只保留5个keep-alive连接，并发更高时会不停重建连接
+        System.setProperty("http.maxConnections", String.valueOf(CONCURRENCY));
+    }
+
+    @DynamicPropertySource
+    static void redisProperties(DynamicPropertyRegistry registry) throws IOException {
+        int port = freePort();
+        redisServer = RedisServer.newRedisServer()
+                .port(port)
+                .setting("bind 127.0.0.1")
+                .setting("save \"\"")
+                .setting("appendonly no")
+                .build();
+        redisServer.start();
+        registry.add("spring.redis.port", () -> port);
+    }
+
+    /**
+     * 把redis进程注册为bean，并让redis连接工厂和RedissonClient依赖它，
+     * 这样容器关闭时先停止订单消费者、关闭redis连接，最后才停止redis进程。
+     * 测试类结束时就关闭容器(@DirtiesContext)，不要等到JVM退出时和redis进程的清理钩子同时进行
+     */
+    @TestConfiguration
+    static class RedisProcessConfig {
+        @Bean(destroyMethod = "stop")
+        RedisServer redisProcess() {
+            return redisServer;
+        }
+
+        @Bean
+        static BeanFactoryPostProcessor redisProcessDependency() {
+            return beanFactory -> {
+                for (String name : new String[]{"redisConnectionFactory", "redissonClient"}) {
+                    BeanDefinition definition = beanFactory.getBeanDefinition(name);
+                    String[] dependsOn = definition.getDependsOn();
+                    definition.setDependsOn(dependsOn == null ? new String[]{"redisProcess"}
+                            : ArrayUtil.append(dependsOn, "redisProcess"));
+                }
+            };
+        }
+    }
+
+    @LocalServerPort
+    private int port;
+
+    @Resource
+    private IVoucherService voucherService;
+
+    @Resource
+    private ISeckillVoucherService seckillVoucherService;
+
+    @Resource
+    private IVoucherOrderService voucherOrderService;
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private SeckillOrderDelayQueue seckillOrderDelayQueue;
+
+    @Resource
+    private SeckillOrderTimeoutCanceller seckillOrderTimeoutCanceller;
+
+    /**
+     * 直接在redis中写入登录token，模拟已登录的用户，id从1到USERS
+     */
+    @BeforeEach
+    void seedUsers() {
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection conn = (StringRedisConnection) connection;
+            for (int userId = 1; userId <= USERS; userId++) {
+                String key = RedisConstants.LOGIN_USER_KEY + TOKEN_PREFIX + userId;
+                conn.hSet(key, "id", String.valueOf(userId));
+                conn.hSet(key, "nickName", "user_" + userId);
+                conn.expire(key, TimeUnit.HOURS.toSeconds(1));
+            }
+            return null;
+        });
+    }
+
+    @Test
+    void seckill() throws Exception {
+        // 1.准备秒杀券
+        Long voucherId = createVoucher();
+
+        // 2.打乱请求顺序，同一个用户的多次请求分散在整个压测过程中
+        List<Integer> requests = new ArrayList<>(USERS * REQUESTS_PER_USER);
+        for (int r = 0; r < REQUESTS_PER_USER; r++) {
+            for (int u = 1; u <= USERS; u++) {
+                requests.add(u);
+            }
+        }
+        Collections.shuffle(requests);
+
+        // 3.并发发送请求，记录每个请求的耗时和结果
+        long[] latencies = new long[requests.size()];
+        AtomicInteger next = new AtomicInteger();
+        LongAdder soldOut = new LongAdder();
+        LongAdder duplicated = new LongAdder();
+        LongAdder errors = new LongAdder();
+        Map<Long, Long> orders = new ConcurrentHashMap<>();
+        URL url = new URL("http://127.0.0.1:" + port + "/voucher-order/seckill/" + voucherId);
+
+        ExecutorService executor = Executors.newFixedThreadPool(CONCURRENCY);
+        CountDownLatch done = new CountDownLatch(CONCURRENCY);
+        long start = System.nanoTime();
+        for (int t = 0; t < CONCURRENCY; t++) {
+            executor.submit(() -> {
+                try {
+                    int i;
+                    while ((i = next.getAndIncrement()) < requests.size()) {
+                        long userId = requests.get(i);
+                        long begin = System.nanoTime();
+                        JSONObject result;
+                        try {
+                            result = post(url, TOKEN_PREFIX + userId);
+                        } catch (Exception e) {
+                            errors.increment();
+                            continue;
+                        } finally {
+                            latencies[i] = System.nanoTime() - begin;
+                        }
+                        if (Boolean.TRUE.equals(result.getBool("success"))) {
+                            Long previous = orders.put(result.getLong("data"), userId);
+                            if (previous != null) {
+                                // 订单id重复
+                                errors.increment();
+                            }
+                        } else if ("库存不足,下单失败".equals(result.getStr("errorMsg"))) {
+                            soldOut.increment();
+                        } else if ("一人可购一单".equals(result.getStr("errorMsg"))) {
+                            duplicated.increment();
+                        } else {
+                            errors.increment();
+                        }
+                    }
+                } finally {
+                    done.countDown();
+                }
+            });
+        }
+        done.await();
+        long elapsedNanos = System.nanoTime() - start;
+        executor.shutdown();
+
+        // 4.等待所有订单落库
+        long persisted = waitForPersisted(voucherId, orders.size());
+        long persistNanos = System.nanoTime() - start;
+
+        // 5.输出报告
+        Arrays.sort(latencies);
+        double seconds = elapsedNanos / 1e9;
+        double rps = requests.size() / seconds;
+        System.out.println("================ 秒杀压测报告 ================");
+        System.out.printf("用户数=%d，每用户请求数=%d，并发=%d，库存=%d%n", USERS, REQUESTS_PER_USER, CONCURRENCY, STOCK);
+        System.out.printf("请求总数=%d，耗时=%.2fs，吞吐量=%.0f req/s%n", requests.size(), seconds, rps);
+        System.out.printf("成功=%d，库存不足=%d，重复下单=%d，错误=%d%n",
+                orders.size(), soldOut.sum(), duplicated.sum(), errors.sum());
+        System.out.printf("延迟(ms)：p50=%.2f，p99=%.2f，p999=%.2f，max=%.2f%n",
+                percentile(latencies, 0.50), percentile(latencies, 0.99),
+                percentile(latencies, 0.999), latencies[latencies.length - 1] / 1e6);
+        System.out.printf("全部订单落库耗时=%.2fs，已落库=%d%n", persistNanos / 1e9, persisted);
+        System.out.println("=============================================");
+
+        // 6.正确性检查：不超卖、一人一单、订单全部落库、数据库和redis库存一致
+        assertEquals(0, errors.sum(), "存在失败的请求或重复的订单id");
+        assertEquals(Math.min(STOCK, USERS), orders.size(), "成功订单数应等于库存和用户数中较小的一个");
+        assertEquals(orders.size(), new HashSet<>(orders.values()).size(), "同一用户成功下单多次");
+        assertEquals(orders.size(), persisted, "订单没有在" + PERSIST_TIMEOUT_SECONDS + "秒内全部落库");
+        List<Map<String, Object>> duplicates = voucherOrderService.listMaps(new QueryWrapper<VoucherOrder>()
+                .select("user_id")
+                .eq("voucher_id", voucherId)
+                .groupBy("user_id")
+                .having("count(*) > 1"));
+        assertTrue(duplicates.isEmpty(), "数据库中同一用户有多个订单");
+        Set<Long> persistedIds = new HashSet<>();
+        voucherOrderService.query().select("id").eq("voucher_id", voucherId).list()
+                .forEach(order -> persistedIds.add(order.getId()));
+        assertEquals(orders.keySet(), persistedIds, "数据库中的订单和返回给用户的订单不一致");
+        SeckillVoucher seckillVoucher = seckillVoucherService.getById(voucherId);
+        assertEquals(STOCK - orders.size(), seckillVoucher.getStock().intValue(), "数据库库存不正确");
+        assertEquals(STOCK - orders.size(), redisStock(voucherId), "redis库存不正确");
+        if (MIN_RPS > 0) {
+            assertTrue(rps >= MIN_RPS, "吞吐量" + (long) rps + " req/s 低于下限 " + MIN_RPS);
+        }
+    }
+
+    /**
+     * 取消一部分订单：数据库和redis库存都要加回，被取消的用户可以重新抢购
+     */
+    @Test
+    void cancelAndRebuy() throws Exception {
+        Long voucherId = createVoucher();
+        URL url = new URL("http://127.0.0.1:" + port + "/voucher-order/seckill/" + voucherId);
+        Map<Long, Long> orders = grab(url, Math.min(STOCK, 200));
+        assertEquals(orders.size(), waitForPersisted(voucherId, orders.size()), "订单没有全部落库");
+
+        List<Long> cancelIds = new ArrayList<>(orders.keySet()).subList(0, Math.min(100, orders.size()));
+        List<VoucherOrder> cancelled = voucherOrderService.transitOrders(cancelIds, VoucherOrderTransition.CANCEL, null);
+        assertEquals(cancelIds.size(), cancelled.size(), "未支付的订单应全部取消成功");
+        assertTrue(voucherOrderService.transitOrders(cancelIds, VoucherOrderTransition.CANCEL, null).isEmpty(), "订单被重复取消");
+        int stockAfterCancel = STOCK - orders.size() + cancelIds.size();
+        assertEquals(stockAfterCancel, seckillVoucherService.getById(voucherId).getStock().intValue(), "取消后数据库库存不正确");
+        assertEquals(stockAfterCancel, redisStock(voucherId), "取消后redis库存不正确");
+        if (!cancelIds.isEmpty()) {
+            Long userId = orders.get(cancelIds.get(0));
+            JSONObject result = retryUntilSuccess(url, TOKEN_PREFIX + userId);
+            assertTrue(Boolean.TRUE.equals(result.getBool("success")), "取消订单的用户无法重新抢购：" + result);
+            assertEquals(orders.size() - cancelIds.size() + 1, waitForActive(voucherId, orders.size() - cancelIds.size() + 1),
+                    "重新抢购的订单没有落库");
+        }
+    }
+
+    /**
+     * 支付一部分订单，其余订单超时：把延时队列中的截止时间改到过去，由超时取消任务批量取消
+     */
+    @Test
+    void rejectedDuplicate() throws Exception {
+        Long voucherId = createVoucher();
+        URL url = new URL("http://127.0.0.1:" + port + "/voucher-order/seckill/" + voucherId);
+        Long userId = 1L;
+        Long firstId = grab(url, 1).keySet().iterator().next();
+        assertEquals(1, waitForPersisted(voucherId, 1), "订单没有落库");
+
+        // 模拟redis丢失了购买记录：用户再抢一次，lua放行，落库时因为同一用户同一张券已有订单而拒绝
+        stringRedisTemplate.opsForSet().remove(SeckillStockKeys.orderKey(voucherId, userId, segments(voucherId)),
+                userId.toString());
+        JSONObject result = post(url, TOKEN_PREFIX + userId);
+        assertTrue(Boolean.TRUE.equals(result.getBool("success")), "重复下单没有进入订单队列：" + result);
+        Long secondId = result.getLong("data");
+        URL statusUrl = new URL("http://127.0.0.1:" + port + "/voucher-order/seckill/status/" + secondId);
+        long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(PERSIST_TIMEOUT_SECONDS);
+        while (!"FAILED".equals(get(statusUrl, TOKEN_PREFIX + userId).getStr("data"))
+                && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+        }
+        assertEquals("FAILED", get(statusUrl, TOKEN_PREFIX + userId).getStr("data"), "重复的订单没有标记失败");
+        // 被拒绝的订单扣的库存还回来，并移出支付超时队列；用户持有第一个订单，仍然不能再买
+        assertEquals(STOCK - 1, redisStock(voucherId), "被拒绝的订单没有归还redis库存");
+        assertEquals(STOCK - 1, seckillVoucherService.getById(voucherId).getStock().intValue(), "数据库库存不正确");
+        assertEquals(0, delayQueueSize(voucherId, Collections.singletonList(secondId)), "被拒绝的订单还在延时队列中");
+        assertEquals(1, delayQueueSize(voucherId, Collections.singletonList(firstId)));
+        assertEquals("一人可购一单", post(url, TOKEN_PREFIX + userId).getStr("errorMsg"));
+    }
+
+    @Test
+    void payAndTimeout() throws Exception {
+        Long voucherId = createVoucher();
+        URL url = new URL("http://127.0.0.1:" + port + "/voucher-order/seckill/" + voucherId);
+        Map<Long, Long> orders = grab(url, Math.min(STOCK, 200));
+        assertEquals(orders.size(), waitForPersisted(voucherId, orders.size()), "订单没有全部落库");
+
+        List<Long> unpaidIds = new ArrayList<>();
+        voucherOrderService.query().select("id").eq("voucher_id", voucherId)
+                .eq("status", VoucherOrderStatus.UNPAID.getCode()).list()
+                .forEach(order -> unpaidIds.add(order.getId()));
+        List<Long> payIds = unpaidIds.subList(0, Math.min(50, unpaidIds.size()));
+        assertEquals(payIds.size(), voucherOrderService.transitOrders(payIds, VoucherOrderTransition.PAY, null).size(),
+                "未支付的订单应全部支付成功");
+        assertEquals(unpaidIds.size() - payIds.size(), delayQueueSize(voucherId, unpaidIds), "延时队列中应只剩未支付的订单");
+        expireDelayQueue(voucherId, unpaidIds);
+        seckillOrderTimeoutCanceller.cancelExpiredOrders();
+        long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(PERSIST_TIMEOUT_SECONDS);
+        while (delayQueueSize(voucherId, unpaidIds) > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+        }
+        assertEquals(0, delayQueueSize(voucherId, unpaidIds), "超时订单没有全部处理");
+        assertEquals(0, voucherOrderService.query().eq("voucher_id", voucherId)
+                .eq("status", VoucherOrderStatus.UNPAID.getCode()).count(), "存在超时未取消的订单");
+        assertEquals(payIds.size(), voucherOrderService.query().eq("voucher_id", voucherId)
+                .eq("status", VoucherOrderStatus.PAID.getCode()).count(), "已支付的订单被取消");
+        assertEquals(STOCK - payIds.size(), seckillVoucherService.getById(voucherId).getStock().intValue(), "超时取消后数据库库存不正确");
+        assertEquals(STOCK - payIds.size(), redisStock(voucherId), "超时取消后redis库存不正确");
+    }
+
+    /**
+     * 批量秒杀：一次抢购两张新券，重复的券只抢一次，再抢一次时两张都是重复下单
+     */
+    @Test
+    void batchSeckill() throws Exception {
+        Long first = createVoucher();
+        Long second = createVoucher();
+        URL batchUrl = new URL("http://127.0.0.1:" + port + "/voucher-order/seckill");
+        String body = JSONUtil.toJsonStr(Arrays.asList(first, second, first));
+        JSONArray grabbed = post(batchUrl, TOKEN_PREFIX + 1, body).getJSONArray("data");
+        assertEquals(2, grabbed.size(), "重复的券应只返回一个结果");
+        Map<Long, Long> batchOrders = new HashMap<>();
+        for (int i = 0; i < grabbed.size(); i++) {
+            JSONObject item = grabbed.getJSONObject(i);
+            assertTrue(item.getLong("orderId") != null, "批量秒杀失败：" + item);
+            batchOrders.put(item.getLong("voucherId"), item.getLong("orderId"));
+        }
+        assertEquals(new HashSet<>(Arrays.asList(first, second)), batchOrders.keySet(), "批量秒杀的券不正确");
+        JSONArray again = post(batchUrl, TOKEN_PREFIX + 1, body).getJSONArray("data");
+        for (int i = 0; i < again.size(); i++) {
+            assertEquals("一人可购一单", again.getJSONObject(i).getStr("errorMsg"), "批量秒杀没有保证一人一单");
+        }
+        assertEquals(1, waitForPersisted(first, 1), "批量秒杀的订单没有落库");
+        assertEquals(1, waitForPersisted(second, 1), "批量秒杀的订单没有落库");
+        // 订单状态只有下单用户能查询
+        URL statusUrl = new URL("http://127.0.0.1:" + port + "/voucher-order/seckill/status/" + batchOrders.get(first));
+        assertTrue(Boolean.TRUE.equals(get(statusUrl, TOKEN_PREFIX + 1).getBool("success")), "下单用户查询不到订单状态");
+        assertEquals("订单不存在", get(statusUrl, TOKEN_PREFIX + 2).getStr("errorMsg"), "其他用户查询到了订单状态");
+        assertEquals(STOCK - 1, redisStock(first), "批量秒杀后redis库存不正确");
+        assertEquals(STOCK - 1, seckillVoucherService.getById(second).getStock().intValue(), "批量秒杀后数据库库存不正确");
+    }
+
+    /**
+     * @return 这张券的订单中还在延时队列里的数量，其他测试方法留下的订单不计入
+     */
+    private long delayQueueSize(Long voucherId, Collection<Long> orderIds) {
+        return delayQueueMembers(voucherId, orderIds).size();
+    }
+
+    private List<String> delayQueueMembers(Long voucherId, Collection<Long> orderIds) {
+        String key = SeckillOrderDelayQueue.key((int) (voucherId % seckillOrderDelayQueue.getShards()));
+        List<String> members = orderIds.stream().map(String::valueOf).collect(Collectors.toList());
+        List<Object> scores = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection conn = (StringRedisConnection) connection;
+            members.forEach(member -> conn.zScore(key, member));
+            return null;
+        });
+        List<String> queued = new ArrayList<>();
+        for (int i = 0; i < members.size(); i++) {
+            if (scores.get(i) != null) {
+                queued.add(members.get(i));
+            }
+        }
+        return queued;
+    }
+
+    /**
+     * 把这张券还在延时队列中的订单的截止时间改到过去
+     */
+    private void expireDelayQueue(Long voucherId, Collection<Long> orderIds) {
+        String key = SeckillOrderDelayQueue.key((int) (voucherId % seckillOrderDelayQueue.getShards()));
+        List<String> members = delayQueueMembers(voucherId, orderIds);
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection conn = (StringRedisConnection) connection;
+            members.forEach(member -> conn.zAdd(key, 0, member));
+            return null;
+        });
+    }
+
+    /**
+     * 用户1到users依次抢购一次
+     * @return 订单id -> 用户id
+     */
+    private Map<Long, Long> grab(URL url, int users) throws IOException {
+        Map<Long, Long> orders = new HashMap<>();
+        for (long userId = 1; userId <= users; userId++) {
+            JSONObject result = post(url, TOKEN_PREFIX + userId);
+            assertTrue(Boolean.TRUE.equals(result.getBool("success")), "抢购失败：" + result);
+            orders.put(result.getLong("data"), userId);
+        }
+        return orders;
+    }
+
+    private Long createVoucher() {
+        Voucher voucher = new Voucher()
+                .setShopId(1L)
+                .setTitle("压测秒杀券")
+                .setPayValue(100L)
+                .setActualValue(1000L)
+                .setType(1)
+                .setStatus(1)
+                .setStock(STOCK)
+                .setBeginTime(LocalDateTime.now().minusMinutes(1))
+                .setEndTime(LocalDateTime.now().plusHours(1));
+        voucherService.addSeckillVoucher(voucher);
+        return voucher.getId();
+    }
+
+    private JSONObject get(URL url, String token) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        connection.setRequestProperty("authorization", token);
+        try (InputStream in = connection.getInputStream()) {
+            return JSONUtil.parseObj(IoUtil.read(in, StandardCharsets.UTF_8));
+        }
+    }
+
+    private JSONObject post(URL url, String token) throws IOException {
+        return post(url, token, null);
+    }
+
+    private JSONObject post(URL url, String token, String json) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        connection.setRequestMethod("POST");
+        connection.setRequestProperty("authorization", token);
+        connection.setDoOutput(true);
+        if (json != null) {
+            connection.setRequestProperty("Content-Type", "application/json");
+        }
+        try (OutputStream out = connection.getOutputStream()) {
+            if (json != null) {
+                out.write(json.getBytes(StandardCharsets.UTF_8));
+            }
+            out.flush();
+        }
+        try (InputStream in = connection.getInputStream()) {
+            return JSONUtil.parseObj(IoUtil.read(in, StandardCharsets.UTF_8));
+        }
+    }
+
+    /**
+     * 轮询数据库中的订单数，直到达到预期或者超时
+     */
+    private long waitForPersisted(Long voucherId, long expected) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(PERSIST_TIMEOUT_SECONDS);
+        long persisted;
+        while ((persisted = voucherOrderService.query().eq("voucher_id", voucherId).count()) < expected
+                && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+        }
+        return persisted;
+    }
+
+    /**
+     * 售罄标记通过pub/sub异步清除，重新抢购时短暂重试
+     */
+    private JSONObject retryUntilSuccess(URL url, String token) throws IOException, InterruptedException {
+        JSONObject result = post(url, token);
+        for (int i = 0; i < 20 && !Boolean.TRUE.equals(result.getBool("success")); i++) {
+            Thread.sleep(50);
+            result = post(url, token);
+        }
+        return result;
+    }
+
+    /**
+     * 轮询数据库中未取消/退款的订单数，直到达到预期或者超时
+     */
+    private long waitForActive(Long voucherId, long expected) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(PERSIST_TIMEOUT_SECONDS);
+        long active;
+        while ((active = voucherOrderService.query().eq("voucher_id", voucherId)
+                .notIn("status", VoucherOrderStatus.CANCELLED.getCode(), VoucherOrderStatus.REFUNDED.getCode())
+                .count()) < expected
+                && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+        }
+        return active;
+    }
+
+    private int segments(Long voucherId) {
+        Object segments = stringRedisTemplate.opsForHash().get(SeckillStockKeys.metaKey(voucherId), SeckillStockKeys.SEGMENTS_FIELD);
+        return segments == null ? 1 : Integer.parseInt(segments.toString());
+    }
+
+    private int redisStock(Long voucherId) {
+        int segmentCount = segments(voucherId);
+        int stock = 0;
+        for (int segment = 0; segment < segmentCount; segment++) {
+            String value = stringRedisTemplate.opsForValue().get(SeckillStockKeys.stockKey(voucherId, segment, segmentCount));
+            stock += value == null ? 0 : Integer.parseInt(value);
+        }
+        return stock;
+    }
+
+    private static double percentile(long[] sorted, double p) {
+        int index = (int) Math.ceil(p * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(sorted.length - 1, index))] / 1e6;
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+}
@@ -0,0 +1,139 @@
+package com.hmdp.utils;
+
+import com.hmdp.dto.UserDTO;
+import com.hmdp.entity.Shop;
+import com.hmdp.entity.ShopType;
+import org.junit.jupiter.api.Test;
+import org.springframework.data.redis.core.RedisCallback;
+
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * 二进制编码：各种缓存值编码后能原样解码，redis中原有的JSON数据照常读取，字段变化后的旧数据当作未命中
+ * 运行：mvn test -Dtest=BinaryCacheCodecTest
+ */
+class BinaryCacheCodecTest extends EmbeddedRedisSupport {
+
+    private final BinaryCacheCodec codec = new BinaryCacheCodec();
+
+    @Test
+    void shopRoundTrip() {
+        Shop shop = CacheCodecBenchmark.sampleShop().setDistance(12.5);
+        byte[] data = codec.encode(shop);
+        assertEquals((byte) 0xCB, data[0]);
+        assertEquals(shop, codec.decode(data, Shop.class));
+    }
+
+    @Test
+    void shopTypeListRoundTrip() {
+        List<ShopType> types = new ArrayList<>();
+        for (int i = 1; i <= 10; i++) {
+            types.add(new ShopType().setId((long) i).setName("类型" + i).setIcon("/types/" + i + ".png").setSort(i)
+                    .setCreateTime(LocalDateTime.of(2021, 12, 22, 20, 17, i)));
+        }
+        byte[] data = codec.encode(types);
+        assertEquals((byte) 0xCB, data[0]);
+        assertEquals(types, codec.decodeList(data, ShopType.class));
+        // 空集合没有元素类型，交给JSON编码
+        assertEquals(0, codec.decodeList(codec.encode(new ArrayList<ShopType>()), ShopType.class).size());
+    }
+
+    @Test
+    void userDtoRoundTrip() {
+        UserDTO user = new UserDTO();
+        user.setId(1010L);
+        user.setNickName("可可今天不吃肉");
+        user.setIcon("/imgs/icons/kkjtbcr.jpg");
+        assertEquals(user, codec.decode(codec.encode(user), UserDTO.class));
+    }
+
+    @Test
+    void nullFields() {
+        // 第一个字段和最后一个字段都为null，null位图跨两个字节
+        Shop shop = new Shop().setName("只有名字").setSold(0).setScore(-1);
+        Shop decoded = codec.decode(codec.encode(shop), Shop.class);
+        assertEquals(shop, decoded);
+        assertEquals(new Shop(), codec.decode(codec.encode(new Shop()), Shop.class));
+    }
+
+    @Test
+    void localDateTime() {
+        LocalDateTime[] times = {
+                LocalDateTime.of(2022, 1, 13, 17, 32, 19, 123456789),
+                LocalDateTime.of(1969, 12, 31, 23, 59, 59, 999999999),
+                LocalDateTime.of(1970, 1, 1, 0, 0),
+                LocalDateTime.of(9999, 12, 31, 23, 59, 59)
+        };
+        for (LocalDateTime time : times) {
+            Shop shop = new Shop().setId(1L).setCreateTime(time).setUpdateTime(time.plusNanos(1));
+            Shop decoded = codec.decode(codec.encode(shop), Shop.class);
+            assertEquals(time, decoded.getCreateTime());
+            assertEquals(time.plusNanos(1), decoded.getUpdateTime());
+        }
+    }
+
+    @Test
+    void logicExpireRoundTrip() {
+        Shop shop = CacheCodecBenchmark.sampleShop();
+        long expireAt = System.currentTimeMillis() + 30 * 60 * 1000L;
+        byte[] data = codec.encodeWithExpire(shop, expireAt);
+        assertEquals(expireAt, codec.expireAt(data));
+        assertEquals(shop, codec.decodeWithExpire(data, Shop.class));
+    }
+
+    @Test
+    void jsonFallbackWithoutMagic() {
+        // 切换编码之前redis中已有的JSON数据，第一个字节是'{'或'['
+        JsonCacheCodec json = new JsonCacheCodec();
+        Shop shop = CacheCodecBenchmark.sampleShop();
+        byte[] data = json.encode(shop);
+        assertNotEquals((byte) 0xCB, data[0]);
+        assertEquals(shop, codec.decode(data, Shop.class));
+
+        List<ShopType> types = Arrays.asList(new ShopType().setId(1L).setName("美食").setSort(1),
+                new ShopType().setId(2L).setName("KTV").setSort(2));
+        assertEquals(types, codec.decodeList(json.encode(types), ShopType.class));
+
+        long expireAt = System.currentTimeMillis() / 1000 * 1000 + 60000;
+        data = json.encodeWithExpire(shop, expireAt);
+        assertEquals(expireAt, codec.expireAt(data));
+        assertEquals(shop, codec.decodeWithExpire(data, Shop.class));
+    }
+
+    @Test
+    void schemaMismatchIsMiss() {
+        // 1.按另一个类解码，或者写入时类的字段和现在不同(schema哈希不一致)：编码层抛出异常
+        byte[] data = codec.encode(CacheCodecBenchmark.sampleShop());
+        assertThrows(IllegalStateException.class, () -> codec.decode(data, UserDTO.class));
+        byte[] stale = data.clone();
+        // schema哈希紧跟在magic和kind之后
+        stale[2] ^= 0x5A;
+        assertThrows(IllegalStateException.class, () -> codec.decode(stale, Shop.class));
+
+        // 2.CacheClient把它当作未命中，查库重建后覆盖旧数据
+        CacheClient cacheClient = new CacheClient(stringRedisTemplate, codec);
+        String keyPrefix = "test:codec:";
+        Long id = 1L;
+        byte[] rawKey = (keyPrefix + id).getBytes(StandardCharsets.UTF_8);
+        stringRedisTemplate.execute((RedisCallback<Boolean>) connection -> connection.set(rawKey, stale));
+        AtomicInteger dbQueries = new AtomicInteger();
+        Shop shop = cacheClient.queryWithPssThrough(keyPrefix, id, Shop.class, shopId -> {
+            dbQueries.incrementAndGet();
+            return CacheCodecBenchmark.sampleShop();
+        }, RedisConstants.CACHE_SHOP_TTL, TimeUnit.MINUTES);
+        assertEquals(1, dbQueries.get(), "字段不一致的旧数据应当作未命中");
+        assertEquals(CacheCodecBenchmark.sampleShop(), shop);
+        byte[] rebuilt = stringRedisTemplate.execute((RedisCallback<byte[]>) connection -> connection.get(rawKey));
+        assertEquals(CacheCodecBenchmark.sampleShop(), codec.decode(rebuilt, Shop.class));
+    }
+}
@@ -0,0 +1,112 @@
+package com.hmdp.utils;
+
+import com.hmdp.entity.Shop;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * 批量查询：一页数据只查一次数据库、只访问两次redis(MGET和写回的管道)
+ * 运行：mvn test -Dtest=CacheBatchTest
+ */
+class CacheBatchTest extends EmbeddedRedisSupport {
+
+    // 一页的数量，其中id是3的倍数的商铺在数据库中不存在
+    private static final int PAGE = 100;
+
+    @Test
+    void queryBatch() {
+        CacheClient cacheClient = new CacheClient(stringRedisTemplate, new JsonCacheCodec());
+        String keyPrefix = "test:batch:";
+        List<Long> ids = ids();
+        AtomicInteger dbQueries = new AtomicInteger();
+        Function<Collection<Long>, List<Shop>> loader = loader(dbQueries);
+
+        // 1.全部未命中：一次MGET，一次查库，一次管道写回(每个key一条SET)
+        long mgetBefore = commandCalls("mget");
+        long getBefore = commandCalls("get");
+        Map<Long, Shop> shops = cacheClient.queryBatch(keyPrefix, ids, Shop.class, Shop::getId, loader,
+                RedisConstants.CACHE_SHOP_TTL, TimeUnit.MINUTES);
+        assertEquals(1, dbQueries.get());
+        assertEquals(expectedIds(), new ArrayList<>(shops.keySet()), "结果应按ids的顺序，不含不存在的商铺");
+        assertEquals(1, commandCalls("mget") - mgetBefore, "应只有一次MGET");
+        assertEquals(0, commandCalls("get") - getBefore, "不应逐个GET");
+        // 不存在的商铺写入了空值
+        assertEquals("", stringRedisTemplate.opsForValue().get(keyPrefix + 3));
+
+        // 2.全部命中(包括空值)：只有一次MGET，不查库、不写入
+        long commandsBefore = totalCommands();
+        shops = cacheClient.queryBatch(keyPrefix, ids, Shop.class, Shop::getId, loader,
+                RedisConstants.CACHE_SHOP_TTL, TimeUnit.MINUTES);
+        // 减去INFO命令自己
+        long commands = totalCommands() - commandsBefore - 1;
+        assertEquals(1, dbQueries.get(), "命中缓存和空值时不应查库");
+        assertEquals(expectedIds(), new ArrayList<>(shops.keySet()));
+        assertEquals(1, commands, "应只有一次MGET");
+    }
+
+    @Test
+    void queryBatchWithLogicExpire() throws InterruptedException {
+        CacheClient cacheClient = new CacheClient(stringRedisTemplate, new JsonCacheCodec());
+        String keyPrefix = "test:batch-logic:";
+        List<Long> ids = ids();
+        AtomicInteger dbQueries = new AtomicInteger();
+        Function<Collection<Long>, List<Shop>> loader = loader(dbQueries);
+
+        // 1.没有预热：同步一次查库写入
+        Map<Long, Shop> shops = cacheClient.queryBatchWithLogicExpire(keyPrefix, ids, Shop.class, Shop::getId,
+                loader, 0L, TimeUnit.MINUTES);
+        assertEquals(1, dbQueries.get());
+        assertEquals(expectedIds(), new ArrayList<>(shops.keySet()));
+
+        // 2.逻辑过期(过期时间为0)：返回旧值，后台一次查库重建
+        shops = cacheClient.queryBatchWithLogicExpire(keyPrefix, ids, Shop.class, Shop::getId,
+                loader, RedisConstants.CACHE_SHOP_TTL, TimeUnit.MINUTES);
+        assertEquals(expectedIds(), new ArrayList<>(shops.keySet()));
+        long deadline = System.currentTimeMillis() + 5000;
+        while (dbQueries.get() < 2 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(20);
+        }
+        Thread.sleep(200);
+        assertEquals(2, dbQueries.get(), "过期的key应在后台一次查库重建");
+        assertTrue(stringRedisTemplate.keys(RedisConstants.LOCK_SHOP_KEY + "*").isEmpty(), "重建后应释放所有锁");
+
+        // 3.重建之后未过期：只读缓存
+        cacheClient.queryBatchWithLogicExpire(keyPrefix, ids, Shop.class, Shop::getId,
+                loader, RedisConstants.CACHE_SHOP_TTL, TimeUnit.MINUTES);
+        Thread.sleep(200);
+        assertEquals(2, dbQueries.get());
+    }
+
+    private static List<Long> ids() {
+        List<Long> ids = new ArrayList<>();
+        for (long id = PAGE; id >= 1; id--) {
+            ids.add(id);
+        }
+        return ids;
+    }
+
+    private static List<Long> expectedIds() {
+        return ids().stream().filter(id -> id % 3 != 0).collect(Collectors.toList());
+    }
+
+    private static Function<Collection<Long>, List<Shop>> loader(AtomicInteger dbQueries) {
+        return missIds -> {
+            dbQueries.incrementAndGet();
+            return missIds.stream()
+                    .filter(id -> id % 3 != 0)
+                    .map(id -> new Shop().setId(id).setName("batch-" + id))
+                    .collect(Collectors.toList());
+        };
+    }
+}
@@ -0,0 +1,95 @@
+package com.hmdp.utils;
+
+import com.hmdp.entity.Shop;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.time.LocalDateTime;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 缓存编码的对比：JSON / 二进制，编码、解码、只读逻辑过期时间的耗时，以及每个商铺占用的字节数
+ * 直接运行main方法，只跑某一项：-Dbenchmark=expireAt
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 3, time = 3)
+@Fork(1)
+public class CacheCodecBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class CodecState {
+        @Param({"json", "binary"})
+        String codecName;
+
+        CacheCodec codec;
+        Shop shop;
+        byte[] data;
+
+        @Setup(Level.Trial)
+        public void setup() {
+            codec = "binary".equals(codecName) ? new BinaryCacheCodec() : new JsonCacheCodec();
+            shop = sampleShop();
+            data = codec.encodeWithExpire(shop, System.currentTimeMillis() + 30 * 60 * 1000L);
+        }
+    }
+
+    @Benchmark
+    public byte[] encode(CodecState state) {
+        return state.codec.encodeWithExpire(state.shop, System.currentTimeMillis());
+    }
+
+    @Benchmark
+    public Shop decode(CodecState state) {
+        return state.codec.decodeWithExpire(state.data, Shop.class);
+    }
+
+    @Benchmark
+    public long expireAt(CodecState state) {
+        return state.codec.expireAt(state.data);
+    }
+
+    static Shop sampleShop() {
+        return new Shop()
+                .setId(1L)
+                .setName("103茶餐厅")
+                .setTypeId(1L)
+                .setImages("https://qcloud.dpfile.com/pc/jiclIsCKmOI2arxKN1Uf0Hx3PucIJH8q0QSz-Z8llzcN56-_QiKuOvyio1OOxsRtFoXqu0G3iT2T27qat3WhLVEuLYk00OmSS1IdNpm8K8sG4JN9RIm2mTKcbLtc2o2vfCF2ubeXzk49OsGrXt_KYDCngOyCwZK-s3fqawWswzk.jpg")
+                .setArea("大关")
+                .setAddress("金华路锦昌文华苑29号")
+                .setX(120.149192)
+                .setY(30.316078)
+                .setAvgPrice(80L)
+                .setSold(4215)
+                .setComments(3035)
+                .setScore(37)
+                .setOpenHours("10:00-22:00")
+                .setCreateTime(LocalDateTime.of(2021, 12, 22, 18, 10, 39))
+                .setUpdateTime(LocalDateTime.of(2022, 1, 13, 17, 32, 19));
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        Shop shop = sampleShop();
+        long expireAt = System.currentTimeMillis();
+        System.out.printf("每个商铺占用：json=%d字节，binary=%d字节%n",
+                new JsonCacheCodec().encodeWithExpire(shop, expireAt).length,
+                new BinaryCacheCodec().encodeWithExpire(shop, expireAt).length);
+        new Runner(new OptionsBuilder()
+                .include(CacheCodecBenchmark.class.getSimpleName() + "." + System.getProperty("benchmark", ""))
+                .build()).run();
+    }
+}
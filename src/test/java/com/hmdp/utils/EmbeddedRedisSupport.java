@@ -0,0 +1,81 @@
+package com.hmdp.utils;
+
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.springframework.data.redis.connection.RedisStandaloneConfiguration;
+import org.springframework.data.redis.connection.lettuce.LettuceConnectionFactory;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import redis.embedded.RedisServer;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.util.Properties;
+
+/**
+ * 需要redis的测试的基类：每个测试类在随机端口上启动一个嵌入式redis，不落盘，所有测试结束后停止
+ * 另外提供按INFO统计redis命令次数的方法
+ */
+public abstract class EmbeddedRedisSupport {
+
+    private static RedisServer redisServer;
+
+    protected static LettuceConnectionFactory connectionFactory;
+
+    protected static StringRedisTemplate stringRedisTemplate;
+
+    @BeforeAll
+    static void startRedis() throws IOException {
+        int port;
+        try (ServerSocket socket = new ServerSocket(0)) {
+            port = socket.getLocalPort();
+        }
+        redisServer = RedisServer.newRedisServer()
+                .port(port)
+                .setting("bind 127.0.0.1")
+                .setting("save \"\"")
+                .setting("appendonly no")
+                .build();
+        redisServer.start();
+        connectionFactory = new LettuceConnectionFactory(new RedisStandaloneConfiguration("127.0.0.1", port));
+        connectionFactory.afterPropertiesSet();
+        stringRedisTemplate = new StringRedisTemplate(connectionFactory);
+        stringRedisTemplate.afterPropertiesSet();
+    }
+
+    @AfterAll
+    static void stopRedis() throws IOException {
+        connectionFactory.destroy();
+        redisServer.stop();
+    }
+
+    /**
+     * @return redis启动以来某个命令的执行次数
+     */
+    protected static long commandCalls(String command) {
+        Properties info = stringRedisTemplate.execute(
+                (RedisCallback<Properties>) connection -> connection.info("commandstats"));
+        String stats = info.getProperty("cmdstat_" + command);
+        if (stats == null) {
+            return 0;
+        }
+        // calls=1,usec=10,usec_per_call=10.00
+        return Long.parseLong(stats.substring("calls=".length(), stats.indexOf(',')));
+    }
+
+    /**
+     * @return redis启动以来执行的命令总数
+     */
+    protected static long totalCommands() {
+        Properties info = stringRedisTemplate.execute((RedisCallback<Properties>) connection -> connection.info("stats"));
+        return Long.parseLong(info.getProperty("total_commands_processed"));
+    }
+
+    protected static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,122 @@
+package com.hmdp.utils;
+
+import com.hmdp.entity.Shop;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * 热点key：一个商铺的访问量突增时，本节点自动把它放入本地缓存，redis的访问量降下来；流量过去之后冷却
+ * 运行：mvn test -Dtest=HotKeyTest
+ */
+class HotKeyTest extends EmbeddedRedisSupport {
+
+    // 窗口内访问多少次算热点
+    private static final long THRESHOLD = 200;
+
+    private static final long WINDOW_MS = 1000;
+
+    private static RedisMessageListenerContainer listenerContainer;
+
+    @BeforeAll
+    static void startListener() {
+        listenerContainer = new RedisMessageListenerContainer();
+        listenerContainer.setConnectionFactory(connectionFactory);
+        listenerContainer.afterPropertiesSet();
+        listenerContainer.start();
+    }
+
+    @AfterAll
+    static void stopListener() throws Exception {
+        listenerContainer.destroy();
+    }
+
+    @Test
+    void viralKeyIsPinnedAndCoolsDown() throws InterruptedException {
+        CacheClient cacheClient = newCacheClient();
+        Long viralId = 0L;
+        String viralKey = RedisConstants.CACHE_SHOP_KEY + viralId;
+        int coldKeys = 500;
+        int viralReads = 5000;
+
+        // 1.一个商铺突然被大量访问，其他商铺各访问两次
+        long getsBefore = commandCalls("get");
+        for (int i = 0; i < viralReads; i++) {
+            query(cacheClient, viralId);
+            if (i % 10 == 0 && i / 10 < coldKeys * 2) {
+                query(cacheClient, (long) (i / 10 % coldKeys + 1));
+            }
+        }
+        long viralGets = commandCalls("get") - getsBefore - coldKeys * 2;
+        Map<String, Long> hotKeys = cacheClient.getHotKeys();
+        System.out.printf("热点key：%s，热点商铺%d次访问中读redis %d次%n", hotKeys, viralReads, viralGets);
+        assertEquals(1, hotKeys.size(), "只有突增的商铺是热点：" + hotKeys);
+        assertTrue(hotKeys.containsKey(viralKey));
+        assertTrue(viralGets < THRESHOLD * 2, "热点key仍然频繁访问redis：" + viralGets);
+
+        // 2.删除缓存后本地副本立即失效，读到新的值
+        cacheClient.delete(viralKey);
+        cacheClient.set(viralKey, new Shop().setId(viralId).setName("updated"),
+                RedisConstants.CACHE_SHOP_TTL, TimeUnit.MINUTES);
+        assertEquals("updated", query(cacheClient, viralId).getName());
+
+        // 3.流量过去，一个窗口之后冷却
+        Thread.sleep(WINDOW_MS + WINDOW_MS / 5 * 2);
+        hotKeys = cacheClient.getHotKeys();
+        assertTrue(hotKeys.isEmpty(), "流量过去之后应冷却：" + hotKeys);
+    }
+
+    @Test
+    void viralKeyIsPinnedInBatchQuery() {
+        CacheClient cacheClient = newCacheClient();
+        String keyPrefix = "test:hot:batch:";
+        Long viralId = 0L;
+        int viralReads = 5000;
+
+        // 批量查询中的热点商铺，读到redis之后也放入本地缓存
+        long mgetsBefore = commandCalls("mget");
+        for (int i = 0; i < viralReads; i++) {
+            Map<Long, Shop> shops = cacheClient.queryBatchWithLogicExpire(keyPrefix, Collections.singletonList(viralId),
+                    Shop.class, Shop::getId, ids -> ids.stream().map(id -> new Shop().setId(id).setName("shop-" + id))
+                            .collect(Collectors.toList()), RedisConstants.CACHE_SHOP_TTL, TimeUnit.MINUTES);
+            assertEquals(viralId, shops.get(viralId).getId());
+        }
+        long viralMgets = commandCalls("mget") - mgetsBefore;
+        System.out.printf("批量查询的热点商铺%d次访问中读redis %d次%n", viralReads, viralMgets);
+        assertTrue(cacheClient.getHotKeys().containsKey(keyPrefix + viralId));
+        assertTrue(viralMgets < THRESHOLD * 2, "热点key仍然频繁访问redis：" + viralMgets);
+    }
+
+    private static Shop query(CacheClient cacheClient, Long id) {
+        return cacheClient.queryWithPssThrough(RedisConstants.CACHE_SHOP_KEY, id, Shop.class,
+                shopId -> new Shop().setId(shopId).setName("shop-" + shopId),
+                RedisConstants.CACHE_SHOP_TTL, TimeUnit.MINUTES);
+    }
+
+    private static CacheClient newCacheClient() {
+        CacheClient cacheClient = new CacheClient(stringRedisTemplate, new JsonCacheCodec());
+        ReflectionTestUtils.setField(cacheClient, "redisMessageListenerContainer", listenerContainer);
+        ReflectionTestUtils.setField(cacheClient, "localCapacity", 1000);
+        ReflectionTestUtils.setField(cacheClient, "localTtlMillis", 60000L);
+        ReflectionTestUtils.setField(cacheClient, "hotKeyEnabled", true);
+        ReflectionTestUtils.setField(cacheClient, "hotKeyWindowMillis", WINDOW_MS);
+        ReflectionTestUtils.setField(cacheClient, "hotKeySlots", 5);
+        ReflectionTestUtils.setField(cacheClient, "hotKeyThreshold", THRESHOLD);
+        ReflectionTestUtils.setField(cacheClient, "hotKeyTopK", 5);
+        ReflectionTestUtils.setField(cacheClient, "hotKeySampleRate", 1);
+        ReflectionTestUtils.setField(cacheClient, "hotKeySketchWidth", 2048);
+        ReflectionTestUtils.setField(cacheClient, "hotKeyTtlMillis", 500L);
+        ReflectionTestUtils.invokeMethod(cacheClient, "init");
+        return cacheClient;
+    }
+}
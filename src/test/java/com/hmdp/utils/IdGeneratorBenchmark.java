@@ -0,0 +1,91 @@
+package com.hmdp.utils;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.springframework.data.redis.connection.RedisStandaloneConfiguration;
+import org.springframework.data.redis.connection.lettuce.LettuceConnectionFactory;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 订单id生成器的吞吐量对比：RedisWorker逐个INCR / RedisWorker号段模式 / 进程内雪花算法
+ * 直接运行main方法，redis地址通过 -Dredis.host -Dredis.port -Dredis.password 指定
+ * 只跑雪花算法（不需要redis）：-Dbenchmark=snowflake
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 3, time = 3)
+@Threads(8)
+@Fork(1)
+public class IdGeneratorBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class RedisWorkerState {
+        // 0表示每个id都INCR一次
+        @Param({"0", "1000"})
+        int leaseStep;
+
+        LettuceConnectionFactory connectionFactory;
+        RedisWorker redisWorker;
+
+        @Setup(Level.Trial)
+        public void setup() {
+            RedisStandaloneConfiguration configuration = new RedisStandaloneConfiguration(
+                    System.getProperty("redis.host", "127.0.0.1"), Integer.getInteger("redis.port", 6379));
+            String password = System.getProperty("redis.password");
+            if (password != null) {
+                configuration.setPassword(password);
+            }
+            connectionFactory = new LettuceConnectionFactory(configuration);
+            connectionFactory.afterPropertiesSet();
+            redisWorker = new RedisWorker();
+            ReflectionTestUtils.setField(redisWorker, "stringRedisTemplate", new StringRedisTemplate(connectionFactory));
+            ReflectionTestUtils.setField(redisWorker, "leaseStep", leaseStep);
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            connectionFactory.destroy();
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class SnowflakeState {
+        // 固定workerId，不向redis租用
+        SnowflakeIdGenerator generator = new SnowflakeIdGenerator(null, 1, 30, 3000, 1000);
+    }
+
+    @Benchmark
+    public long redisWorker(RedisWorkerState state) {
+        return state.redisWorker.nextId("bench");
+    }
+
+    @Benchmark
+    public long snowflake(SnowflakeState state) {
+        return state.generator.nextId("bench");
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(IdGeneratorBenchmark.class.getSimpleName() + "." + System.getProperty("benchmark", ""))
+                .build()).run();
+    }
+}
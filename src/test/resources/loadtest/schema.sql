@@ -0,0 +1,44 @@
+-- 压测使用的H2(MySQL兼容模式)表结构，和 hmdp.sql 中秒杀相关的表保持一致
+DROP TABLE IF EXISTS `tb_voucher`;
+CREATE TABLE `tb_voucher` (
+  `id` bigint NOT NULL AUTO_INCREMENT,
+  `shop_id` bigint NULL DEFAULT NULL,
+  `title` varchar(255) NOT NULL,
+  `sub_title` varchar(255) NULL DEFAULT NULL,
+  `rules` varchar(1024) NULL DEFAULT NULL,
+  `pay_value` bigint NOT NULL,
+  `actual_value` bigint NOT NULL,
+  `type` tinyint NOT NULL DEFAULT 0,
+  `status` tinyint NOT NULL DEFAULT 1,
+  `create_time` timestamp NOT NULL DEFAULT CURRENT_TIMESTAMP,
+  `update_time` timestamp NOT NULL DEFAULT CURRENT_TIMESTAMP,
+  PRIMARY KEY (`id`)
+);
+
+DROP TABLE IF EXISTS `tb_seckill_voucher`;
+CREATE TABLE `tb_seckill_voucher` (
+  `voucher_id` bigint NOT NULL,
+  `stock` int NOT NULL,
+  `create_time` timestamp NOT NULL DEFAULT CURRENT_TIMESTAMP,
+  `begin_time` timestamp NOT NULL DEFAULT CURRENT_TIMESTAMP,
+  `end_time` timestamp NOT NULL DEFAULT CURRENT_TIMESTAMP,
+  `update_time` timestamp NOT NULL DEFAULT CURRENT_TIMESTAMP,
+  PRIMARY KEY (`voucher_id`)
+);
+
+DROP TABLE IF EXISTS `tb_voucher_order`;
+CREATE TABLE `tb_voucher_order` (
+  `id` bigint NOT NULL,
+  `user_id` bigint NOT NULL,
+  `voucher_id` bigint NOT NULL,
+  `pay_type` tinyint NOT NULL DEFAULT 1,
+  `status` tinyint NOT NULL DEFAULT 1,
+  `create_time` timestamp NOT NULL DEFAULT CURRENT_TIMESTAMP,
+  `pay_time` timestamp NULL DEFAULT NULL,
+  `use_time` timestamp NULL DEFAULT NULL,
+  `refund_time` timestamp NULL DEFAULT NULL,
+  `update_time` timestamp NOT NULL DEFAULT CURRENT_TIMESTAMP,
+  `active_voucher_id` bigint GENERATED ALWAYS AS (CASE WHEN `status` IN (4, 6) THEN NULL ELSE `voucher_id` END),
+  PRIMARY KEY (`id`),
+  UNIQUE KEY `uk_user_active_voucher` (`user_id`, `active_voucher_id`)
+);